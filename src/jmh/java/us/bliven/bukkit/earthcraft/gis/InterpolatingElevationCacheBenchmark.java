@@ -0,0 +1,85 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Benchmarks {@link InterpolatingElevationCache#fetchElevations(double[], double[], double[])}
+ * for chunk-sized requests.
+ *
+ * <p><tt>cached</tt> repeats the same chunk, so every lattice point is in
+ * memory. <tt>walk</tt> moves one chunk east on each call, so the cache
+ * also has to fetch and evict lattice points.
+ * @author Spencer Bliven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpolatingElevationCacheBenchmark {
+	private static final double BLOCK = 1/1200.; // degrees per block
+	private static final double GRID = 4*BLOCK; // degrees between lattice points
+
+	@Param({"NEAREST","BILINEAR"})
+	public InterpolationMode mode;
+
+	private InterpolatingElevationCache cache;
+	private double[] lats;
+	private double[] lons;
+	private double[] elevs;
+	private int chunk;
+
+	@Setup
+	public void setup() {
+		// Large enough that the walk never leaves the test pattern
+		ElevationProvider provider = new TestElevationProvider(-10.,10.,-180.,180.,-4000.,4000.);
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.),
+				new Coordinate(GRID,GRID), mode, 1024);
+
+		lats = new double[256];
+		lons = new double[256];
+		elevs = new double[256];
+		chunk = 0;
+		setChunk(0);
+	}
+
+	/**
+	 * Fill the query arrays with the columns of a chunk
+	 */
+	private void setChunk(int cx) {
+		for(int lz=0; lz<16; lz++) {
+			for(int lx=0; lx<16; lx++) {
+				lats[(lz<<4)|lx] = -lz*BLOCK;
+				lons[(lz<<4)|lx] = (cx*16+lx)*BLOCK;
+			}
+		}
+	}
+
+	@Benchmark
+	public double[] cached() throws DataUnavailableException {
+		cache.fetchElevations(lats, lons, elevs);
+		return elevs;
+	}
+
+	@Benchmark
+	public double[] walk() throws DataUnavailableException {
+		setChunk(++chunk);
+		cache.fetchElevations(lats, lons, elevs);
+		return elevs;
+	}
+}
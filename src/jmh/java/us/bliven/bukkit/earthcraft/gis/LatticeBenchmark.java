@@ -0,0 +1,61 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.awt.Point;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Benchmarks {@link Lattice#getNeighbors(Coordinate, int)}.
+ *
+ * Lives in the gis package since Lattice is package-private.
+ * @author Spencer Bliven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatticeBenchmark {
+	private static final int QUERIES = 1024; // power of two
+
+	@Param({"1","2"})
+	public int distance;
+
+	private Lattice lattice;
+	private Coordinate[] queries;
+	private int next;
+
+	@Setup
+	public void setup() {
+		lattice = new Lattice(new Coordinate(0.,0.), new Coordinate(1/120.,1/120.));
+
+		Random rand = new Random(42);
+		queries = new Coordinate[QUERIES];
+		for(int i=0;i<QUERIES;i++) {
+			queries[i] = new Coordinate(rand.nextDouble()*180-90, rand.nextDouble()*360-180);
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public Set<Point> getNeighbors() {
+		Coordinate query = queries[next++ & (QUERIES-1)];
+		return lattice.getNeighbors(query, distance);
+	}
+}
@@ -0,0 +1,76 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing an Open Elevation response of a given batch size.
+ *
+ * Lives in the gis package since OpenElevationParser is package-private.
+ * @author Spencer Bliven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpenElevationParserBenchmark {
+	@Param({"36","1000"})
+	public int points;
+
+	@Param({"false","true"})
+	public boolean json;
+
+	private OpenElevationParser parser;
+	private byte[] response;
+	private double[] heights;
+
+	@Setup
+	public void setup() throws IOException {
+		parser = new OpenElevationParser();
+		heights = new double[points];
+
+		Random rand = new Random(42);
+		StringBuilder out = new StringBuilder();
+		if( json ) {
+			out.append("{\"elevationProfile\":[");
+			for(int i=0;i<points;i++) {
+				out.append(i == 0 ? "" : ",");
+				out.append("{\"distance\":").append(i*0.0125);
+				out.append(",\"height\":").append(rand.nextInt(9000)-500).append("}");
+			}
+			out.append("],\"shapePoints\":[],\"info\":{\"statuscode\":0,\"messages\":[]}}");
+		} else {
+			out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><response><info>");
+			out.append("<statusCode>0</statusCode><messages/></info><elevationProfile>");
+			for(int i=0;i<points;i++) {
+				out.append("<distanceHeight><distance>").append(i*0.0125);
+				out.append("</distance><height>").append(rand.nextInt(9000)-500);
+				out.append("</height></distanceHeight>");
+			}
+			out.append("</elevationProfile></response>");
+		}
+		response = out.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public double[] parse() throws IOException {
+		parser.parse(new ByteArrayInputStream(response), json, heights);
+		return heights;
+	}
+}
@@ -0,0 +1,62 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Benchmarks the per-column coordinate conversions used during chunk generation
+ * @author Spencer Bliven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark {
+	private static final int QUERIES = 1024; // power of two
+
+	private EquirectangularProjection projection;
+	private Location[] locations;
+	private Coordinate[] coords;
+	private int next;
+
+	@Setup
+	public void setup() {
+		projection = new EquirectangularProjection(new Coordinate(32.759444,-117.253160),
+				new Coordinate(1/120.,1/120.));
+
+		Random rand = new Random(42);
+		locations = new Location[QUERIES];
+		coords = new Coordinate[QUERIES];
+		for(int i=0;i<QUERIES;i++) {
+			locations[i] = new Location(null, rand.nextInt(1<<20)-(1<<19), 0, rand.nextInt(1<<20)-(1<<19));
+			// Include coordinates which need wrapping
+			coords[i] = new Coordinate(rand.nextDouble()*360-180, rand.nextDouble()*720-360);
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public Coordinate locationToCoordinate() {
+		return projection.locationToCoordinate(locations[next++ & (QUERIES-1)]);
+	}
+
+	@Benchmark
+	public Coordinate wrapCoordinate() {
+		return ProjectionTools.wrapCoordinate(coords[next++ & (QUERIES-1)]);
+	}
+}
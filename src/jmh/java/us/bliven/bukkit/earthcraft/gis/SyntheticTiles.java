@@ -0,0 +1,84 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes fake SRTM30+ tiles so that benchmarks can run offline.
+ *
+ * Tiles have the size and name of the real .dem files, so a
+ * {@link SRTMPlusElevationProvider} using the same directory finds them in its
+ * cache and never downloads anything. Elevations follow a smooth, deterministic
+ * pattern of hills and ocean.
+ * @author Spencer Bliven
+ */
+public class SyntheticTiles {
+	/** Columns in a regular (non-Antarctic) tile */
+	public static final int WIDTH = 4800;
+	/** Rows in a regular (non-Antarctic) tile */
+	public static final int HEIGHT = 6000;
+
+	private SyntheticTiles() {}
+
+	/**
+	 * Write a regular tile, unless it already exists
+	 * @param dir Cache directory for a SRTMPlusElevationProvider
+	 * @param tile Tile name, e.g. "w140n40"
+	 * @return The .dem file
+	 * @throws IOException
+	 */
+	public static File writeTile(File dir, String tile) throws IOException {
+		File file = new File(dir, tile+".Bathymetry.srtm.dem");
+		if(file.length() == 2l*WIDTH*HEIGHT) {
+			return file;
+		}
+		dir.mkdirs();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1<<16));
+		try {
+			for(int row=0;row<HEIGHT;row++) {
+				for(int col=0;col<WIDTH;col++) {
+					out.writeShort(getSample(col,row));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return The synthetic elevation for a cell, in meters
+	 */
+	public static short getSample(int col, int row) {
+		return (short) (2000*Math.sin(row/150.)*Math.cos(col/230.) - 500);
+	}
+
+	/**
+	 * @return A new temporary directory, deleted when the JVM exits
+	 */
+	public static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to create "+dir);
+		}
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	/**
+	 * Delete a directory and its (non-directory) contents
+	 */
+	public static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,97 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
+import us.bliven.bukkit.earthcraft.gis.LinearElevationProjection;
+import us.bliven.bukkit.earthcraft.gis.SRTMPlusElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.SyntheticTiles;
+import us.bliven.bukkit.earthcraft.gis.TestElevationProvider;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Benchmarks the block heights calculated for {@link EarthChunkProvider}.
+ *
+ * <p>The <tt>test</tt> source uses a {@link TestElevationProvider}, measuring
+ * only the projections. The <tt>tile</tt> source reads a synthetic SRTM30+
+ * tile from a temporary directory, so no network access is needed.
+ * @author Spencer Bliven
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockHeightBenchmark {
+	private static final double BLOCK = 30/3600.; // one SRTM30+ cell per block
+	private static final int CHUNKS = 64; // chunks per side of the benchmark area; power of two
+
+	@Param({"test","tile"})
+	public String source;
+
+	private File dir;
+	private BlockHeightCalculator calculator;
+	private int[] heights;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		// Origin lies within tile w140n40
+		Coordinate origin = new Coordinate(30.,-130.);
+		ElevationProvider provider;
+		if( source.equals("tile") ) {
+			dir = SyntheticTiles.createTempDir("srtm");
+			SyntheticTiles.writeTile(dir, "w140n40");
+			provider = new SRTMPlusElevationProvider(dir.getAbsolutePath());
+		} else {
+			provider = new TestElevationProvider(20.,40.,-140.,-100.,-4000.,4000.);
+		}
+
+		calculator = new BlockHeightCalculator(
+				new EquirectangularProjection(origin, new Coordinate(BLOCK,BLOCK)),
+				new LinearElevationProjection(), provider);
+		heights = new int[256];
+		next = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		if(dir != null) {
+			SyntheticTiles.deleteDir(dir);
+		}
+	}
+
+	@Benchmark
+	public int getBlockHeight() throws DataUnavailableException {
+		int i = next++;
+		int x = i & (CHUNKS*16-1);
+		int z = (i >> 10) & (CHUNKS*16-1);
+		return calculator.getBlockHeight(calculator.getLatLon(x, z));
+	}
+
+	@Benchmark
+	public int[] getBlockHeights() {
+		int i = next++;
+		calculator.getBlockHeights(i & (CHUNKS-1), (i >> 6) & (CHUNKS-1), heights);
+		return heights;
+	}
+}
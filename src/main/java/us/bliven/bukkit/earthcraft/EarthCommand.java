@@ -0,0 +1,131 @@
+package us.bliven.bukkit.earthcraft;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import us.bliven.bukkit.earthcraft.gis.Location;
+import us.bliven.bukkit.earthcraft.gis.ProjectionTools;
+import us.bliven.bukkit.earthcraft.worldgen.EarthChunkProvider;
+import us.bliven.bukkit.earthcraft.worldgen.RegionPregenerator;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * The /earth command.
+ *
+ * usage: /earth pregen lat lon radius
+ *        /earth pregen [status|pause|resume|cancel]
+ * @author Spencer Bliven
+ */
+public class EarthCommand extends CommandBase {
+	private static final String USAGE = "/earth pregen <lat> <lon> <radius> | /earth pregen [status|pause|resume|cancel]";
+
+	private final EarthcraftMod mod;
+
+	public EarthCommand(EarthcraftMod mod) {
+		this.mod = mod;
+	}
+
+	@Override
+	public String getCommandName() {
+		return "earth";
+	}
+
+	@Override
+	public String getCommandUsage(ICommandSender sender) {
+		return USAGE;
+	}
+
+	@Override
+	public int getRequiredPermissionLevel() {
+		return 3; // ops
+	}
+
+	@Override
+	public void execute(MinecraftServer server, ICommandSender sender, String[] args)
+			throws CommandException {
+		if( args.length < 1 ) {
+			throw new WrongUsageException(USAGE);
+		}
+		String subcmd = args[0];
+		String[] subargs = Arrays.copyOfRange(args, 1, args.length);
+		if( subcmd.equalsIgnoreCase("pregen") ) {
+			onPregenCommand(server, sender, subargs);
+		} else {
+			throw new WrongUsageException(USAGE);
+		}
+	}
+
+	/**
+	 * Handle pregen command
+	 *
+	 * usage: /earth pregen lat lon radius
+	 *        /earth pregen [status|pause|resume|cancel]
+	 * Radius is in blocks. Applies to the sender's world, or the overworld
+	 * from the console.
+	 */
+	private void onPregenCommand(MinecraftServer server, ICommandSender sender, String[] args)
+			throws CommandException {
+		World senderWorld = sender.getEntityWorld();
+		WorldServer world = senderWorld instanceof WorldServer ? (WorldServer) senderWorld
+				: server.worldServerForDimension(0);
+		EarthChunkProvider gen = mod.getGenerator(world);
+		if( gen == null ) {
+			sender.addChatMessage(new TextComponentString("Error: not an Earthcraft world."));
+			return;
+		}
+		RegionPregenerator pregen = mod.getPregenerator(world);
+
+		if( args.length == 3 ) {
+			if( pregen != null && !pregen.isFinished() ) {
+				sender.addChatMessage(new TextComponentString(
+						"Error: pregeneration already in progress. Cancel it first."));
+				return;
+			}
+			double lat = parseDouble(args[0], -90, 90);
+			double lon = parseDouble(args[1], -180, 180);
+			int radius = parseInt(args[2], 0, RegionPregenerator.MAX_RADIUS*16);
+
+			Coordinate coord = new Coordinate(lat,lon);
+			Location loc = gen.getMapProjection().coordinateToLocation(world, coord);
+			pregen = mod.startPregenerator(world, gen, loc.getX() >> 4, loc.getZ() >> 4, (radius+15) >> 4);
+			sender.addChatMessage(new TextComponentString(String.format(
+					"Pregenerating %d chunks around %s",
+					pregen.getTotal(), ProjectionTools.latlonString(coord))));
+			return;
+		} else if( args.length > 1 ) {
+			throw new WrongUsageException(USAGE);
+		}
+
+		String action = args.length == 0 ? "status" : args[0];
+		if( pregen == null ) {
+			sender.addChatMessage(new TextComponentString("No pregeneration in progress."));
+			return;
+		}
+		if( action.equalsIgnoreCase("pause") ) {
+			pregen.pause();
+		} else if( action.equalsIgnoreCase("resume") ) {
+			pregen.resume();
+		} else if( action.equalsIgnoreCase("cancel") ) {
+			mod.cancelPregenerator(world);
+			sender.addChatMessage(new TextComponentString("Pregeneration cancelled."));
+			return;
+		} else if( !action.equalsIgnoreCase("status") ) {
+			throw new WrongUsageException(USAGE);
+		}
+		sender.addChatMessage(new TextComponentString(pregen.getStatus()));
+	}
+
+	@Override
+	public List<String> getCommandAliases() {
+		return Arrays.asList("ec");
+	}
+}
@@ -1,23 +1,45 @@
 package us.bliven.bukkit.earthcraft;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.media.jai.JAI;
 import javax.media.jai.OperationRegistry;
 
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
 import net.minecraft.world.WorldType;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.Mod.EventHandler;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppingEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedOutEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.PlayerTickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
 import us.bliven.bukkit.earthcraft.config.ConfigManager;
+import us.bliven.bukkit.earthcraft.gis.ElevationMetricsRegistry;
 import us.bliven.bukkit.earthcraft.worldgen.EarthChunkProvider;
 import us.bliven.bukkit.earthcraft.worldgen.EarthWorld;
+import us.bliven.bukkit.earthcraft.worldgen.PrefetchScheduler;
+import us.bliven.bukkit.earthcraft.worldgen.RegionPregenerator;
+import us.bliven.bukkit.earthcraft.worldgen.WarmupService;
 
 import com.sun.media.jai.imageioimpl.ImageReadWriteSpi;
 
@@ -26,14 +48,31 @@ public class EarthcraftMod {
     public static final String MODID = "earthcraft";
     public static final String VERSION = "0.1";
 
+    @Mod.Instance(MODID)
+    public static EarthcraftMod instance;
+
 	private Logger log = Logger.getLogger(MODID);
     public static final WorldType EARTHCRAFT_WORLD = new EarthWorld("PYRAMID");
 
 	private ConfigManager config = null;
 //	private Map<String,Coordinate> landmarks = null;
 
-	// Create a new EarthGen for each world to allow configurability
-	private final Map<String,EarthChunkProvider> generators = new HashMap<String, EarthChunkProvider>();
+	// Create a new EarthGen for each world to allow configurability.
+	// Keyed by the world itself, since dimensions share a name.
+	private final Map<World,EarthChunkProvider> generators = new HashMap<World, EarthChunkProvider>();
+
+	// Preloads the spawn and landmarks of each world
+	private WarmupService warmup = null;
+	// Warm-up of each world, cancelled when the world is unloaded
+	private final Map<World,Future<Integer>> warmups = new HashMap<World, Future<Integer>>();
+
+	// Timing of each world's elevation providers, also published over JMX
+	private ElevationMetricsRegistry metrics = null;
+
+	// Pregeneration jobs, by world. Only used from the server thread.
+	private final Map<WorldServer,RegionPregenerator> pregenerators = new HashMap<WorldServer, RegionPregenerator>();
+	private static final String PREGEN_FILE = "earthcraft-pregen";
+	private long pregenBudget; // ns per tick
 
 	// Permissions
 	static final String PERM_TP_OTHERS = "earthcraft.tp.others";
@@ -61,6 +100,18 @@ public class EarthcraftMod {
 
         initJAI();
 
+        // Prefetch elevations ahead of players
+        MinecraftForge.EVENT_BUS.register(this);
+
+        // Preload landmarks once each world's generator is created
+        warmup = new WarmupService(config.getLandmarks(),
+        		config.getWarmupBudget(), WarmupService.DEFAULT_RADIUS);
+
+        pregenBudget = config.getPregenBudget()*1000000L;
+
+        metrics = new ElevationMetricsRegistry();
+        config.save();
+
         // Create default config file if none exists
         //saveDefaultConfig();//TODO reenable
 
@@ -81,6 +132,221 @@ public class EarthcraftMod {
 //    	return gen;
 //    }
 
+	@EventHandler
+	public void serverStarting(FMLServerStartingEvent event) {
+		event.registerServerCommand(new EarthCommand(this));
+
+		int interval = config.getMetricsInterval();
+		if( interval > 0 ) {
+			metrics.startReporting(interval, TimeUnit.SECONDS);
+		}
+
+		// Continue pregeneration from before the restart
+		MinecraftServer server = event.getServer();
+		for(WorldServer world : server.worldServers) {
+			EarthChunkProvider gen = getGenerator(world);
+			if( gen == null ) {
+				continue;
+			}
+			try {
+				RegionPregenerator pregen = RegionPregenerator.load(getPregenFile(world),
+						new PregenTarget(world, gen));
+				if( pregen != null ) {
+					pregenerators.put(world, pregen);
+					if( pregen.wasRunning() ) {
+						pregen.resume();
+					}
+					log.info(pregen.getStatus());
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to resume pregeneration", e);
+			}
+		}
+	}
+
+	@EventHandler
+	public void serverStopping(FMLServerStoppingEvent event) {
+		for(RegionPregenerator pregen : pregenerators.values()) {
+			pregen.shutdown();
+		}
+		pregenerators.clear();
+
+		synchronized(this) {
+			// Stop warming before the generators are closed
+			warmup.shutdown();
+			warmups.clear();
+
+			for(EarthChunkProvider gen : generators.values()) {
+				gen.close();
+			}
+			generators.clear();
+		}
+
+		// Stop reporting and unregister the MBeans
+		metrics.shutdown();
+	}
+
+	@SubscribeEvent
+	public void onServerTick(ServerTickEvent event) {
+		if( event.phase != TickEvent.Phase.END || pregenerators.isEmpty() ) {
+			return;
+		}
+		for(RegionPregenerator pregen : pregenerators.values()) {
+			pregen.tick(pregenBudget);
+		}
+	}
+
+	/**
+	 * @return The pregeneration job for a world, or null
+	 */
+	public RegionPregenerator getPregenerator(WorldServer world) {
+		return pregenerators.get(world);
+	}
+
+	/**
+	 * Start pregenerating chunks in a world, replacing any previous job
+	 * @param world World to generate
+	 * @param gen The world's generator
+	 * @param cx Chunk x coordinate of the center
+	 * @param cz Chunk z coordinate of the center
+	 * @param radius Radius, in chunks
+	 * @return The running job
+	 */
+	public RegionPregenerator startPregenerator(WorldServer world, EarthChunkProvider gen,
+			int cx, int cz, int radius) {
+		cancelPregenerator(world);
+		RegionPregenerator pregen = new RegionPregenerator(cx, cz, radius,
+				new PregenTarget(world, gen), getPregenFile(world));
+		pregenerators.put(world, pregen);
+		pregen.resume();
+		return pregen;
+	}
+
+	/**
+	 * Stop pregenerating chunks in a world
+	 */
+	public void cancelPregenerator(WorldServer world) {
+		RegionPregenerator pregen = pregenerators.remove(world);
+		if( pregen != null ) {
+			pregen.cancel();
+		}
+	}
+
+	private static File getPregenFile(WorldServer world) {
+		return new File(world.getSaveHandler().getWorldDirectory(),
+				PREGEN_FILE+world.provider.getDimension()+".properties");
+	}
+
+	/**
+	 * Fetches elevations on the pregenerator's workers, then generates
+	 * chunks through the server so they are saved normally.
+	 */
+	private static class PregenTarget implements RegionPregenerator.ChunkTarget {
+		private final WorldServer world;
+		private final EarthChunkProvider gen;
+
+		public PregenTarget(WorldServer world, EarthChunkProvider gen) {
+			this.world = world;
+			this.gen = gen;
+		}
+
+		@Override
+		public void prepare(int cx, int cz) {
+			gen.precomputeBlockHeights(cx, cz);
+		}
+
+		@Override
+		public void generate(int cx, int cz) {
+			ChunkProviderServer provider = world.getChunkProvider();
+			Chunk chunk = provider.provideChunk(cx, cz);
+			// Unused if the chunk already existed
+			gen.discardBlockHeights(cx, cz);
+			// Save and unload once no players need it
+			provider.unload(chunk);
+		}
+
+		@Override
+		public void discard(int cx, int cz) {
+			gen.discardBlockHeights(cx, cz);
+		}
+	}
+
+	/**
+	 * Remember the generator for a world, so that it can be found from
+	 * events in that world
+	 */
+	public synchronized void addGenerator(World world, EarthChunkProvider gen) {
+		generators.put(world, gen);
+		if( warmup != null ) {
+			warmups.put(world, warmup.warm(world.getWorldInfo().getWorldName(),
+					gen.getHeightCalculator(), gen.getSpawn()));
+		}
+	}
+
+	/**
+	 * @return The Earthcraft generator for a world, or null for other worlds
+	 */
+	public synchronized EarthChunkProvider getGenerator(World world) {
+		return generators.get(world);
+	}
+
+	/**
+	 * Stop pregenerating and close the generator when a world is unloaded,
+	 * eg when leaving a single player world
+	 */
+	@SubscribeEvent
+	public void onWorldUnload(WorldEvent.Unload event) {
+		World world = event.getWorld();
+		if( world.isRemote ) {
+			return;
+		}
+		RegionPregenerator pregen = pregenerators.remove(world);
+		if( pregen != null ) {
+			pregen.shutdown();
+		}
+		EarthChunkProvider gen;
+		Future<Integer> warming;
+		synchronized(this) {
+			gen = generators.remove(world);
+			warming = warmups.remove(world);
+		}
+		if( warming != null ) {
+			// Skip the rest of the places, so the next world isn't kept waiting
+			warming.cancel(true);
+		}
+		if( gen != null ) {
+			gen.close();
+		}
+	}
+
+	@SubscribeEvent
+	public void onPlayerTick(PlayerTickEvent event) {
+		EntityPlayer player = event.player;
+		if( event.phase != TickEvent.Phase.END || player.worldObj.isRemote ) {
+			return;
+		}
+		EarthChunkProvider gen = getGenerator(player.worldObj);
+		if( gen == null || gen.getPrefetchScheduler() == null ) {
+			return;
+		}
+		gen.getPrefetchScheduler().update(player.getUniqueID(), player.posX, player.posZ,
+				player.worldObj.getTotalWorldTime());
+	}
+
+	@SubscribeEvent
+	public void onPlayerLoggedOut(PlayerLoggedOutEvent event) {
+		EarthChunkProvider[] gens;
+		synchronized(this) {
+			gens = generators.values().toArray(new EarthChunkProvider[generators.size()]);
+		}
+		for(EarthChunkProvider gen : gens) {
+			PrefetchScheduler scheduler = gen.getPrefetchScheduler();
+			if( scheduler != null ) {
+				scheduler.forget(event.player.getUniqueID());
+			}
+		}
+	}
+
     /**
      * Since plugins get loaded late, the GeoTools JAI operators need to be
      * manually initialized.
@@ -534,6 +800,13 @@ public class EarthcraftMod {
 		return config;
 	}
 
+	/**
+	 * @return Metrics for the elevation providers, or null before init
+	 */
+	public ElevationMetricsRegistry getMetrics() {
+		return metrics;
+	}
+
 	public Logger getLogger() {
 		return log;
 	}
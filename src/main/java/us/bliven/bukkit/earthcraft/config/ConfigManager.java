@@ -5,6 +5,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -12,6 +13,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.minecraftforge.common.config.Configuration;
+import net.minecraftforge.common.config.Property;
 import us.bliven.bukkit.earthcraft.EarthcraftMod;
 import us.bliven.bukkit.earthcraft.gis.ElevationProjection;
 
@@ -26,6 +28,14 @@ public class ConfigManager extends Configuration{
 	private EarthcraftMod plugin;
 
 	private static final Logger log = Logger.getLogger(ConfigManager.class.getName());
+
+	public static final String CATEGORY_LANDMARKS = "landmarks";
+	private static final Map<String,double[]> DEFAULT_LANDMARKS = new LinkedHashMap<String, double[]>();
+	static {
+		DEFAULT_LANDMARKS.put("San Diego", new double[] {32.717, -117.167});
+		DEFAULT_LANDMARKS.put("Everest", new double[] {27.98806, 86.92528});
+		DEFAULT_LANDMARKS.put("Challenger Deep", new double[] {11.3733, 142.5917});
+	}
 	
 	public ConfigManager(EarthcraftMod plugin, File path) {
 		super(path);
@@ -36,6 +46,57 @@ public class ConfigManager extends Configuration{
 		return plugin;
 	}
 
+	/**
+	 * Get the named landmarks from the "landmarks" category. Each landmark is
+	 * a list giving lat, lon in degrees. If the category is missing, it is
+	 * filled with a few defaults.
+	 * @return Map from landmark name to coordinate
+	 */
+	public Map<String, Coordinate> getLandmarks() {
+		if( !hasCategory(CATEGORY_LANDMARKS) ) {
+			for(Map.Entry<String,double[]> entry : DEFAULT_LANDMARKS.entrySet()) {
+				get(CATEGORY_LANDMARKS, entry.getKey(), entry.getValue());
+			}
+		}
+
+		Map<String, Coordinate> placeMap = new LinkedHashMap<String, Coordinate>();
+		for(Map.Entry<String,Property> entry : getCategory(CATEGORY_LANDMARKS).getValues().entrySet()) {
+			double[] coords = entry.getValue().getDoubleList();
+			if( coords.length == 2) {
+				placeMap.put(entry.getKey(), new Coordinate(coords[0],coords[1]));
+			} else if( coords.length == 3) {
+				placeMap.put(entry.getKey(), new Coordinate(coords[0],coords[1],coords[2]));
+			} else {
+				log.warning("Invalid coordinate for "+entry.getKey());
+			}
+		}
+		return placeMap;
+	}
+
+	/**
+	 * @return Time, in ms, which pregeneration may use in each server tick
+	 */
+	public int getPregenBudget() {
+		return get(CATEGORY_GENERAL, "pregenBudget", 10,
+				"Time (ms) which pregeneration may use in each 50 ms server tick").getInt();
+	}
+
+	/**
+	 * @return Chunks which the startup warm-up may compute for each world
+	 */
+	public int getWarmupBudget() {
+		return get(CATEGORY_GENERAL, "warmupChunks", 1024,
+				"Chunks which may be computed when preloading the spawn and landmarks of each world").getInt();
+	}
+
+	/**
+	 * @return Seconds between elevation metrics in the log, or 0 for none
+	 */
+	public int getMetricsInterval() {
+		return get(CATEGORY_GENERAL, "metricsInterval", 300,
+				"Time (s) between elevation metrics summaries in the log. 0 to disable").getInt();
+	}
+
 //	protected ConfigurationSection getWorld(String worldname) {
 //		ConfigurationSection params = get(joinCategories("worlds",worldname));
 //		if( params == null ) {
@@ -98,7 +159,12 @@ public class ConfigManager extends Configuration{
 //
 //		boolean wrap = getWrap(worldName);
 //
-//		return createElevationProvider(elevation,wrap);
+//		ElevationProvider provider = createElevationProvider(elevation,wrap);
+//		if( provider instanceof MipMappedElevationProvider ) {
+//			// Levels are chosen from the world's scale
+//			((MipMappedElevationProvider)provider).setMapProjection(getMapProjection(worldName));
+//		}
+//		return provider;
 //	}
 //
 //
@@ -119,6 +185,8 @@ public class ConfigManager extends Configuration{
 //			return createSRTMPlusElevationProvider(params,wrap);
 //		} else if( type.equalsIgnoreCase("InterpolatedCoverageElevationProvider")) {
 //			return createInterpolatedCoverageElevationProvider(params,wrap);
+//		} else if( type.equalsIgnoreCase("MipMappedElevationProvider")) {
+//			return createMipMappedElevationProvider(params,wrap);
 //		} else {
 //			// Default to flat world
 //			log.severe("Error: unknown elevation type "+type);
@@ -138,6 +206,16 @@ public class ConfigManager extends Configuration{
 //		return new InterpolatedCoverageElevationProvider(provider);
 //	}
 //
+//	private MipMappedElevationProvider createMipMappedElevationProvider(
+//			ConfigurationSection params, boolean wrap) {
+//		GridCoverageElevationProvider provider = createGridCoverageElevationProvider(
+//				params.getConfigurationSection("provider"), wrap );
+//		File dir = new File(params.getString("cache"));
+//		int maxLevel = params.getInt("maxlevel",MipMappedElevationProvider.DEFAULT_MAX_LEVEL);
+//		// Projection is set by getProvider
+//		return new MipMappedElevationProvider(provider, null, dir, maxLevel);
+//	}
+//
 //	private GridCoverageElevationProvider createGridCoverageElevationProvider(
 //			ConfigurationSection elevation, boolean wrap) {
 //		String type = elevation.getString("type");
@@ -167,12 +245,15 @@ public class ConfigManager extends Configuration{
 //			ConfigurationSection params, boolean wrap) {
 //		ElevationProvider provider = createElevationProvider(params.getConfigurationSection("provider"),wrap);
 //		Coordinate scale = createCoordinate(params.getConfigurationSection("scale"));
+//		Coordinate origin = new Coordinate(0.,0.);
 //		if( params.contains("origin")) {
-//			Coordinate origin = createCoordinate(params.getConfigurationSection("origin"));
-//			return new InterpolatingElevationCache(provider, origin, scale);
-//		} else {
-//			return new InterpolatingElevationCache(provider, scale);
+//			origin = createCoordinate(params.getConfigurationSection("origin"));
 //		}
+//		InterpolationMode mode = InterpolationMode.valueOf(
+//				params.getString("interpolation","nearest").toUpperCase());
+//		int cacheSize = params.getInt("cachesize",1024);
+//		File storeDir = params.contains("cache") ? new File(params.getString("cache")) : null;
+//		return new InterpolatingElevationCache(provider, origin, scale, mode, cacheSize, storeDir);
 //	}
 //
 //	private TestElevationProvider createTestElevationProvider(
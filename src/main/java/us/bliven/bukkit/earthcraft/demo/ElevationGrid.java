@@ -5,9 +5,13 @@ import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.measure.Measure;
 import javax.measure.quantity.Length;
@@ -66,7 +70,28 @@ public class ElevationGrid {
 		elevationCache = new InterpolatedCoverageElevationProvider(new SRTMPlusElevationProvider(dir));
 		//new InterpolatingElevationCache(elevationProvider, new Coordinate(latRes,lonRes));
 
-		Double[][] elevations = elevationGrid(elevationCache, south,north,west,east, latRes/2, lonRes/2);
+		if( a.length > 0 ) {
+			// Stream to a PNG rather than displaying, for large regions
+			try {
+				OutputStream out = new FileOutputStream(a[0]);
+				try {
+					int failed = writeElevationImage(elevationCache, south,north,west,east,
+							latRes/2, lonRes/2, 64, out);
+					System.out.format("Wrote %s with %d failed rows%n", a[0], failed);
+				} finally {
+					// In case the PngWriter was never created
+					out.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		ElevationRaster elevations = ElevationRaster.fetch(elevationCache, south,north,west,east, latRes/2, lonRes/2);
+		for(int y : elevations.getFailedRows()) {
+			System.err.format("Row %d (lat %f) failed: %s%n", y, elevations.getLat(y), elevations.getRowError(y));
+		}
 
 		/*
 		Double[][] elevations = new Double[xpoints][ypoints];
@@ -121,40 +146,29 @@ public class ElevationGrid {
 	 * @return A BufferedImage containing one pixel per input element
 	 */
 	public static BufferedImage elevationImage(Double[][] elevations) {
-		int height = elevations.length;
-		int width = elevations[0].length;
+		return elevationImage(new ElevationRaster(elevations));
+	}
+
+	/**
+	 * Creates a heatmap for a raster of elevations.
+	 *
+	 * Row 0 of the raster is the bottom of the resulting image.
+	 * @param elevations Elevations, with NaN for missing values
+	 * @return A BufferedImage containing one pixel per input element
+	 */
+	public static BufferedImage elevationImage(ElevationRaster elevations) {
+		int height = elevations.getHeight();
+		int width = elevations.getWidth();
 		// This should be in row order starting at the top left
 		int[] pixels = new int[width*height*3];
 		for(int x=0;x<width;x++) {
 			for(int y=0;y<height;y++) {
 				//int i =3*x*height+3*y;
 				int i = 3*((height-y-1)*width+x);
-				// Nulls are black
-				if(elevations[y][x] == null || Double.isNaN(elevations[y][x])) {
-					pixels[i] = pixels[i+1] = pixels[i+2] = 0;
-
-				}
-				else {
-					//pixels[i] = pixels[i+1] = pixels[i+2] = elevations[x][y].intValue();
-
-//					int color = getSeaLevelColor(elevations[y][x]);
-					int color = getColor(elevations[y][x], new int[] {-5000,0,0,4000,},
-							new int[] {0x000033, 0x0000FF, 0x305A29, 0xFFFFFF,} );
-
-					pixels[i] = (color & 0xFF0000) >> 16;
-					pixels[i+1] = (color & 0x00FF00) >> 8;
-					pixels[i+2] = (color & 0x0000FF);
-					
-				}
-
-				// 10px white scale bar at top left
-				if( 2 <= x && x<= 12 && y == 2 ||
-						(x==2 || x==12) && y==3)
-				{
-					pixels[i] = 255;
-					pixels[i+1] = 255;
-					pixels[i+2] = 255;
-				}
+				int color = getPixel(elevations.get(x, y), x, y);
+				pixels[i] = (color & 0xFF0000) >> 16;
+				pixels[i+1] = (color & 0x00FF00) >> 8;
+				pixels[i+2] = (color & 0x0000FF);
 			}
 		}
 
@@ -187,6 +201,90 @@ public class ElevationGrid {
 		return image;
 	}
 
+	/**
+	 * Streams a heatmap of a region to a PNG file.
+	 *
+	 * The region is fetched in strips from north to south, so memory use
+	 * depends on the width and strip height but not on the total height.
+	 * Pixels match {@link #elevationImage(ElevationRaster)} for the same
+	 * region.
+	 * @param p	The ElevationProvider to supply elevations
+	 * @param south South border of the rectangle to sample
+	 * @param north North border of the rectangle to sample
+	 * @param west West border of the rectangle to sample
+	 * @param east East border of the rectangle to sample
+	 * @param latRes North-south sampling frequency
+	 * @param lonRes East-west sampling frequency
+	 * @param stripHeight Number of rows to fetch at once
+	 * @param out Destination for the PNG. Closed on return.
+	 * @return Number of rows which failed to fetch in bulk
+	 * @throws IOException
+	 */
+	public static int writeElevationImage( ElevationProvider p,
+			double south, double north, double west, double east,
+			double latRes, double lonRes, int stripHeight, OutputStream out)
+					throws IOException {
+		if(latRes<=0 || lonRes<=0) throw new IllegalArgumentException("Too high resolution");
+		int width = (int)Math.ceil((east-west)/lonRes);
+		int height = (int)Math.ceil((north-south)/latRes);
+
+		if(width<=0 || height <=0) throw new IllegalArgumentException("Empty Region");
+		if(stripHeight<=0) throw new IllegalArgumentException("Invalid strip height");
+
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int failed = 0;
+		int[] row = new int[width];
+		PngWriter png = new PngWriter(out, width, height);
+		boolean complete = false;
+		try {
+			// Top of the image is the northern edge
+			for(int top=height;top>0;top-=stripHeight) {
+				int bottom = Math.max(0, top-stripHeight);
+				ElevationRaster strip = ElevationRaster.fetchSamples(p,
+						south+bottom*latRes, west, latRes, lonRes,
+						width, top-bottom, pool);
+				failed += strip.getFailedRows().size();
+				for(int y=top-1;y>=bottom;y--) {
+					for(int x=0;x<width;x++) {
+						row[x] = getPixel(strip.get(x, y-bottom), x, y);
+					}
+					png.writeRow(row);
+				}
+			}
+			complete = true;
+		} finally {
+			if( !complete ) {
+				// Don't hide the error behind a complaint about missing rows
+				png.abort();
+			}
+		}
+		png.close();
+		return failed;
+	}
+
+	/**
+	 * Gets the heatmap color for a single pixel
+	 * @param elevation Elevation, or NaN if missing
+	 * @param x Column, from the left
+	 * @param y Row, from the bottom
+	 * @return rgb color
+	 */
+	private static int getPixel(float elevation, int x, int y) {
+		// 10px white scale bar at top left
+		if( 2 <= x && x<= 12 && y == 2 ||
+				(x==2 || x==12) && y==3)
+		{
+			return 0xFFFFFF;
+		}
+		// Nulls are black
+		if(Float.isNaN(elevation)) {
+			return 0;
+		}
+//		return getSeaLevelColor(elevation);
+		return getColor(elevation, new int[] {-5000,0,0,4000,},
+				new int[] {0x000033, 0x0000FF, 0x305A29, 0xFFFFFF,} );
+	}
+
 	/**
 	 * Gets the color for an elevation by interpolating between a list of
 	 * reference points. For instance, a red-white-blue gradient could be defined with
@@ -198,7 +296,7 @@ public class ElevationGrid {
 	 * @param refColors A corresponding list of rgb  colors for each refPoint
 	 * @return
 	 */
-	private static int getColor(Double x, int[] refPoints, int[] refColors) {
+	private static int getColor(double x, int[] refPoints, int[] refColors) {
 		if( refPoints.length == 0 || refPoints.length != refColors.length) {
 			throw new IllegalArgumentException("Invalid reference arrays");
 		}
@@ -278,6 +376,7 @@ public class ElevationGrid {
 	 * @return A matrix of elevations indexed [lat][lon], starting with [0][0]
 	 *  at the south-western corner, moving eastward through [0][x], and finally
 	 *  to [y][x] at the north-eastern corner of the rectangle sampled.
+	 * @see ElevationRaster#fetch(ElevationProvider, double, double, double, double, double, double)
 	 */
 	public static Double[][] elevationGrid( ElevationProvider p,
 			double south, double north, double west, double east,
@@ -0,0 +1,236 @@
+package us.bliven.bukkit.earthcraft.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A regular grid of elevations, stored as floats.
+ *
+ * Row 0 is the southern edge of the region and column 0 the western edge.
+ * Missing samples are NaN. Rows which could not be fetched in bulk keep
+ * the exception for reporting.
+ * @author Spencer Bliven
+ */
+public class ElevationRaster {
+	// Rows fetched by each fork/join task
+	private static final int ROWS_PER_TASK = 4;
+
+	private final double south;
+	private final double west;
+	private final double latRes;
+	private final double lonRes;
+	private final int width;
+	private final int height;
+	private final float[] elevations;
+	private final Exception[] rowErrors;
+
+	public ElevationRaster(double south, double west, double latRes, double lonRes,
+			int width, int height) {
+		this.south = south;
+		this.west = west;
+		this.latRes = latRes;
+		this.lonRes = lonRes;
+		this.width = width;
+		this.height = height;
+		this.elevations = new float[width*height];
+		this.rowErrors = new Exception[height];
+		Arrays.fill(elevations, Float.NaN);
+	}
+
+	/**
+	 * Wrap an existing matrix of elevations, as returned by
+	 * {@link ElevationGrid#elevationGrid}. Nulls become NaN.
+	 * @param grid Elevations indexed [lat][lon]
+	 */
+	public ElevationRaster(Double[][] grid) {
+		this(0, 0, 1, 1, grid[0].length, grid.length);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				if(grid[y] != null && grid[y][x] != null) {
+					elevations[y*width+x] = grid[y][x].floatValue();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fetches the elevation for a rectangular chunk of the earth using the
+	 * common fork/join pool.
+	 * @see #fetch(ElevationProvider, double, double, double, double, double, double, ForkJoinPool)
+	 */
+	public static ElevationRaster fetch( ElevationProvider p,
+			double south, double north, double west, double east,
+			double latRes, double lonRes) {
+		return fetch(p, south, north, west, east, latRes, lonRes, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Fetches the elevation for a rectangular chunk of the earth, sampling
+	 * at regular intervals. Rows are fetched in parallel.
+	 *
+	 * If the bulk request for a row fails the row is retried one point at a
+	 * time, so that a single bad sample only loses that sample. The original
+	 * exception is available from {@link #getRowError(int)}.
+	 * @param p	The ElevationProvider to supply elevations. Must be thread-safe.
+	 * @param south South border of the rectangle to sample
+	 * @param north North border of the rectangle to sample
+	 * @param west West border of the rectangle to sample
+	 * @param east East border of the rectangle to sample
+	 * @param latRes North-south sampling frequency
+	 * @param lonRes East-west sampling frequency
+	 * @param pool Pool to run on
+	 * @return The elevations, starting at the south-western corner
+	 */
+	public static ElevationRaster fetch( ElevationProvider p,
+			double south, double north, double west, double east,
+			double latRes, double lonRes, ForkJoinPool pool) {
+		if(latRes<=0 || lonRes<=0) throw new IllegalArgumentException("Too high resolution");
+		int xpoints = (int)Math.ceil((east-west)/lonRes);
+		int ypoints = (int)Math.ceil((north-south)/latRes);
+
+		if(xpoints<=0 || ypoints <=0) throw new IllegalArgumentException("Empty Region");
+
+		return fetchSamples(p, south, west, latRes, lonRes, xpoints, ypoints, pool);
+	}
+
+	/**
+	 * Fetches a fixed number of samples starting from the south-western
+	 * corner.
+	 * @param p	The ElevationProvider to supply elevations. Must be thread-safe.
+	 * @param south Latitude of row 0
+	 * @param west Longitude of column 0
+	 * @param latRes North-south sampling frequency
+	 * @param lonRes East-west sampling frequency
+	 * @param width Number of columns
+	 * @param height Number of rows
+	 * @param pool Pool to run on
+	 * @return The elevations, starting at the south-western corner
+	 */
+	public static ElevationRaster fetchSamples( ElevationProvider p,
+			double south, double west, double latRes, double lonRes,
+			int width, int height, ForkJoinPool pool) {
+		ElevationRaster raster = new ElevationRaster(south, west, latRes, lonRes, width, height);
+		pool.invoke(raster.new RowTask(p, 0, height));
+		return raster;
+	}
+
+	/**
+	 * Fetches a range of rows, splitting in half until small enough
+	 */
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = -3203390474328361535L;
+
+		private final ElevationProvider provider;
+		private final int start;
+		private final int end;
+
+		public RowTask(ElevationProvider provider, int start, int end) {
+			this.provider = provider;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if( end-start > ROWS_PER_TASK ) {
+				int mid = (start+end) >>> 1;
+				invokeAll(new RowTask(provider, start, mid),
+						new RowTask(provider, mid, end));
+				return;
+			}
+			// Buffers are reused for every row
+			double[] lat = new double[width];
+			double[] lon = new double[width];
+			double[] out = new double[width];
+			for(int x=0;x<width;x++) {
+				lon[x] = getLon(x);
+			}
+			for(int y=start;y<end;y++) {
+				Arrays.fill(lat, getLat(y));
+				fetchRow(provider, y, lat, lon, out);
+			}
+		}
+	}
+
+	private void fetchRow(ElevationProvider p, int y, double[] lat, double[] lon, double[] out) {
+		try {
+			p.fetchElevations(lat, lon, out);
+		} catch (Exception e) {
+			rowErrors[y] = e;
+			// Salvage what we can
+			for(int x=0;x<width;x++) {
+				try {
+					Double elev = p.fetchElevation(new Coordinate(lat[x],lon[x]));
+					out[x] = elev == null ? Double.NaN : elev;
+				} catch (Exception e2) {
+					out[x] = Double.NaN;
+				}
+			}
+		}
+		int offset = y*width;
+		for(int x=0;x<width;x++) {
+			elevations[offset+x] = (float) out[x];
+		}
+	}
+
+	/**
+	 * @param x Column, from the west
+	 * @param y Row, from the south
+	 * @return The elevation, or NaN if unavailable
+	 */
+	public float get(int x, int y) {
+		return elevations[y*width+x];
+	}
+
+	public double getLat(int y) {
+		return south + y*latRes;
+	}
+
+	public double getLon(int x) {
+		return west + x*lonRes;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Elevations in row order, indexed <tt>y*width+x</tt>. Not a copy.
+	 */
+	public float[] getElevations() {
+		return elevations;
+	}
+
+	/**
+	 * @param y Row, from the south
+	 * @return The exception that stopped the row from being fetched in bulk,
+	 *  or null if the row succeeded
+	 */
+	public Exception getRowError(int y) {
+		return rowErrors[y];
+	}
+
+	/**
+	 * @return Rows with errors, in increasing order
+	 */
+	public List<Integer> getFailedRows() {
+		List<Integer> failed = new ArrayList<Integer>();
+		for(int y=0;y<height;y++) {
+			if( rowErrors[y] != null ) {
+				failed.add(y);
+			}
+		}
+		return failed;
+	}
+}
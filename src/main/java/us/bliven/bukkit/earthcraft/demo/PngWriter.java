@@ -0,0 +1,195 @@
+package us.bliven.bukkit.earthcraft.demo;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an RGB PNG one row at a time, from the top down.
+ *
+ * Only a single scanline and the compressor's buffers are held in memory,
+ * so images can be larger than the heap.
+ * @author Spencer Bliven
+ */
+public class PngWriter implements Closeable {
+	private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int IDAT_SIZE = 1<<16;
+	private static final int FILTER_SUB = 1;
+
+	private final DataOutputStream out;
+	private final Deflater deflater;
+	private final DeflaterOutputStream idat;
+	private final int width;
+	private final int height;
+	private final byte[] scanline;
+	private int rows;
+	private boolean closed;
+
+	/**
+	 * Write the PNG header
+	 * @param out Destination. Closed by {@link #close()}
+	 * @param width Image width, in pixels
+	 * @param height Image height, in pixels
+	 * @throws IOException
+	 */
+	public PngWriter(OutputStream out, int width, int height) throws IOException {
+		if( width <= 0 || height <= 0 ) {
+			throw new IllegalArgumentException("Empty image");
+		}
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.scanline = new byte[1+3*width];
+		this.rows = 0;
+
+		this.out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8; // bit depth
+		header[9] = 2; // truecolor
+		// compression, filter and interlace methods are all 0
+		writeChunk("IHDR", header, header.length);
+
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		idat = new DeflaterOutputStream(new ChunkOutputStream(), deflater, IDAT_SIZE);
+	}
+
+	/**
+	 * Append the next row of the image
+	 * @param rgb Pixels from left to right, as 0xRRGGBB
+	 * @throws IOException
+	 */
+	public void writeRow(int[] rgb) throws IOException {
+		if( rows >= height ) {
+			throw new IllegalStateException("All "+height+" rows already written");
+		}
+		// The Sub filter stores each byte as the difference from the pixel to
+		// the left, which compresses smooth gradients well.
+		scanline[0] = FILTER_SUB;
+		int prevR = 0, prevG = 0, prevB = 0;
+		for(int x=0;x<width;x++) {
+			int r = (rgb[x] >> 16) & 0xFF;
+			int g = (rgb[x] >> 8) & 0xFF;
+			int b = rgb[x] & 0xFF;
+			scanline[1+3*x] = (byte) (r-prevR);
+			scanline[2+3*x] = (byte) (g-prevG);
+			scanline[3+3*x] = (byte) (b-prevB);
+			prevR = r;
+			prevG = g;
+			prevB = b;
+		}
+		idat.write(scanline);
+		rows++;
+	}
+
+	/**
+	 * @return Number of rows written so far
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Finish the image and close the underlying stream
+	 * @throws IOException if fewer rows were written than the height
+	 */
+	@Override
+	public void close() throws IOException {
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		try {
+			idat.close(); // flushes the last IDAT chunk
+			deflater.end();
+			writeChunk("IEND", new byte[0], 0);
+		} finally {
+			out.close();
+		}
+		if( rows != height ) {
+			throw new IOException("Only "+rows+" of "+height+" rows were written");
+		}
+	}
+
+	/**
+	 * Close the underlying stream without finishing the image, eg while
+	 * handling another error. Never throws, so that error isn't masked.
+	 */
+	public void abort() {
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		deflater.end();
+		try {
+			out.close();
+		} catch(IOException e) {
+			// The image is already being abandoned
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset+1] = (byte) (value >>> 16);
+		b[offset+2] = (byte) (value >>> 8);
+		b[offset+3] = (byte) value;
+	}
+
+	/**
+	 * Splits the compressed stream into IDAT chunks
+	 */
+	private class ChunkOutputStream extends OutputStream {
+		private final byte[] buffer = new byte[IDAT_SIZE];
+		private int count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			if( count == buffer.length ) {
+				flushChunk();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while( len > 0 ) {
+				if( count == buffer.length ) {
+					flushChunk();
+				}
+				int n = Math.min(len, buffer.length-count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushChunk();
+		}
+
+		private void flushChunk() throws IOException {
+			if( count > 0 ) {
+				writeChunk("IDAT", buffer, count);
+				count = 0;
+			}
+		}
+	}
+}
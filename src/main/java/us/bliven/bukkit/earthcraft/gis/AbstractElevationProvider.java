@@ -26,4 +26,24 @@ public abstract class AbstractElevationProvider implements ElevationProvider {
 		return elevations;
 	}
 
+	/**
+	 * Adapts the primitive request to {@link #fetchElevations(List)}.
+	 * Subclasses should override this if they can avoid the intermediate
+	 * objects.
+	 * @see us.bliven.bukkit.earthcraft.gis.ElevationProvider#fetchElevations(double[], double[], double[])
+	 */
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		List<Coordinate> l = new ArrayList<Coordinate>(lat.length);
+		for(int i=0;i<lat.length;i++) {
+			l.add(new Coordinate(lat[i],lon[i]));
+		}
+		List<Double> elevations = fetchElevations(l);
+		for(int i=0;i<lat.length;i++) {
+			Double elev = elevations.get(i);
+			out[i] = elev == null ? Double.NaN : elev;
+		}
+	}
+
 }
@@ -0,0 +1,140 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import us.bliven.bukkit.earthcraft.util.LatencyHistogram;
+
+/**
+ * Counters and latencies for one layer of an elevation provider chain.
+ *
+ * For providers, a call is one fetch and points are the coordinates
+ * requested. For tile loads, each call is one tile.
+ * @author Spencer Bliven
+ */
+public class ElevationMetrics implements ElevationMetricsMBean {
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private final String name;
+	private final AtomicLong calls;
+	private final AtomicLong points;
+	private final AtomicLong errors;
+	private final AtomicLong nulls;
+	private final LatencyHistogram latency;
+
+	public ElevationMetrics(String name) {
+		this.name = name;
+		calls = new AtomicLong();
+		points = new AtomicLong();
+		errors = new AtomicLong();
+		nulls = new AtomicLong();
+		latency = new LatencyHistogram();
+	}
+
+	/**
+	 * Record a completed call
+	 * @param points Number of points requested
+	 * @param nulls Number of points without data
+	 * @param nanos Duration of the call
+	 * @param error Whether the call threw
+	 */
+	public void record(int points, int nulls, long nanos, boolean error) {
+		calls.incrementAndGet();
+		this.points.addAndGet(points);
+		this.nulls.addAndGet(nulls);
+		if( error ) {
+			errors.incrementAndGet();
+		}
+		latency.record(nanos);
+	}
+
+	/**
+	 * Wrap a task so that each call is recorded
+	 */
+	public <T> Callable<T> time(final Callable<T> task) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long start = System.nanoTime();
+				boolean error = true;
+				try {
+					T result = task.call();
+					error = false;
+					return result;
+				} finally {
+					record(1, 0, System.nanoTime()-start, error);
+				}
+			}
+		};
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public long getPoints() {
+		return points.get();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public long getNulls() {
+		return nulls.get();
+	}
+
+	@Override
+	public double getMeanLatencyMillis() {
+		return latency.getMean()/NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMedianLatencyMillis() {
+		return latency.getPercentile(.5)/NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get95thPercentileLatencyMillis() {
+		return latency.getPercentile(.95)/NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get99thPercentileLatencyMillis() {
+		return latency.getPercentile(.99)/NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMaxLatencyMillis() {
+		return latency.getMax()/NANOS_PER_MILLI;
+	}
+
+	@Override
+	public void reset() {
+		calls.set(0);
+		points.set(0);
+		errors.set(0);
+		nulls.set(0);
+		latency.reset();
+	}
+
+	/**
+	 * @return One line summary for logging
+	 */
+	public String getSummary() {
+		return String.format("%s: %d calls, %d points, %d errors, %d nulls; "
+				+ "latency mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms",
+				name, getCalls(), getPoints(), getErrors(), getNulls(),
+				getMeanLatencyMillis(), getMedianLatencyMillis(),
+				get95thPercentileLatencyMillis(), getMaxLatencyMillis());
+	}
+}
@@ -0,0 +1,19 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+/**
+ * JMX view of {@link ElevationMetrics}
+ * @author Spencer Bliven
+ */
+public interface ElevationMetricsMBean {
+	public String getName();
+	public long getCalls();
+	public long getPoints();
+	public long getErrors();
+	public long getNulls();
+	public double getMeanLatencyMillis();
+	public double getMedianLatencyMillis();
+	public double get95thPercentileLatencyMillis();
+	public double get99thPercentileLatencyMillis();
+	public double getMaxLatencyMillis();
+	public void reset();
+}
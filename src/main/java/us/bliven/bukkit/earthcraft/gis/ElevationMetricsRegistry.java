@@ -0,0 +1,162 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named {@link ElevationMetrics}, published as JMX MBeans under
+ * {@value #DOMAIN} and optionally summarized to the log.
+ * @author Spencer Bliven
+ */
+public class ElevationMetricsRegistry {
+	public static final String DOMAIN = "us.bliven.bukkit.earthcraft";
+
+	private static final Logger log = Logger.getLogger(ElevationMetricsRegistry.class.getName());
+
+	private final ConcurrentMap<String,ElevationMetrics> metrics;
+	private final MBeanServer server;
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * Publish to the platform MBean server
+	 */
+	public ElevationMetricsRegistry() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * @param server MBean server, or null to skip JMX
+	 */
+	public ElevationMetricsRegistry(MBeanServer server) {
+		this.metrics = new ConcurrentHashMap<String, ElevationMetrics>();
+		this.server = server;
+	}
+
+	/**
+	 * Get the metrics with a given name, creating and registering them if needed
+	 */
+	public ElevationMetrics getMetrics(String name) {
+		ElevationMetrics m = metrics.get(name);
+		if( m != null ) {
+			return m;
+		}
+		ElevationMetrics created = new ElevationMetrics(name);
+		m = metrics.putIfAbsent(name, created);
+		if( m != null ) {
+			return m;
+		}
+		if( server != null ) {
+			try {
+				ObjectName objectName = getObjectName(name);
+				if( server.isRegistered(objectName) ) {
+					// Left over from an earlier registry
+					server.unregisterMBean(objectName);
+				}
+				server.registerMBean(created, objectName);
+			} catch(JMException e) {
+				log.log(Level.WARNING, "Unable to register metrics for "+name, e);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * @return All metrics, sorted by name
+	 */
+	public List<ElevationMetrics> getAllMetrics() {
+		List<String> names = new ArrayList<String>(metrics.keySet());
+		Collections.sort(names);
+		List<ElevationMetrics> all = new ArrayList<ElevationMetrics>(names.size());
+		for(String name : names) {
+			all.add(metrics.get(name));
+		}
+		return all;
+	}
+
+	/**
+	 * @return One line for each metric which has been used
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		for(ElevationMetrics m : getAllMetrics()) {
+			if( m.getCalls() > 0 ) {
+				summary.append(m.getSummary()).append('\n');
+			}
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Log a summary periodically, from a background thread
+	 * @param period Time between summaries
+	 * @param unit Units of period
+	 */
+	public synchronized void startReporting(long period, TimeUnit unit) {
+		if( reporter != null ) {
+			reporter.shutdownNow();
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r,"Earthcraft metrics");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				String summary = getSummary();
+				if( !summary.isEmpty() ) {
+					log.info("Elevation metrics:\n"+summary);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stop reporting and unregister all MBeans. Metrics requested
+	 * afterwards start from zero and are registered again.
+	 */
+	public synchronized void shutdown() {
+		if( reporter != null ) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		if( server != null ) {
+			for(String name : metrics.keySet()) {
+				try {
+					ObjectName objectName = getObjectName(name);
+					if( server.isRegistered(objectName) ) {
+						server.unregisterMBean(objectName);
+					}
+				} catch(JMException e) {
+					log.log(Level.WARNING, "Unable to unregister metrics for "+name, e);
+				}
+			}
+		}
+		metrics.clear();
+	}
+
+	/**
+	 * @return The JMX name for the metrics with a given name
+	 */
+	public static ObjectName getObjectName(String name) throws JMException {
+		return new ObjectName(DOMAIN+":type=ElevationMetrics,name="+ObjectName.quote(name));
+	}
+}
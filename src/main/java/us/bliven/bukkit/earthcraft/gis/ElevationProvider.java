@@ -25,4 +25,16 @@ public interface ElevationProvider {
 	public List<Double> fetchElevations(List<Coordinate> l) throws DataUnavailableException;
 	
 	public Double fetchElevation(Coordinate c) throws DataUnavailableException;
+
+	/**
+	 * Bulk version of {@link #fetchElevations(List)} which avoids allocating
+	 * objects for each point.
+	 * @param lat Latitudes of the query points, in degrees
+	 * @param lon Longitudes of the query points, in degrees. Same length as lat.
+	 * @param out Output array, at least as long as lat. Receives the elevation
+	 *  of each point in meters, or NaN where no data is available.
+	 * @throws DataUnavailableException If a non-recoverable error stops the data
+	 *  from being accessed
+	 */
+	public void fetchElevations(double[] lat, double[] lon, double[] out) throws DataUnavailableException;
 }
\ No newline at end of file
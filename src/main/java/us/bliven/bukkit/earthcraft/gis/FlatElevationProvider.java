@@ -3,6 +3,7 @@
  */
 package us.bliven.bukkit.earthcraft.gis;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -46,4 +47,14 @@ public class FlatElevationProvider extends AbstractElevationProvider {// impleme
 		return this.elevation;
 	}
 
+	/**
+	 * Always return the same elevation
+	 * @see us.bliven.bukkit.earthcraft.gis.ElevationProvider#fetchElevations(double[], double[], double[])
+	 */
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		Arrays.fill(out, 0, lat.length, this.elevation);
+	}
+
 }
@@ -2,18 +2,15 @@ package us.bliven.bukkit.earthcraft.gis;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.geometry.DirectPosition2D;
-import org.geotools.util.LRULinkedHashMap;
-import org.opengis.geometry.DirectPosition;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
@@ -22,32 +19,68 @@ import com.vividsolutions.jts.geom.Coordinate;
  * @author Spencer Bliven
  */
 public abstract class GridCoverageElevationProvider extends AbstractElevationProvider
-{//implements Configurable {
+		implements Prefetchable {//, Configurable {
 
-	//Number of tiles to store in memory simultaneously
-	private static final int GRID_CACHE_SIZE = 32; // Decrease to reduce memory use
+	//Default number of tiles to store in memory simultaneously
+	protected static final int GRID_CACHE_SIZE = 32; // Decrease to reduce memory use
 	private static final int THREADS = 2;
 
-	// LRU set of Grids storing the SMTP tiles (partially) in memory
-	private final LRULinkedHashMap<String,GridCoverage2D> grids;//a tile identifier -> Grid
+	private final TileScheme scheme;
+	// Tiles which are loaded or being loaded, by tile index. Lookups never lock.
+	private final AtomicReferenceArray<TileEntry> tiles;
+	private final int cacheSize;
 
 	private boolean wrap;
+	private volatile InterpolationMode mode;
 
 	protected Logger log;
 
-	private final ExecutorService executor;
-	private final Map<String,Future<GridCoverage2D>> currentGrids; // List of grids being loaded from memory
+	private final ExecutorService executor; // null if tiles are loaded elsewhere
 
-	protected GridCoverageElevationProvider() {
-		this(true);
+	// Optional timing of tile loads and of waits for tile files
+	private volatile ElevationMetrics tileMetrics;
+	private volatile ElevationMetrics fileMetrics;
+
+	protected GridCoverageElevationProvider(TileScheme scheme) {
+		this(scheme,true);
+	}
+	protected GridCoverageElevationProvider(TileScheme scheme, boolean wrap) {
+		this(scheme,wrap,GRID_CACHE_SIZE);
 	}
-	protected GridCoverageElevationProvider(boolean wrap) {
+	/**
+	 * @param scheme Division of the globe into tiles
+	 * @param wrap Wrap coordinates which fall off the map
+	 * @param cacheSize Number of tiles to keep loaded
+	 */
+	protected GridCoverageElevationProvider(TileScheme scheme, boolean wrap, int cacheSize) {
 		this.executor = Executors.newFixedThreadPool(THREADS);
 
-		this.grids = new LRULinkedHashMap<String,GridCoverage2D>(GRID_CACHE_SIZE);
-		this.currentGrids = new HashMap<String,Future<GridCoverage2D>>();
+		this.scheme = scheme;
+		this.tiles = new AtomicReferenceArray<TileEntry>(scheme == null ? 0 : scheme.getTileCount());
+		this.cacheSize = cacheSize;
 
 		this.wrap = wrap;
+		this.mode = InterpolationMode.NEAREST;
+
+		this.log = Logger.getLogger(this.getClass().getName());
+	}
+
+	/**
+	 * For subclasses which get their tiles from another provider. No tiles
+	 * are cached here and no loading threads are started, so
+	 * {@link #loadSampler(int)} and {@link #prefetchGrid(Coordinate)} must be
+	 * overridden.
+	 * @param delegate Provider which loads the tiles. May be null.
+	 */
+	protected GridCoverageElevationProvider(GridCoverageElevationProvider delegate) {
+		this.executor = null;
+
+		this.scheme = delegate == null ? null : delegate.getTileScheme();
+		this.tiles = new AtomicReferenceArray<TileEntry>(0);
+		this.cacheSize = 0;
+
+		this.wrap = true;
+		this.mode = InterpolationMode.NEAREST;
 
 		this.log = Logger.getLogger(this.getClass().getName());
 	}
@@ -65,29 +98,61 @@ public abstract class GridCoverageElevationProvider extends AbstractElevationPro
 //		}
 //	}
 
-	public synchronized GridCoverage2D loadGrid(Coordinate coord) throws DataUnavailableException {
-		// Get the tile prefix, eg 'w140n40'
-		String tile = getTileName(coord);
+	/**
+	 * Get the grid containing a coordinate, waiting for it to load if needed.
+	 *
+	 * No lock is held while waiting, so other threads may continue using
+	 * loaded tiles. If the load fails the tile is forgotten, so that later
+	 * calls will try again.
+	 * @param coord A coordinate in the tile
+	 * @return The tile's grid
+	 * @throws DataUnavailableException If the tile could not be loaded
+	 */
+	public GridCoverage2D loadGrid(Coordinate coord) throws DataUnavailableException {
+		return loadGrid(scheme.getTileIndex(coord.x, coord.y));
+	}
+
+	/**
+	 * Get a grid by its index in the {@link TileScheme}, waiting for it to
+	 * load if needed.
+	 * @param tile Tile index
+	 * @return The tile's grid
+	 * @throws DataUnavailableException If the tile could not be loaded
+	 * @see #loadGrid(Coordinate)
+	 */
+	public GridCoverage2D loadGrid(int tile) throws DataUnavailableException {
+		return loadSampler(tile).getGrid();
+	}
 
-		// check if the grid is already cached
-		if(grids.containsKey(tile)) {
-			return grids.get(tile);
-		}
+	/**
+	 * Get the sampler for a tile, waiting for it to load if needed.
+	 * @param tile Tile index
+	 * @return A sampler for the tile's grid
+	 * @throws DataUnavailableException If the tile could not be loaded
+	 * @see #loadGrid(int)
+	 */
+	public TileSampler loadSampler(int tile) throws DataUnavailableException {
+		TileEntry entry = getEntry(tile);
 
-		// Start asynchronous download, if needed
-		prefetchGrid(coord);
-		Future<GridCoverage2D> result = currentGrids.get(tile);
+		// check if the grid is already loaded
+		TileSampler sampler = entry.sampler;
+		if(sampler != null) {
+			return sampler;
+		}
 
 		try {
 			// Wait for the download to finish & tile to load
-			GridCoverage2D coverage = result.get();
-
-			grids.put(tile,coverage);
-		} catch (Exception e) {
-			throw new DataUnavailableException("Unable to load grid "+tile,e);
+			entry.get();
+			return entry.sampler;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataUnavailableException("Interrupted while loading grid "+
+					scheme.getTileName(tile),e);
+		} catch (ExecutionException e) {
+			tiles.compareAndSet(tile,entry,null);
+			throw new DataUnavailableException("Unable to load grid "+
+					scheme.getTileName(tile),e.getCause());
 		}
-
-		return grids.get(tile);
 	}
 
 
@@ -96,58 +161,160 @@ public abstract class GridCoverageElevationProvider extends AbstractElevationPro
 	 */
 	@Override
 	protected void finalize() {
-		executor.shutdownNow(); // kill waiting thread loads
+		if(executor != null) {
+			executor.shutdownNow(); // kill waiting thread loads
+		}
 	}
 
 
 	/**
-	 * Helper function for managing the thread pool
+	 * Find the registry entry for a tile, starting a load if it is not present.
+	 * Also marks the tile as recently used.
+	 * @param tile Tile index
+	 * @return The (possibly still loading) entry
+	 */
+	private TileEntry getEntry(int tile) {
+		if(executor == null) {
+			throw new IllegalStateException(getClass().getSimpleName()+" does not load its own tiles");
+		}
+		TileEntry entry = tiles.get(tile);
+		while(entry == null) {
+			TileEntry created = new TileEntry(createLazyLoader(tile));
+			if(tiles.compareAndSet(tile,null,created)) {
+				// Won the race, so start the load
+				entry = created;
+				executor.execute(entry);
+				evict();
+			} else {
+				entry = tiles.get(tile);
+			}
+		}
+		entry.lastAccess = System.nanoTime();
+		return entry;
+	}
+
+	/**
+	 * Defer {@link #createTileLoader(int)} until the load runs, so that
+	 * threads which lose the race for a tile don't create loaders
+	 */
+	private Callable<GridCoverage2D> createLazyLoader(final int tile) {
+		return new Callable<GridCoverage2D>() {
+			@Override
+			public GridCoverage2D call() throws Exception {
+				Callable<GridCoverage2D> loader = createTileLoader(tile);
+				ElevationMetrics metrics = tileMetrics;
+				if( metrics != null ) {
+					loader = metrics.time(loader);
+				}
+				return loader.call();
+			}
+		};
+	}
+
+	/**
+	 * Remove the least recently used tiles until the cache size is reached.
 	 *
+	 * Tiles which are still loading are never removed. Since access times are
+	 * updated without locking, this only approximates LRU order.
+	 */
+	private void evict() {
+		while(true) {
+			int loaded = 0;
+			int oldest = -1;
+			TileEntry oldestEntry = null;
+			for(int tile=0;tile<tiles.length();tile++) {
+				TileEntry entry = tiles.get(tile);
+				if( entry == null ) {
+					continue;
+				}
+				loaded++;
+				if( !entry.isDone() ) {
+					continue;
+				}
+				if(oldestEntry == null || entry.lastAccess - oldestEntry.lastAccess < 0) {
+					oldest = tile;
+					oldestEntry = entry;
+				}
+			}
+			if(loaded <= cacheSize || oldest < 0) {
+				// Small enough, or everything is still loading
+				return;
+			}
+			tiles.compareAndSet(oldest,oldestEntry,null);
+		}
+	}
+
+	/**
 	 * @param tile
 	 * @return true if the tile is fully loaded, false if the tile is unloaded or in progress
 	 */
-	private synchronized boolean isAvailable(String tile) {
-		boolean avail = !currentGrids.containsKey(tile) || currentGrids.get(tile).isDone();
-		return avail && grids.containsKey(tile);
+	private boolean isAvailable(int tile) {
+		TileEntry entry = tiles.get(tile);
+		return entry != null && entry.sampler != null;
 	}
 
 	/**
 	 * Pre-fetch files describing a grid tile
 	 * @param coord A coordinate in the tile
-	 * @return
+	 * @return true if the tile is already loaded
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
-	public synchronized boolean prefetchGrid(Coordinate coord) throws DataUnavailableException {
-
-		// Get the tile prefix, eg 'w140n40'
-		final String tile = getTileName(coord);
+	public boolean prefetchGrid(Coordinate coord) throws DataUnavailableException {
+		int tile = scheme.getTileIndex(coord.x, coord.y);
 
 		// check if the grid is already cached
 		if( isAvailable(tile) ) {
 			return true;
 		}
-		// already being loaded
-		if(  currentGrids.containsKey(tile) ) {
-			return false;
-		}
 
-		// Create thread to load Grid
-		Future<GridCoverage2D> result = executor.submit( createTileLoader(coord) );
+		return getEntry(tile).sampler != null;
+	}
 
-		currentGrids.put(tile,result);
-		return false;
+	/**
+	 * Start loading the tile containing a coordinate.
+	 * Coordinates off the map are wrapped or ignored, as for
+	 * {@link #fetchElevation(Coordinate)}.
+	 */
+	@Override
+	public boolean prefetch(Coordinate coord) throws DataUnavailableException {
+		if( wrap ) {
+			coord = ProjectionTools.wrapCoordinate(coord);
+		} else if( coord.x <= -90 || 90 < coord.x ||
+				coord.y < -180 || 180 <= coord.y ) {
+			// Nothing to load
+			return true;
+		}
+		return prefetchGrid(coord);
 	}
 
+	/**
+	 * @param tile Tile index
+	 * @return A task which loads the tile's grid
+	 */
+	protected abstract Callable<GridCoverage2D> createTileLoader(int tile);
+
+	public TileScheme getTileScheme() {
+		return scheme;
+	}
 
 	/**
-	 * Get the tile name for a given coordinate
-	 * @param coord
-	 * @return
+	 * Record tile loading
+	 * @param tiles Records each tile load, or null
+	 * @param files Records waits for tile files, including downloads, or null.
+	 *  Used by subclasses through {@link #getFileMetrics()}.
 	 */
-	protected abstract String getTileName(Coordinate coord);
+	public void setTileMetrics(ElevationMetrics tiles, ElevationMetrics files) {
+		this.tileMetrics = tiles;
+		this.fileMetrics = files;
+	}
 
-	protected abstract Callable<GridCoverage2D> createTileLoader(Coordinate coord);
+	/**
+	 * @return Metrics for waits on tile files, or null
+	 */
+	protected ElevationMetrics getFileMetrics() {
+		return fileMetrics;
+	}
 
 	/**
 	 * Gets elevation for a coordinate giving (lat,lon). Note that latitude
@@ -172,17 +339,145 @@ public abstract class GridCoverageElevationProvider extends AbstractElevationPro
 				return null;
 			}
 		}
-		GridCoverage2D grid = loadGrid(point);
-		// Change from (lat,lon) convention to (x,y)
-		DirectPosition pos = new DirectPosition2D(point.y,point.x);
-		double elev = grid.evaluate(pos,(double[])null)[0];
-		return elev;
+		TileSampler sampler = loadSampler(scheme.getTileIndex(point.x, point.y));
+		double[] out = new double[1];
+		evaluate(sampler, new double[] {point.x}, new double[] {point.y}, new int[] {0}, 1, out);
+		return out[0];
+	}
+
+	/**
+	 * Groups the points by tile, so that each tile is looked up once and all
+	 * of its points are evaluated together. Requests for a single chunk
+	 * usually fall within one tile.
+	 */
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		int n = lat.length;
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		int[] tileIndices = new int[n];
+		int[] pending = new int[n]; // indices not yet evaluated
+		int remaining = 0;
+
+		for(int i=0;i<n;i++) {
+			double x = lat[i];
+			double y = lon[i];
+			if( wrap ) {
+				// Convert coordinates to valid lat=(-90,90], lon=[-180,180)
+				x = ProjectionTools.wrapLatitude(x);
+				y = ProjectionTools.wrapLongitude(y);
+			} else {
+				if( x <= -90 || 90 < x ||
+						y < -180 || 180 <= y ) {
+					// Coordinates off the map
+					out[i] = Double.NaN;
+					continue;
+				}
+			}
+			lats[i] = x;
+			lons[i] = y;
+			tileIndices[i] = scheme.getTileIndex(x, y);
+			pending[remaining++] = i;
+		}
+
+		int[] group = new int[n];
+		while(remaining > 0) {
+			// Load the tile containing the first pending point
+			int tile = tileIndices[pending[0]];
+			TileSampler sampler = loadSampler(tile);
+
+			// Split off the other points in the same tile
+			int size = 0;
+			int rest = 0;
+			for(int k=0;k<remaining;k++) {
+				int i = pending[k];
+				if( tileIndices[i] == tile ) {
+					group[size++] = i;
+				} else {
+					pending[rest++] = i;
+				}
+			}
+			remaining = rest;
+
+			evaluate(sampler, lats, lons, group, size, out);
+		}
+	}
+
+	/**
+	 * Evaluate a grid at several positions, using the current
+	 * {@link InterpolationMode}
+	 * @param sampler Sampler for the grid containing all the positions
+	 * @param lat Latitudes
+	 * @param lon Longitudes
+	 * @param points Indices into lat, lon and out of the positions to evaluate
+	 * @param count Number of valid entries in points
+	 * @param out Array to store the elevations in
+	 * @throws DataUnavailableException
+	 */
+	protected void evaluate(TileSampler sampler, double[] lat, double[] lon,
+			int[] points, int count, double[] out) throws DataUnavailableException {
+		if( mode == InterpolationMode.BILINEAR ) {
+			for(int k=0;k<count;k++) {
+				int i = points[k];
+				out[i] = sampler.bilinear(lat[i], lon[i]);
+			}
+		} else {
+			for(int k=0;k<count;k++) {
+				int i = points[k];
+				out[i] = sampler.nearest(lat[i], lon[i]);
+			}
+		}
+	}
+
+	public InterpolationMode getInterpolationMode() {
+		return mode;
+	}
+	/**
+	 * @param mode How to estimate elevations between samples. Bilinear
+	 *  interpolation extends the outermost samples along tile edges.
+	 */
+	public void setInterpolationMode(InterpolationMode mode) {
+		this.mode = mode;
 	}
 	public boolean isWrap() {
 		return wrap;
 	}
+	/**
+	 * @return The executor which loads tiles, or null if they are loaded by
+	 *  another provider
+	 */
 	public ExecutorService getExecutor() {
 		return executor;
 	}
 
+	/**
+	 * A tile which is loaded or being loaded
+	 */
+	private static final class TileEntry extends FutureTask<GridCoverage2D> {
+		// Set once loading succeeds, for reads which don't touch the future
+		volatile TileSampler sampler;
+		// System.nanoTime() of the most recent use
+		volatile long lastAccess;
+
+		public TileEntry(Callable<GridCoverage2D> loader) {
+			super(loader);
+		}
+
+		/**
+		 * Fails the load, rather than leaving it incomplete, if the grid
+		 * can't be sampled
+		 */
+		@Override
+		protected void set(GridCoverage2D v) {
+			try {
+				sampler = new TileSampler(v);
+			} catch(Throwable e) {
+				setException(e);
+				return;
+			}
+			super.set(v);
+		}
+	}
+
 }
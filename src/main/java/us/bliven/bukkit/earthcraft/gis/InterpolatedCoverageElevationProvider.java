@@ -2,29 +2,28 @@ package us.bliven.bukkit.earthcraft.gis;
 
 import java.util.concurrent.Callable;
 
-import javax.media.jai.Interpolation;
-import javax.media.jai.InterpolationBicubic;
-
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.Interpolator2D;
-import org.opengis.coverage.PointOutsideCoverageException;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
+/**
+ * Bicubic interpolation over the tiles of another GridCoverageElevationProvider.
+ *
+ * Uses a Catmull-Rom kernel on the raw samples. Near tile edges, the 4x4
+ * kernel is filled from the neighboring tiles (wrapping around the
+ * antimeridian and clamping at the poles), so there are no seams between tiles.
+ * @author Spencer Bliven
+ */
 public class InterpolatedCoverageElevationProvider
 extends GridCoverageElevationProvider {// implements Configurable {
 
 	private GridCoverageElevationProvider provider;
-	private Interpolation interpolation;
 
 
 	public InterpolatedCoverageElevationProvider(GridCoverageElevationProvider provider) {
+		// Tiles are loaded by the provider, so no cache or threads are needed here
+		super(provider);
 		this.provider = provider;
-
-		interpolation = new InterpolationBicubic(16);
-		//interpolation = new InterpolationBilinear();
-		//interpolation = new InterpolationNearest();
-
 	}
 	/**
 	 * @deprecated For use with initFromConfig
@@ -56,48 +55,126 @@ extends GridCoverageElevationProvider {// implements Configurable {
 //		}
 //	}
 
+	/**
+	 * Tiles are shared with the underlying provider
+	 */
 	@Override
-	protected String getTileName(Coordinate coord) {
-		return provider.getTileName(coord);
+	public GridCoverage2D loadGrid(Coordinate coord) throws DataUnavailableException {
+		return provider.loadGrid(coord);
 	}
 
 	@Override
-	protected Callable<GridCoverage2D> createTileLoader(Coordinate coord) {
-		Callable<GridCoverage2D> provider = this.provider.createTileLoader(coord);
+	public boolean prefetchGrid(Coordinate coord) throws DataUnavailableException {
+		return provider.prefetchGrid(coord);
+	}
 
-		return new InterpolatedCoverageLoader(provider,interpolation);
+	@Override
+	public TileSampler loadSampler(int tile) throws DataUnavailableException {
+		return provider.loadSampler(tile);
 	}
 
 	@Override
-	public Double fetchElevation(Coordinate coord) throws DataUnavailableException {
-		try {
-			return super.fetchElevation(coord);
-		} catch( PointOutsideCoverageException e) {
-			// Can't interpolate at boundaries of tiles
-			// Use nearest neighbor, which will leave a hard edge at tile boundaries
-			return provider.fetchElevation(coord);
-			// TODO Do manual interpolation or whatever GeoTools suggests
-		}
+	protected Callable<GridCoverage2D> createTileLoader(int tile) {
+		return provider.createTileLoader(tile);
 	}
 
-	protected static class InterpolatedCoverageLoader implements Callable<GridCoverage2D> {
-		private Callable<GridCoverage2D> provider;
-		private Interpolation interpolation;
+	public GridCoverageElevationProvider getElevationProvider() {
+		return provider;
+	}
 
-		public InterpolatedCoverageLoader(Callable<GridCoverage2D> provider, Interpolation interpolation) {
-			this.provider = provider;
-			this.interpolation = interpolation;
+	@Override
+	protected void evaluate(TileSampler sampler, double[] lat, double[] lon,
+			int[] points, int count, double[] out) throws DataUnavailableException {
+		// Reused for each point
+		double[] wx = new double[4];
+		double[] wy = new double[4];
+
+		for(int k=0;k<count;k++) {
+			int i = points[k];
+			out[i] = interpolate(sampler, lat[i], lon[i], wx, wy);
 		}
+	}
 
-		@Override
-		public GridCoverage2D call() throws Exception {
-			GridCoverage2D coverage = provider.call();
+	/**
+	 * Interpolate a single position
+	 * @param wx Buffer of length 4 for the column weights
+	 * @param wy Buffer of length 4 for the row weights
+	 */
+	private double interpolate(TileSampler sampler, double lat, double lon,
+			double[] wx, double[] wy) throws DataUnavailableException {
+		double north = sampler.getNorth();
+		double west = sampler.getWest();
+		double cellWidth = sampler.getCellWidth();
+		double cellHeight = sampler.getCellHeight();
+
+		// Position in pixels, relative to the cell centers
+		double x = (lon-west)/cellWidth - .5;
+		double y = (north-lat)/cellHeight - .5;
+		int col = (int) Math.floor(x);
+		int row = (int) Math.floor(y);
+
+		cubicWeights(x-col, wx);
+		cubicWeights(y-row, wy);
+
+		double elev = 0;
+		if( 1 <= col && col+2 < sampler.getWidth() && 1 <= row && row+2 < sampler.getHeight() ) {
+			// Kernel lies entirely within this tile
+			for(int j=0;j<4;j++) {
+				double sum = 0;
+				for(int i=0;i<4;i++) {
+					sum += wx[i]*sampler.getSample(col-1+i, row-1+j);
+				}
+				elev += wy[j]*sum;
+			}
+		} else {
+			// Gather samples from the neighboring tiles
+			for(int j=0;j<4;j++) {
+				double sampleLat = north-(row-1+j+.5)*cellHeight;
+				double sum = 0;
+				for(int i=0;i<4;i++) {
+					double sampleLon = west+(col-1+i+.5)*cellWidth;
+					sum += wx[i]*getNeighborSample(sampleLat, sampleLon, cellHeight);
+				}
+				elev += wy[j]*sum;
+			}
+		}
+		return elev;
+	}
 
+	/**
+	 * Catmull-Rom weights for the four samples around a point
+	 * @param t Offset of the point past the second sample, in [0,1)
+	 * @param weights Output array of length 4
+	 */
+	private static void cubicWeights(double t, double[] weights) {
+		double t2 = t*t;
+		double t3 = t2*t;
+		weights[0] = -.5*t3 + t2 - .5*t;
+		weights[1] = 1.5*t3 - 2.5*t2 + 1;
+		weights[2] = -1.5*t3 + 2*t2 + .5*t;
+		weights[3] = .5*t3 - .5*t2;
+	}
 
-			GridCoverage2D interpolated;
-			interpolated = Interpolator2D.create(coverage,this.interpolation);
-			return interpolated;
+	/**
+	 * Get the sample from whichever tile contains the given cell center.
+	 * Longitudes wrap around, while latitudes beyond the poles are clamped
+	 * to the first or last row.
+	 * @param lat Latitude of the cell center
+	 * @param lon Longitude of the cell center
+	 * @param cellHeight Used for clamping latitudes
+	 * @return The sample value
+	 * @throws DataUnavailableException If the neighboring tile can't be loaded
+	 */
+	private double getNeighborSample(double lat, double lon, double cellHeight)
+			throws DataUnavailableException {
+		if( lat > 90 ) {
+			lat = 90-cellHeight/2;
+		} else if( lat <= -90 ) {
+			lat = -90+cellHeight/2;
 		}
+		lon = ProjectionTools.wrapLongitude(lon);
 
+		TileSampler sampler = provider.loadSampler(getTileScheme().getTileIndex(lat,lon));
+		return sampler.nearest(lat, lon);
 	}
 }
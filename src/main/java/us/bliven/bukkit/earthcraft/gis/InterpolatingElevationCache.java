@@ -1,15 +1,21 @@
 package us.bliven.bukkit.earthcraft.gis;
 
-import java.awt.Point;
+import java.io.Closeable;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.collections15.map.LRUMap;
 
-import com.google.common.collect.Lists;
+import us.bliven.bukkit.earthcraft.util.LongDoubleCache;
+
 import com.vividsolutions.jts.geom.Coordinate;
 
 
@@ -19,29 +25,83 @@ import com.vividsolutions.jts.geom.Coordinate;
  * <p>Reduces calls to the underlying provider by
  *  1. Only fetching points from a widely-spaced lattice, then interpolating between them
  *  2. Pre-fetching nearby grid points
+ *
+ * <p>Lattice points are cached by packing their (x,y) indices into a long.
+ * Optionally, they are also saved in a {@link LatticeStore} so that they
+ * survive restarts. Points whose page of the store is not yet in memory are
+ * treated like any other miss, and read from the store by the thread which
+ * claims them, outside the lock.
+ *
+ * <p>Prefetching happens on a background thread, so queries only wait for the
+ * points they need. The cache and prefetch set are guarded by this object's
+ * monitor, which is never held while calling the underlying provider or
+ * reading the store from disk.
+ *
+ * <p>Lattice points being fetched are tracked in an in-flight table, shared
+ * by queries and the prefetch worker. A query that misses on a point which
+ * is already being fetched waits for that fetch rather than repeating it.
+ *
+ * <p>Call {@link #close()} when the cache is no longer needed, to stop the
+ * prefetch thread and the store's writer.
  * @author Spencer Bliven
  */
-public class InterpolatingElevationCache implements ElevationProvider{//, Configurable {
+public class InterpolatingElevationCache implements ElevationProvider, Prefetchable, Closeable {//, Configurable {
 	private static final int MAX_ELEVATIONS_PER_SUBREQUEST = 36;
-	private static final int MAX_CACHE_SIZE = 1024;
+	private static final int MAX_CACHE_SIZE = 1024; // default
 	private static final int MAX_PREFETCH_SIZE = 512;
 	private static final int PREFETCH_RADIUS = 2; // radius outward from queries to prefetch
 
-	private ElevationProvider provider;
-	private LRUMap<Point,Object> prefetchStack;// Actually a LRUSet
+	private volatile ElevationProvider provider;
+	private LRUMap<Long,Object> prefetchStack;// Actually a LRUSet of lattice keys
+	private final ExecutorService prefetcher;
+	private boolean prefetching; // whether a PrefetchWorker is running
 	private Lattice lattice;
-	private LRUMap<Point,Double> cache;
+	private LongDoubleCache cache;
+	private Map<Long,Flight> inFlight; // lattice points being fetched
+	private LatticeStore store; // may be null
+	private InterpolationMode mode;
 
 	private static final Logger log = Logger.getLogger(InterpolatingElevationCache.class.getName());;
 
-	public InterpolatingElevationCache(ElevationProvider provider, Coordinate origin, Coordinate gridScale) {
+	/**
+	 * @param provider Source of elevations for lattice points
+	 * @param origin Coordinate of lattice point (0,0)
+	 * @param gridScale Spacing between lattice points
+	 * @param mode How to estimate elevations between lattice points
+	 * @param cacheSize Maximum number of lattice points to cache
+	 * @param storeDir Directory to persist lattice points in, or null to
+	 *  only cache them in memory
+	 */
+	public InterpolatingElevationCache(ElevationProvider provider, Coordinate origin, Coordinate gridScale,
+			InterpolationMode mode, int cacheSize, File storeDir) {
 		lattice = new Lattice(origin, gridScale);
 		this.provider = provider;
-		prefetchStack = new LRUMap<Point,Object>();
-		cache = new LRUMap<Point,Double>(MAX_CACHE_SIZE);
-		prefetchStack = new LRUMap<Point, Object>(MAX_PREFETCH_SIZE);
+		this.mode = mode;
+		cache = new LongDoubleCache(cacheSize);
+		store = storeDir == null ? null : new LatticeStore(storeDir, origin, gridScale);
+		prefetchStack = new LRUMap<Long, Object>(MAX_PREFETCH_SIZE);
+		inFlight = new HashMap<Long,Flight>();
+		prefetching = false;
+		prefetcher = Executors.newSingleThreadExecutor(new PrefetchThreadFactory());
+	}
 
-		
+	/**
+	 * Static, so that idle prefetch threads don't keep the cache reachable
+	 */
+	private static class PrefetchThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,"Elevation prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	public InterpolatingElevationCache(ElevationProvider provider, Coordinate origin, Coordinate gridScale,
+			InterpolationMode mode, int cacheSize) {
+		this(provider, origin, gridScale, mode, cacheSize, null);
+	}
+	public InterpolatingElevationCache(ElevationProvider provider, Coordinate origin, Coordinate gridScale) {
+		this(provider, origin, gridScale, InterpolationMode.NEAREST, MAX_CACHE_SIZE);
 	}
 	public InterpolatingElevationCache(ElevationProvider provider, Coordinate gridScale) {
 		this(provider, new Coordinate(0.,0.),gridScale);
@@ -69,126 +129,571 @@ public class InterpolatingElevationCache implements ElevationProvider{//, Config
 
 	@Override
 	public Double fetchElevation(Coordinate query) throws DataUnavailableException{
-		List<Double> q = fetchElevations(Lists.asList(query,new Coordinate[0]));
-		return q.get(0);
+		double[] elev = new double[1];
+		fetchElevations(new double[] {query.x}, new double[] {query.y}, elev);
+		return Double.isNaN(elev[0]) ? null : elev[0];
 	}
 
 	@Override
 	public List<Double> fetchElevations(List<Coordinate> queries) throws DataUnavailableException {
-		ArrayList<Double> results = new ArrayList<Double>(queries.size());
-		ArrayList<Point> uncached = new ArrayList<Point>();
-		ArrayList<Integer> uncachedIndices = new ArrayList<Integer>();
-
-		// Find uncached points
-		int qnum=0;
-		for(Coordinate query : queries) {
-			//TODO Linear interpolation, rather than nearest neighbor
-			Point gridLoc = lattice.getNearestNeighbor(query);
-			if(cache.containsKey(gridLoc)) {
-				// Also updates recency of gridLoc
-				Double elev = cache.get(gridLoc);
-				results.add(elev);
-			} else {
-				uncached.add(gridLoc);
-				uncachedIndices.add(qnum);
-				results.add(null);
+		int n = queries.size();
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		for(int i=0;i<n;i++) {
+			Coordinate query = queries.get(i);
+			lats[i] = query.x;
+			lons[i] = query.y;
+		}
 
+		double[] elevations = new double[n];
+		fetchElevations(lats, lons, elevations);
+
+		ArrayList<Double> results = new ArrayList<Double>(n);
+		for(double elev : elevations) {
+			results.add( Double.isNaN(elev) ? null : elev );
+		}
+		return results;
+	}
+
+	@Override
+	public void fetchElevations(double[] lats, double[] lons, double[] out) throws DataUnavailableException {
+		int corners = mode == InterpolationMode.BILINEAR ? 4 : 1;
+		long[] keys = new long[corners];
+		double[] values = new double[corners];
+
+		// Allocated on the first miss
+		LongDoubleCache needed = null; // lattice points used by incomplete queries
+		long[] uncached = null; // points this thread will fetch
+		int numUncached = 0;
+		long[] awaited = null; // points other threads are fetching
+		Flight[] awaitedFlights = null;
+		int numAwaited = 0;
+		int[] incomplete = null;
+		int numIncomplete = 0;
+
+		synchronized(this) {
+			// Answer queries from the cache where possible
+			for(int qnum=0;qnum<lats.length;qnum++) {
+				getLatticeKeys(lats[qnum], lons[qnum], keys);
+				boolean complete = true;
+				for(int c=0;c<corners;c++) {
+					if(cache.containsKey(keys[c]) || loadStored(keys[c])) {
+						values[c] = cache.get(keys[c]);
+					} else {
+						complete = false;
+					}
+				}
+				if(complete) {
+					out[qnum] = interpolate(lats[qnum], lons[qnum], values);
+					continue;
+				}
+
+				if(needed == null) {
+					needed = new LongDoubleCache(corners*lats.length);
+					uncached = new long[corners*lats.length];
+					awaited = new long[corners*lats.length];
+					awaitedFlights = new Flight[corners*lats.length];
+					incomplete = new int[lats.length];
+				}
+				incomplete[numIncomplete++] = qnum;
+				// Hold all points for this query, in case fetching evicts them from the cache
+				for(int c=0;c<corners;c++) {
+					if(needed.containsKey(keys[c])) {
+						continue;
+					}
+					if(cache.containsKey(keys[c])) {
+						needed.put(keys[c], cache.get(keys[c]));
+						continue;
+					}
+					needed.put(keys[c], Double.NaN);
+					Flight flight = inFlight.get(keys[c]);
+					if(flight != null) {
+						awaited[numAwaited] = keys[c];
+						awaitedFlights[numAwaited++] = flight;
+					} else {
+						inFlight.put(keys[c], new Flight());
+						uncached[numUncached++] = keys[c];
+					}
+				}
+				out[qnum] = Double.NaN;
 			}
 
-			qnum++;
+			// Add neighbors of queries which missed to precache. Queries
+			// answered from the cache are presumably surrounded by cached points.
+			for(int i=0;i<numIncomplete;i++) {
+				prefetchNeighbors(lats[incomplete[i]], lons[incomplete[i]]);
+			}
+
+			// remove requested points from prefetchStack to remove redundancy
+			for(int i=0;i<numUncached;i++) {
+				prefetchStack.remove(uncached[i]);
+			}
 		}
 
-		// Add neighbors to precache
-		prefetchNeighbors(queries);
+		startPrefetch();
+
+		// Fetch our own points, then wait for those other threads are
+		// fetching. If one of their fetches fails, claim its points and fetch
+		// them before waiting on anything else, so that no thread waits while
+		// holding a claim.
+		try {
+			while(numUncached > 0 || numAwaited > 0) {
+				if(numUncached > 0) {
+					// fetchUncached releases its points, even if it fails
+					int count = numUncached;
+					numUncached = 0;
+					fetchUncached(uncached, count, needed);
+				}
+				synchronized(this) {
+					int remaining = 0;
+					for(int i=0;i<numAwaited;i++) {
+						long key = awaited[i];
+						Flight flight = awaitedFlights[i];
+						if(numUncached > 0 && !flight.done) {
+							// Check again after fetching our claims
+							awaited[remaining] = key;
+							awaitedFlights[remaining++] = flight;
+							continue;
+						}
+						while(!flight.done) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new DataUnavailableException("Interrupted while waiting for elevations", e);
+							}
+						}
+						if(!flight.failed) {
+							needed.put(key, flight.elevation);
+						} else if(cache.containsKey(key)) {
+							needed.put(key, cache.get(key));
+						} else if(inFlight.containsKey(key)) {
+							awaited[remaining] = key;
+							awaitedFlights[remaining++] = inFlight.get(key);
+						} else {
+							inFlight.put(key, new Flight());
+							uncached[numUncached++] = key;
+						}
+					}
+					numAwaited = remaining;
+				}
+			}
+		} finally {
+			if(numUncached > 0) {
+				// Release claims we will never fetch
+				synchronized(this) {
+					for(int i=0;i<numUncached;i++) {
+						land(uncached[i], Double.NaN, true);
+					}
+					notifyAll();
+				}
+			}
+		}
 
-		if(uncached.size() == 0) {
-			// Fully cached
-			return results;
+		// Finish the incomplete queries
+		for(int i=0;i<numIncomplete;i++) {
+			int qnum = incomplete[i];
+			getLatticeKeys(lats[qnum], lons[qnum], keys);
+			for(int c=0;c<corners;c++) {
+				values[c] = needed.get(keys[c]);
+			}
+			out[qnum] = interpolate(lats[qnum], lons[qnum], values);
 		}
+	}
 
-		// remove requested points from prefetchStack to remove redundancy
-		for(Point p : uncached) {
-			prefetchStack.remove(p);
+	/**
+	 * Fetch lattice points which this thread has claimed in the in-flight
+	 * table, then publish them to the cache and to any waiting threads.
+	 * Points are read from the persistent store if possible, and otherwise
+	 * from the provider.
+	 * If the provider fails, the remaining points are released so that
+	 * waiters can retry them.
+	 * @param uncached Lattice keys. Reordered.
+	 * @param numUncached Number of keys to fetch
+	 * @param needed Receives the elevations
+	 */
+	private void fetchUncached(long[] uncached, int numUncached, LongDoubleCache needed)
+			throws DataUnavailableException {
+		int page = 0;
+		try {
+			numUncached = readStored(uncached, numUncached, needed);
+			for(;page < numUncached; page += MAX_ELEVATIONS_PER_SUBREQUEST) {
+				int requestSize = Math.min(numUncached-page, MAX_ELEVATIONS_PER_SUBREQUEST);
+				double[] requestLats = new double[requestSize];
+				double[] requestLons = new double[requestSize];
+				for(int i=0;i<requestSize;i++) {
+					long key = uncached[page+i];
+					requestLats[i] = lattice.getCoordinateX(getLatticeX(key));
+					requestLons[i] = lattice.getCoordinateY(getLatticeY(key));
+				}
+				// Actual call to provider
+				double[] elevations = new double[requestSize];
+				provider.fetchElevations(requestLats, requestLons, elevations);
+
+				// Store results & cache them
+				for(int i=0;i<requestSize;i++) {
+					needed.put(uncached[page+i], elevations[i]);
+				}
+				synchronized(this) {
+					for(int i=0;i<requestSize;i++) {
+						cache.put(uncached[page+i], elevations[i]);
+						land(uncached[page+i], elevations[i], false);
+					}
+					notifyAll();
+				}
+				storeElevations(uncached, page, requestSize, elevations);
+			}
+		} finally {
+			if(page < numUncached) {
+				synchronized(this) {
+					for(int i=page;i<numUncached;i++) {
+						land(uncached[i], Double.NaN, true);
+					}
+					notifyAll();
+				}
+			}
 		}
+	}
 
-		// Fill uncached queue with prefetch points
-		for(int i=((uncached.size()-1)%MAX_ELEVATIONS_PER_SUBREQUEST)+1;
-			i< MAX_ELEVATIONS_PER_SUBREQUEST && !prefetchStack.isEmpty(); i++)
-		{
-			// pop the first prefetch location
-			Point gridLoc = prefetchStack.firstKey();
-			prefetchStack.remove(gridLoc);
-			// Add to next query
-			uncached.add(gridLoc);
+	/**
+	 * Complete a fetch, removing it from the in-flight table.
+	 * Caller must hold the lock, and should notify waiters.
+	 */
+	private void land(long key, double elevation, boolean failed) {
+		Flight flight = inFlight.remove(key);
+		if(flight != null) {
+			flight.elevation = elevation;
+			flight.failed = failed;
+			flight.done = true;
 		}
-		assert(uncached.size()%MAX_ELEVATIONS_PER_SUBREQUEST == 0 || prefetchStack.isEmpty());
+	}
+
+	/**
+	 * A pending fetch of one lattice point. Guarded by the cache's monitor.
+	 */
+	private static class Flight {
+		double elevation = Double.NaN;
+		boolean done = false;
+		boolean failed = false;
+	}
 
-		// Fetch results for uncached
-		for(int page=0;page < uncached.size(); page += MAX_ELEVATIONS_PER_SUBREQUEST) {
-			int pageEnd = Math.min(uncached.size(), page+MAX_ELEVATIONS_PER_SUBREQUEST);
-			List<Point> currRequestPts = uncached.subList(page, pageEnd);
-			int pageEndIndices = Math.min(uncachedIndices.size(),pageEnd);
-			List<Integer> currIndices = uncachedIndices.subList(page, pageEndIndices);
-			List<Coordinate> currRequest = lattice.getCoordinates(currRequestPts);
-			// Actual call to provider
-			List<Double> elevations = provider.fetchElevations(currRequest);
+	/**
+	 * Get the lattice points needed to estimate the elevation at a query
+	 * @param lat
+	 * @param lon
+	 * @param keys Output; one key for NEAREST, or four for BILINEAR in the
+	 *  order (x,y), (x+1,y), (x,y+1), (x+1,y+1)
+	 */
+	private void getLatticeKeys(double lat, double lon, long[] keys) {
+		double x = lattice.getScaledX(lat);
+		double y = lattice.getScaledY(lon);
+		switch(mode) {
+		case BILINEAR:
+			int x0 = (int) Math.floor(x);
+			int y0 = (int) Math.floor(y);
+			keys[0] = getLatticeKey(x0, y0);
+			keys[1] = getLatticeKey(x0+1, y0);
+			keys[2] = getLatticeKey(x0, y0+1);
+			keys[3] = getLatticeKey(x0+1, y0+1);
+			break;
+		case NEAREST:
+		default:
+			keys[0] = getLatticeKey((int) Math.round(x), (int) Math.round(y));
+			break;
+		}
+	}
 
-			assert(elevations.size() == currRequest.size());
+	/**
+	 * Estimate the elevation at a query from its lattice points
+	 * @param lat
+	 * @param lon
+	 * @param values Elevations for the points from {@link #getLatticeKeys(double, double, long[])}
+	 * @return
+	 */
+	private double interpolate(double lat, double lon, double[] values) {
+		switch(mode) {
+		case BILINEAR:
+			double x = lattice.getScaledX(lat);
+			double y = lattice.getScaledY(lon);
+			double dx = x - Math.floor(x);
+			double dy = y - Math.floor(y);
+			double low = values[0] + (values[1]-values[0])*dx;
+			double high = values[2] + (values[3]-values[2])*dx;
+			return low + (high-low)*dy;
+		case NEAREST:
+		default:
+			return values[0];
+		}
+	}
 
-			// Store results & cache them
-			Iterator<Double> elevationsIt = elevations.iterator();
-			Iterator<Integer> currIndexIt = currIndices.iterator();
-			Iterator<Point> currRequestIt = currRequestPts.iterator();
-			while(currIndexIt.hasNext()) {
+	private static long getLatticeKey(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+	private static int getLatticeX(long key) {
+		return (int)(key >> 32);
+	}
+	private static int getLatticeY(long key) {
+		return (int)key;
+	}
 
-				assert(currRequestIt.hasNext()); // Should be at least as large due to prefetching
-				assert(elevationsIt.hasNext());
 
-				int index = currIndexIt.next();
-				Point gridLoc = currRequestIt.next();
-				Double elevation = elevationsIt.next();
+	/**
+	 * Suggests a set of coordinates as likely candidates for future calls,
+	 * allowing them to be pre-fetched in the background.
+	 *
+	 * Useful for initially filling a new cache.
+	 * @param queries
+	 */
+	public void prefetchNeighbors(List<Coordinate> queries) {
+		synchronized(this) {
+			for(Coordinate query: queries) {
+				prefetchNeighbors(query.x, query.y);
+			}
+		}
+		startPrefetch();
+	}
 
-				// Store results
-				results.set(index,elevation);
-				cache.put(gridLoc, elevation);
+	/**
+	 * Add the lattice points around a query to the prefetch set. These are
+	 * the same points as {@link Lattice#getNeighbors(Coordinate, int)} with
+	 * distance {@link #PREFETCH_RADIUS}, computed directly as keys.
+	 * Caller must hold the lock.
+	 */
+	private void prefetchNeighbors(double lat, double lon) {
+		int x0 = (int) lattice.getScaledX(lat);
+		int y0 = (int) lattice.getScaledY(lon);
+		for(int d=1;d<=PREFETCH_RADIUS;d++) {
+			for(int x=0;x<d;x++) {
+				int y=d-1-x;
+				prefetchNeighbor(getLatticeKey(x0+x+1, y0+y+1));
+				prefetchNeighbor(getLatticeKey(x0-x, y0+y+1));
+				prefetchNeighbor(getLatticeKey(x0-x, y0-y));
+				prefetchNeighbor(getLatticeKey(x0+x+1, y0-y));
 			}
+		}
+	}
 
-			// Remaining results were prefetched.
-			while(elevationsIt.hasNext()) {
-				assert(currRequestIt.hasNext());
+	private void prefetchNeighbor(long key) {
+		if(!cache.containsKey(key)) {
+			// either add neighbor or update recency
+			prefetchStack.put(key, null);
+		}
+	}
 
-				Point gridLoc = currRequestIt.next();
-				Double elevation = elevationsIt.next();
+	/**
+	 * Copy a lattice point from the persistent store into the cache, if its
+	 * page is already in memory. Never reads from disk.
+	 * Caller must hold the lock.
+	 * @param key
+	 * @return true if the point was stored
+	 */
+	private boolean loadStored(long key) {
+		if(store == null) {
+			return false;
+		}
+		double elevation = store.getLoaded(getLatticeX(key), getLatticeY(key));
+		if(Double.isNaN(elevation)) {
+			return false;
+		}
+		cache.put(key, elevation);
+		return true;
+	}
 
-				cache.put(gridLoc, elevation);
+	/**
+	 * Read claimed lattice points from the persistent store, publishing those
+	 * which are found. Caller must not hold the lock, since this may read
+	 * from disk.
+	 * @param claimed Lattice keys claimed by this thread. The points which
+	 *  were not stored are moved to the front.
+	 * @param numClaimed Number of keys
+	 * @param needed Receives the stored elevations, or null
+	 * @return The number of points which were not stored
+	 */
+	private int readStored(long[] claimed, int numClaimed, LongDoubleCache needed) {
+		if(store == null) {
+			return numClaimed;
+		}
+		long[] found = new long[numClaimed];
+		double[] elevations = new double[numClaimed];
+		int numFound = 0;
+		int remaining = 0;
+		for(int i=0;i<numClaimed;i++) {
+			long key = claimed[i];
+			int x = getLatticeX(key);
+			int y = getLatticeY(key);
+			if(store.contains(x, y)) {
+				found[numFound] = key;
+				elevations[numFound++] = store.get(x, y);
+			} else {
+				claimed[remaining++] = key;
 			}
+		}
+		if(numFound > 0) {
+			synchronized(this) {
+				for(int i=0;i<numFound;i++) {
+					if(needed != null) {
+						needed.put(found[i], elevations[i]);
+					}
+					cache.put(found[i], elevations[i]);
+					land(found[i], elevations[i], false);
+				}
+				notifyAll();
+			}
+		}
+		return remaining;
+	}
 
+	/**
+	 * Save newly fetched lattice points in the persistent store.
+	 * Missing elevations are only cached in memory, since the failure may
+	 * be temporary.
+	 * Caller must not hold the lock, since this may read from disk.
+	 */
+	private void storeElevations(long[] keys, int offset, int length, double[] elevations) {
+		if(store == null) {
+			return;
+		}
+		for(int i=0;i<length;i++) {
+			if(!Double.isNaN(elevations[i])) {
+				store.put(getLatticeX(keys[offset+i]), getLatticeY(keys[offset+i]), elevations[i]);
+			}
 		}
+	}
 
+	/**
+	 * Write any lattice points which have not yet been persisted to disk.
+	 * This also happens periodically in the background.
+	 */
+	public void flush() {
+		if(store != null) {
+			store.flush();
+		}
+	}
 
-		return results;
+	/**
+	 * Start a background worker to drain the prefetch set, unless one is
+	 * already running
+	 */
+	private synchronized void startPrefetch() {
+		if(prefetching || prefetchStack.isEmpty() || prefetcher.isShutdown()) {
+			return;
+		}
+		prefetching = true;
+		prefetcher.execute(new PrefetchWorker());
 	}
 
+	/**
+	 * Wait until the prefetch set has been drained
+	 * @throws InterruptedException
+	 */
+	synchronized void awaitPrefetch() throws InterruptedException {
+		while(prefetching) {
+			wait();
+		}
+	}
 
 	/**
-	 * Suggests a set of coordinates as likely candidates for future calls,
-	 * allowing them to be pre-fetched in the background.
-	 *
-	 * Useful for initially filling a new cache.
-	 * @param queries
+	 * Stop background prefetching and save the persistent store.
+	 * The cache can still be queried.
 	 */
-	public void prefetchNeighbors(List<Coordinate> queries) {
-		for(Coordinate query: queries) {
-			Set<Point> neighbors = lattice.getNeighbors(query, PREFETCH_RADIUS);
-			for(Point neighbor : neighbors) {
-				if(!cache.containsKey(neighbor)) {
-					// either add neighbor or update recency
-					prefetchStack.put(neighbor, null);
+	@Override
+	public synchronized void close() {
+		prefetcher.shutdownNow();
+		if(prefetching) {
+			// The worker may have been interrupted before it finished
+			prefetching = false;
+			notifyAll();
+		}
+		if(store != null) {
+			store.shutdown();
+		}
+	}
+
+	@Override
+	protected void finalize() {
+		close();
+	}
+
+	/**
+	 * Fetches points from the prefetch set in batches until it is empty,
+	 * merging the results into the cache.
+	 */
+	private class PrefetchWorker implements Runnable {
+		@Override
+		public void run() {
+			long[] batch = new long[MAX_ELEVATIONS_PER_SUBREQUEST];
+			while(true) {
+				int batchSize = 0;
+				synchronized(InterpolatingElevationCache.this) {
+					// Stop once closed
+					while(batchSize < batch.length && !prefetchStack.isEmpty()
+							&& !Thread.currentThread().isInterrupted()) {
+						// pop the first prefetch location
+						long key = prefetchStack.firstKey();
+						prefetchStack.remove(key);
+						if(!cache.containsKey(key) && !inFlight.containsKey(key) && !loadStored(key)) {
+							inFlight.put(key, new Flight());
+							batch[batchSize++] = key;
+						}
+					}
+					if(batchSize == 0) {
+						prefetching = false;
+						InterpolatingElevationCache.this.notifyAll();
+						return;
+					}
+				}
+
+				batchSize = readStored(batch, batchSize, null);
+				if(batchSize == 0) {
+					continue;
+				}
+
+				double[] requestLats = new double[batchSize];
+				double[] requestLons = new double[batchSize];
+				for(int i=0;i<batchSize;i++) {
+					requestLats[i] = lattice.getCoordinateX(getLatticeX(batch[i]));
+					requestLons[i] = lattice.getCoordinateY(getLatticeY(batch[i]));
+				}
+				double[] elevations = new double[batchSize];
+				try {
+					provider.fetchElevations(requestLats, requestLons, elevations);
+				} catch(Exception e) {
+					// Points will be fetched on demand instead
+					log.log(Level.WARNING, "Unable to prefetch elevations", e);
+					synchronized(InterpolatingElevationCache.this) {
+						for(int i=0;i<batchSize;i++) {
+							land(batch[i], Double.NaN, true);
+						}
+						InterpolatingElevationCache.this.notifyAll();
+					}
+					continue;
+				}
+
+				synchronized(InterpolatingElevationCache.this) {
+					for(int i=0;i<batchSize;i++) {
+						cache.put(batch[i], elevations[i]);
+						land(batch[i], elevations[i], false);
+					}
+					InterpolatingElevationCache.this.notifyAll();
 				}
+				storeElevations(batch, 0, batchSize, elevations);
 			}
 		}
 	}
 
+	/**
+	 * Passes the request on to the underlying provider, if it supports
+	 * prefetching.
+	 */
+	@Override
+	public boolean prefetch(Coordinate coord) throws DataUnavailableException {
+		ElevationProvider provider = this.provider;
+		if( provider instanceof Prefetchable ) {
+			return ((Prefetchable) provider).prefetch(coord);
+		}
+		return true;
+	}
+
 	public void setElevationProvider(ElevationProvider provider) {
 		if(provider == null) {
 			throw new IllegalArgumentException("ElevationProvider may not me null.");
@@ -201,4 +706,8 @@ public class InterpolatingElevationCache implements ElevationProvider{//, Config
 		return provider;
 	}
 
+	public InterpolationMode getInterpolationMode() {
+		return mode;
+	}
+
 }
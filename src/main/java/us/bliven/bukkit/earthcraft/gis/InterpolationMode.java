@@ -0,0 +1,12 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+/**
+ * How to estimate elevations between the points of a lattice
+ * @author Spencer Bliven
+ */
+public enum InterpolationMode {
+	/** Use the closest lattice point */
+	NEAREST,
+	/** Weighted average of the four surrounding lattice points */
+	BILINEAR;
+}
@@ -82,12 +82,32 @@ class Lattice {
 	 * @return
 	 */
 	public Coordinate getCoordinate(Point gridPoint) {
-		double x = gridPoint.getX()*scale.x+origin.x;
-		double y = gridPoint.getY()*scale.y+origin.y;
+		double x = getCoordinateX(gridPoint.x);
+		double y = getCoordinateY(gridPoint.y);
 
 		return new Coordinate(x,y);
 	}
 
+	/**
+	 * Converts the x index of a lattice point to the x coordinate of the
+	 * original system.
+	 * @param gridX
+	 * @return
+	 */
+	public double getCoordinateX(int gridX) {
+		return gridX*scale.x+origin.x;
+	}
+
+	/**
+	 * Converts the y index of a lattice point to the y coordinate of the
+	 * original system.
+	 * @param gridY
+	 * @return
+	 */
+	public double getCoordinateY(int gridY) {
+		return gridY*scale.y+origin.y;
+	}
+
 	/**
 	 * Helper method to get coordinates for a whole list. Calls
 	 * {@link #getCoordinate(Point)} for each list element.
@@ -102,6 +122,26 @@ class Lattice {
 		return coordinates;
 	}
 
+	/**
+	 * Converts an x coordinate of the original system to lattice units.
+	 * Lattice points lie at integer values.
+	 * @param x
+	 * @return
+	 */
+	public double getScaledX(double x) {
+		return (x-origin.x)/scale.x;
+	}
+
+	/**
+	 * Converts a y coordinate of the original system to lattice units.
+	 * Lattice points lie at integer values.
+	 * @param y
+	 * @return
+	 */
+	public double getScaledY(double y) {
+		return (y-origin.y)/scale.y;
+	}
+
 	/**
 	 * Get the closest point to the query coordinate
 	 * @param query
@@ -0,0 +1,379 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Persists the elevations of lattice points to disk.
+ *
+ * <p>The lattice is divided into blocks of 64x64 points. Each block is stored
+ * as a fixed-size page file holding a header describing the lattice, a bitmap
+ * of known points, and their elevations. Pages are read the first time they
+ * are needed, without holding the store's lock, so that reading one page
+ * never blocks access to others. Changes are written back in batches by a
+ * background thread.
+ * Each page is written to a temporary file and renamed, so a crash never
+ * leaves a partial page.
+ * @author Spencer Bliven
+ */
+class LatticeStore {
+	private static final int MAGIC = 0x45435053;
+	private static final int BLOCK_BITS = 6;
+	private static final int BLOCK_SIZE = 1<<BLOCK_BITS; // lattice points per side
+	private static final int POINTS = BLOCK_SIZE*BLOCK_SIZE;
+	private static final int HEADER_SIZE = 4+4+4*8; // magic, block size, origin, scale
+	private static final int PAGE_SIZE = HEADER_SIZE + POINTS/8 + POINTS*8;
+
+	private static final int MAX_PAGES = 64; // pages to keep in memory
+	private static final int MAX_DIRTY = 16; // flush early once this many pages change
+	private static final long FLUSH_DELAY = 5; // seconds between background flushes
+
+	private final File dir;
+	private final Coordinate origin;
+	private final Coordinate scale;
+
+	// Recently used pages, by block key. Guarded by this.
+	private final LinkedHashMap<Long,Page> pages;
+	// Pages with unsaved changes. Guarded by this.
+	private Map<Long,Page> dirty;
+	// Pages currently being saved, which may not be on disk yet. Guarded by this.
+	private Map<Long,Page> writing;
+	// Number of completed flushes, to detect pages saved during a read. Guarded by this.
+	private int flushes;
+
+	private final Object flushLock = new Object(); // serializes writers
+	private final ScheduledExecutorService flusher;
+	private final Thread shutdownHook;
+
+	private static final Logger log = Logger.getLogger(LatticeStore.class.getName());
+
+	/**
+	 * @param dir Directory for page files
+	 * @param origin Lattice origin; stored pages for other lattices are ignored
+	 * @param scale Lattice scale
+	 */
+	public LatticeStore(File dir, Coordinate origin, Coordinate scale) {
+		this.dir = dir;
+		this.origin = origin;
+		this.scale = scale;
+
+		if(!dir.exists()) {
+			log.info("Creating "+dir.getAbsolutePath());
+			dir.mkdirs();
+		}
+
+		pages = new LinkedHashMap<Long,Page>(16,.75f,true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Page> eldest) {
+				// Dirty pages stay reachable through the dirty map until flushed
+				return size() > MAX_PAGES;
+			}
+		};
+		dirty = new HashMap<Long,Page>();
+		writing = new HashMap<Long,Page>();
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new WriterThreadFactory());
+		flusher.scheduleWithFixedDelay(new FlushTask(), FLUSH_DELAY, FLUSH_DELAY, TimeUnit.SECONDS);
+
+		// Save pending changes if the JVM exits before shutdown()
+		shutdownHook = new Thread(new FlushTask(),"Lattice store shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	private static class WriterThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,"Lattice store writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * @param x Lattice x index
+	 * @param y Lattice y index
+	 * @return Whether an elevation is stored for (x,y)
+	 */
+	public boolean contains(int x, int y) {
+		Page page = getPage(x,y);
+		int i = getIndex(x,y);
+		synchronized(this) {
+			return (page.present[i>>6] & (1l<<i)) != 0;
+		}
+	}
+
+	/**
+	 * @param x Lattice x index
+	 * @param y Lattice y index
+	 * @return The stored elevation, which is only meaningful if
+	 *  {@link #contains(int, int)} is true
+	 */
+	public double get(int x, int y) {
+		Page page = getPage(x,y);
+		synchronized(this) {
+			return page.values[getIndex(x,y)];
+		}
+	}
+
+	/**
+	 * Look up an elevation without reading from disk
+	 * @param x Lattice x index
+	 * @param y Lattice y index
+	 * @return The stored elevation, or NaN if none is stored or its page is
+	 *  not in memory
+	 */
+	public synchronized double getLoaded(int x, int y) {
+		Page page = findPage(getBlockKey(x>>BLOCK_BITS, y>>BLOCK_BITS));
+		int i = getIndex(x,y);
+		if(page == null || (page.present[i>>6] & (1l<<i)) == 0) {
+			return Double.NaN;
+		}
+		return page.values[i];
+	}
+
+	/**
+	 * Store an elevation. It will be written to disk in the background.
+	 * @param x Lattice x index
+	 * @param y Lattice y index
+	 * @param elevation
+	 */
+	public void put(int x, int y, double elevation) {
+		long key = getBlockKey(x>>BLOCK_BITS, y>>BLOCK_BITS);
+		int i = getIndex(x,y);
+		while(true) {
+			Page page = getPage(x,y);
+			synchronized(this) {
+				if(findPage(key) != page) {
+					// Evicted and read again by another thread
+					continue;
+				}
+				page.present[i>>6] |= 1l<<i;
+				page.values[i] = elevation;
+
+				dirty.put(key, page);
+				if(dirty.size() == MAX_DIRTY && !flusher.isShutdown()) {
+					flusher.execute(new FlushTask());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write all changed pages to disk
+	 */
+	public void flush() {
+		synchronized(flushLock) {
+			// Snapshot the changed pages
+			Map<Long,byte[]> toWrite = new HashMap<Long,byte[]>();
+			synchronized(this) {
+				if(dirty.isEmpty()) {
+					return;
+				}
+				for(Map.Entry<Long,Page> entry : dirty.entrySet()) {
+					toWrite.put(entry.getKey(), serialize(entry.getValue()));
+				}
+				writing = dirty;
+				dirty = new HashMap<Long,Page>();
+			}
+
+			long start = System.currentTimeMillis();
+			for(Map.Entry<Long,byte[]> entry : toWrite.entrySet()) {
+				long block = entry.getKey();
+				File file = getFile(getBlockX(block), getBlockY(block));
+				try {
+					File tmp = new File(dir, file.getName()+".tmp");
+					FileOutputStream out = new FileOutputStream(tmp);
+					try {
+						out.write(entry.getValue());
+					} finally {
+						out.close();
+					}
+					Files.move(tmp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch(IOException e) {
+					log.log(Level.WARNING, "Unable to save "+file, e);
+				}
+			}
+			synchronized(this) {
+				writing = new HashMap<Long,Page>();
+				flushes++;
+			}
+			log.fine(String.format("Saved %d lattice pages. Took %.2f sec",
+					toWrite.size(), (System.currentTimeMillis()-start)/1000.));
+		}
+	}
+
+	/**
+	 * Find the page containing (x,y), loading it from disk if needed.
+	 * The file is read without holding the lock.
+	 */
+	private Page getPage(int x, int y) {
+		int blockX = x>>BLOCK_BITS;
+		int blockY = y>>BLOCK_BITS;
+		long key = getBlockKey(blockX, blockY);
+
+		while(true) {
+			int before;
+			synchronized(this) {
+				Page page = findPage(key);
+				if(page != null) {
+					return page;
+				}
+				before = flushes;
+			}
+			Page loaded = load(blockX, blockY);
+			synchronized(this) {
+				Page page = findPage(key);
+				if(page != null) {
+					// Another thread read it first
+					return page;
+				}
+				if(flushes == before) {
+					pages.put(key, loaded);
+					return loaded;
+				}
+				// The page may have been saved and evicted while we read it
+			}
+		}
+	}
+
+	/**
+	 * Find a page which is already in memory, marking it as recently used.
+	 * Caller must hold the lock.
+	 * @return The page, or null if it has not been read
+	 */
+	private Page findPage(long key) {
+		Page page = pages.get(key);
+		if(page == null) {
+			page = dirty.get(key);
+			if(page == null) {
+				page = writing.get(key);
+			}
+			if(page != null) {
+				pages.put(key, page);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Read a page from disk
+	 * @return The stored page, or an empty page if none is stored or it
+	 *  can't be read
+	 */
+	private Page load(int blockX, int blockY) {
+		Page page = new Page();
+		File file = getFile(blockX, blockY);
+		if(!file.exists()) {
+			return page;
+		}
+		try {
+			byte[] bytes = new byte[PAGE_SIZE];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			if( buf.getInt() != MAGIC || buf.getInt() != BLOCK_SIZE ||
+					buf.getDouble() != origin.x || buf.getDouble() != origin.y ||
+					buf.getDouble() != scale.x || buf.getDouble() != scale.y ) {
+				log.warning("Ignoring "+file+", which was stored for a different lattice");
+				return page;
+			}
+			for(int i=0;i<page.present.length;i++) {
+				page.present[i] = buf.getLong();
+			}
+			for(int i=0;i<POINTS;i++) {
+				page.values[i] = buf.getDouble();
+			}
+		} catch(IOException e) {
+			log.log(Level.WARNING, "Unable to read "+file, e);
+			return new Page();
+		}
+		return page;
+	}
+
+	private byte[] serialize(Page page) {
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		buf.putInt(MAGIC);
+		buf.putInt(BLOCK_SIZE);
+		buf.putDouble(origin.x);
+		buf.putDouble(origin.y);
+		buf.putDouble(scale.x);
+		buf.putDouble(scale.y);
+		for(long bits : page.present) {
+			buf.putLong(bits);
+		}
+		for(double value : page.values) {
+			buf.putDouble(value);
+		}
+		return buf.array();
+	}
+
+	private File getFile(int blockX, int blockY) {
+		return new File(dir, String.format("%d_%d.page", blockX, blockY));
+	}
+
+	private static int getIndex(int x, int y) {
+		return ((x & (BLOCK_SIZE-1))<<BLOCK_BITS) | (y & (BLOCK_SIZE-1));
+	}
+	private static long getBlockKey(int blockX, int blockY) {
+		return ((long)blockX << 32) | (blockY & 0xffffffffL);
+	}
+	private static int getBlockX(long key) {
+		return (int)(key >> 32);
+	}
+	private static int getBlockY(long key) {
+		return (int)key;
+	}
+
+	/**
+	 * Stop the background writer, saving any changes. Later changes are
+	 * only saved by {@link #flush()}.
+	 */
+	public void shutdown() {
+		flusher.shutdown();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			// Already shutting down, so the hook will save changes
+		}
+		flush();
+	}
+
+	/**
+	 * Elevations for one block of the lattice
+	 */
+	private static final class Page {
+		final long[] present = new long[POINTS/64];
+		final double[] values = new double[POINTS];
+	}
+
+	private class FlushTask implements Runnable {
+		@Override
+		public void run() {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.awt.Transparency;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * A rectangular grid of elevations read directly from a memory-mapped file.
+ *
+ * <p>The file contains signed 16-bit big-endian samples in row order, starting
+ * at the northwest corner. This is the raw format of the SRTM30+ .dem files.
+ * Each sample gives the elevation of a cell, with the tile's edges lying
+ * along cell boundaries.
+ *
+ * <p>Since samples are never copied onto the heap, the operating system's
+ * page cache decides which parts of the tile stay in memory. Elevations are
+ * read through a {@link TileSampler} over {@link #getImage()}.
+ *
+ * <p>Latitudes are inclusive along the northern edge of the tile and
+ * exclusive along the southern edge, while longitudes are inclusive on the
+ * western edge and exclusive on the eastern edge. This matches the tile
+ * assignment in {@link SRTMPlusElevationProvider}.
+ *
+ * @author Spencer Bliven
+ */
+public class MappedElevationTile {
+	private final MappedByteBuffer data; // Only accessed with absolute gets, so thread safe
+
+	private final int width; // number of columns
+	private final int height; // number of rows
+	private final double north; // latitude of the northern edge
+	private final double west; // longitude of the western edge
+	private final double cellWidth; // degrees longitude per column
+	private final double cellHeight; // degrees latitude per row
+
+	/**
+	 * Map a tile into memory
+	 * @param file Raw elevation file
+	 * @param width Number of columns
+	 * @param height Number of rows
+	 * @param north Latitude of the northern edge, in degrees
+	 * @param west Longitude of the western edge, in degrees
+	 * @param cellWidth Width of each cell, in degrees longitude
+	 * @param cellHeight Height of each cell, in degrees latitude
+	 * @throws IOException If the file cannot be read or is too short
+	 */
+	public MappedElevationTile(File file, int width, int height,
+			double north, double west, double cellWidth, double cellHeight)
+					throws IOException {
+		this.width = width;
+		this.height = height;
+		this.north = north;
+		this.west = west;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+
+		long size = 2l*width*height;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if( raf.length() < size ) {
+				throw new IOException(String.format("Expected %d bytes in %s but found %d",
+						size, file, raf.length()));
+			}
+			// The mapping stays valid after the file is closed
+			data = raf.getChannel().map(MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+		data.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Get a raw sample from the tile
+	 * @param col Column, from 0 at the western edge
+	 * @param row Row, from 0 at the northern edge
+	 * @return The elevation of the cell
+	 * @throws IndexOutOfBoundsException If (col,row) lies outside the tile
+	 */
+	public int getSample(int col, int row) {
+		if( col < 0 || width <= col || row < 0 || height <= row ) {
+			throw new IndexOutOfBoundsException(String.format(
+					"Sample (%d,%d) outside of %dx%d tile", col, row, width, height));
+		}
+		return data.getShort(2*(row*width+col));
+	}
+
+	/**
+	 * Wrap the tile as a GeoTools coverage. The coverage reads samples from
+	 * the mapped file as needed rather than copying them.
+	 * @param name Name for the coverage
+	 * @return A single-band coverage in WGS84
+	 */
+	public GridCoverage2D getCoverage(String name) {
+		BufferedImage image = getImage();
+
+		Envelope2D envelope = new Envelope2D(DefaultGeographicCRS.WGS84,
+				west, getSouth(), width*cellWidth, height*cellHeight);
+
+		return new GridCoverageFactory().create(name, image, envelope);
+	}
+
+	/**
+	 * Wrap the tile as an image, without copying the samples
+	 * @return A single-band image of signed shorts, with row 0 at the north
+	 */
+	public BufferedImage getImage() {
+		SampleModel sampleModel = new ComponentSampleModel(DataBuffer.TYPE_SHORT,
+				width, height, 1, width, new int[] {0});
+		WritableRaster raster = Raster.createWritableRaster(sampleModel,
+				new MappedDataBuffer(), null);
+		ColorModel colorModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] {16},
+				false, false, Transparency.OPAQUE, DataBuffer.TYPE_SHORT);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	public double getNorth() {
+		return north;
+	}
+	public double getSouth() {
+		return north-height*cellHeight;
+	}
+	public double getWest() {
+		return west;
+	}
+	public double getEast() {
+		return west+width*cellWidth;
+	}
+	public double getCellWidth() {
+		return cellWidth;
+	}
+	public double getCellHeight() {
+		return cellHeight;
+	}
+
+	/**
+	 * Exposes the mapped samples to java.awt.image
+	 */
+	private class MappedDataBuffer extends DataBuffer {
+		public MappedDataBuffer() {
+			super(DataBuffer.TYPE_SHORT, width*height);
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return data.getShort(2*i);
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			throw new UnsupportedOperationException("Mapped tiles are read-only");
+		}
+	}
+}
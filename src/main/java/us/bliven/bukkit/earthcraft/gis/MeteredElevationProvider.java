@@ -0,0 +1,202 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Records calls, points, errors, missing elevations and latency for another
+ * ElevationProvider.
+ *
+ * Use {@link #instrument(ElevationProvider, ElevationMetricsRegistry, String)}
+ * to meter each layer of a provider chain.
+ *
+ * The metered provider is only {@link Prefetchable} if the underlying one is;
+ * use {@link #meter(ElevationProvider, ElevationMetrics)} to get the right class.
+ * @author Spencer Bliven
+ */
+public class MeteredElevationProvider implements ElevationProvider, Closeable {
+	private final ElevationProvider provider;
+	private final ElevationMetrics metrics;
+
+	public MeteredElevationProvider(ElevationProvider provider, ElevationMetrics metrics) {
+		if(provider == null) {
+			throw new IllegalArgumentException("ElevationProvider may not me null.");
+		}
+		this.provider = provider;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+		long start = System.nanoTime();
+		Double elev = null;
+		boolean error = true;
+		try {
+			elev = provider.fetchElevation(c);
+			error = false;
+			return elev;
+		} finally {
+			metrics.record(1, !error && elev == null ? 1 : 0, System.nanoTime()-start, error);
+		}
+	}
+
+	@Override
+	public List<Double> fetchElevations(List<Coordinate> l) throws DataUnavailableException {
+		long start = System.nanoTime();
+		List<Double> elevs = null;
+		try {
+			elevs = provider.fetchElevations(l);
+			return elevs;
+		} finally {
+			int nulls = 0;
+			if( elevs != null ) {
+				for(Double elev : elevs) {
+					if( elev == null ) {
+						nulls++;
+					}
+				}
+			}
+			metrics.record(l.size(), nulls, System.nanoTime()-start, elevs == null);
+		}
+	}
+
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		long start = System.nanoTime();
+		boolean error = true;
+		try {
+			provider.fetchElevations(lat, lon, out);
+			error = false;
+		} finally {
+			int nulls = 0;
+			if( !error ) {
+				for(int i=0;i<lat.length;i++) {
+					if( Double.isNaN(out[i]) ) {
+						nulls++;
+					}
+				}
+			}
+			metrics.record(lat.length, nulls, System.nanoTime()-start, error);
+		}
+	}
+
+	/**
+	 * Closes the underlying provider, if it is Closeable
+	 */
+	@Override
+	public void close() throws IOException {
+		if( provider instanceof Closeable ) {
+			((Closeable) provider).close();
+		}
+	}
+
+	public ElevationProvider getElevationProvider() {
+		return provider;
+	}
+
+	public ElevationMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Meter a provider, keeping it {@link Prefetchable} if it was
+	 * @param provider
+	 * @param metrics
+	 * @return A metered provider, which is Prefetchable if provider is
+	 */
+	public static MeteredElevationProvider meter(ElevationProvider provider, ElevationMetrics metrics) {
+		if( provider instanceof Prefetchable ) {
+			return new PrefetchableMetered(provider, metrics);
+		}
+		return new MeteredElevationProvider(provider, metrics);
+	}
+
+	/**
+	 * Meters a Prefetchable provider. Prefetches are passed on, but not recorded.
+	 */
+	public static class PrefetchableMetered extends MeteredElevationProvider implements Prefetchable {
+		public PrefetchableMetered(ElevationProvider provider, ElevationMetrics metrics) {
+			super(provider, metrics);
+			if( !(provider instanceof Prefetchable) ) {
+				throw new IllegalArgumentException("ElevationProvider must be Prefetchable.");
+			}
+		}
+
+		@Override
+		public boolean prefetch(Coordinate coord) throws DataUnavailableException {
+			return ((Prefetchable) getElevationProvider()).prefetch(coord);
+		}
+	}
+
+	/**
+	 * Meter each layer of a provider chain.
+	 *
+	 * Providers are wrapped, including those inside an
+	 * {@link InterpolatingElevationCache}. Tiled providers also record tile
+	 * loads (as <i>Class</i>.tiles) and waits for tile files (as <i>Class</i>.files).
+	 * Chains which are already metered are returned unchanged.
+	 * @param provider The outermost provider
+	 * @param registry Metrics are named after the class of each layer
+	 * @param prefix Prepended to the names, eg to tell worlds apart. May be null.
+	 * @return A metered provider to use in place of provider
+	 */
+	public static ElevationProvider instrument(ElevationProvider provider,
+			ElevationMetricsRegistry registry, String prefix) {
+		if( provider instanceof MeteredElevationProvider ) {
+			return provider;
+		}
+		if( provider instanceof InterpolatingElevationCache ) {
+			InterpolatingElevationCache cache = (InterpolatingElevationCache) provider;
+			ElevationProvider inner = cache.getElevationProvider();
+			if( inner != null ) {
+				cache.setElevationProvider(instrument(inner, registry, prefix));
+			}
+		} else if( provider instanceof MipMappedElevationProvider ) {
+			instrumentTiles(((MipMappedElevationProvider) provider).getElevationProvider(),
+					registry, prefix);
+		} else if( provider instanceof GridCoverageElevationProvider ) {
+			instrumentTiles((GridCoverageElevationProvider) provider, registry, prefix);
+		}
+		String name = getName(provider, prefix);
+		return meter(provider, registry.getMetrics(name));
+	}
+
+	/**
+	 * Meter each layer of a provider chain, naming the metrics after the
+	 * class of each layer alone
+	 * @see #instrument(ElevationProvider, ElevationMetricsRegistry, String)
+	 */
+	public static ElevationProvider instrument(ElevationProvider provider,
+			ElevationMetricsRegistry registry) {
+		return instrument(provider, registry, null);
+	}
+
+	/**
+	 * @return <i>prefix</i>.<i>Class</i>, or just <i>Class</i> without a prefix
+	 */
+	private static String getName(ElevationProvider provider, String prefix) {
+		String name = provider.getClass().getSimpleName();
+		return prefix == null ? name : prefix+"."+name;
+	}
+
+	/**
+	 * Record tile loads for the provider which actually loads the tiles
+	 */
+	private static void instrumentTiles(GridCoverageElevationProvider grid,
+			ElevationMetricsRegistry registry, String prefix) {
+		while( grid instanceof InterpolatedCoverageElevationProvider ) {
+			// Tiles are loaded by the underlying provider
+			grid = ((InterpolatedCoverageElevationProvider) grid).getElevationProvider();
+		}
+		if( grid == null ) {
+			return;
+		}
+		String name = getName(grid, prefix);
+		grid.setTileMetrics(registry.getMetrics(name+".tiles"),
+				registry.getMetrics(name+".files"));
+	}
+}
@@ -0,0 +1,349 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Serves elevations from downsampled copies of another provider's tiles.
+ *
+ * <p>Level 0 is the original grid. Each cell of level k is the average of a
+ * 2x2 block of cells from level k-1, so it covers 2^k by 2^k original cells.
+ * Levels are built the first time they are needed and saved to disk as
+ * <tt>&lt;tile&gt;.L&lt;k&gt;.dem</tt>, in the same raw format as the SRTM30+
+ * tiles.
+ *
+ * <p>The level is chosen from the {@link MapProjection}'s local scale, taking
+ * the coarsest level whose cells are no larger than a block. Coarse worlds
+ * therefore read a few kilobytes per tile instead of the whole tile, and
+ * averaging avoids the aliasing of point samples.
+ * @author Spencer Bliven
+ */
+public class MipMappedElevationProvider extends AbstractElevationProvider
+		implements Prefetchable {
+	public static final int DEFAULT_MAX_LEVEL = 8; // 256x256 cells, about 2 degrees for SRTM30+
+
+	private final GridCoverageElevationProvider provider;
+	private final TileScheme scheme;
+	private volatile MapProjection projection;
+	private final File dir;
+	private final int maxLevel;
+
+	// Loaded or loading levels, indexed by tile*maxLevel + level-1
+	private final AtomicReferenceArray<LevelEntry> levels;
+
+	private static final Logger log = Logger.getLogger(MipMappedElevationProvider.class.getName());
+
+	/**
+	 * @param provider Source of the full-resolution tiles. Its TileScheme
+	 *  must give the cell size.
+	 * @param projection Projection of the world, for choosing the level.
+	 *  If null, only level 0 is used.
+	 * @param dir Directory to save levels in
+	 * @param maxLevel Coarsest level to build
+	 * @throws IllegalArgumentException If the provider's cell size is unknown
+	 */
+	public MipMappedElevationProvider(GridCoverageElevationProvider provider,
+			MapProjection projection, File dir, int maxLevel) {
+		this.provider = provider;
+		this.scheme = provider.getTileScheme();
+		if(Double.isNaN(scheme.getCellSize())) {
+			throw new IllegalArgumentException("Unknown cell size for "+provider.getClass().getSimpleName());
+		}
+		this.projection = projection;
+		this.dir = dir;
+		this.maxLevel = maxLevel;
+		this.levels = new AtomicReferenceArray<LevelEntry>(scheme.getTileCount()*maxLevel);
+
+		if(!dir.exists()) {
+			log.info("Creating "+dir.getAbsolutePath());
+			dir.mkdirs();
+		}
+	}
+	public MipMappedElevationProvider(GridCoverageElevationProvider provider,
+			MapProjection projection, File dir) {
+		this(provider, projection, dir, DEFAULT_MAX_LEVEL);
+	}
+
+	@Override
+	public Double fetchElevation(Coordinate point) throws DataUnavailableException {
+		double[] out = new double[1];
+		fetchElevations(new double[] {point.x}, new double[] {point.y}, out);
+		return Double.isNaN(out[0]) ? null : out[0];
+	}
+
+	/**
+	 * Points are evaluated at the level chosen for the first point, since
+	 * requests usually cover a single chunk.
+	 */
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		if(lat.length == 0) {
+			return;
+		}
+		int level = getLevel(lat[0], lon[0]);
+		if(level == 0) {
+			provider.fetchElevations(lat, lon, out);
+			return;
+		}
+
+		boolean bilinear = provider.getInterpolationMode() == InterpolationMode.BILINEAR;
+		for(int i=0;i<lat.length;i++) {
+			double x = lat[i];
+			double y = lon[i];
+			if( provider.isWrap() ) {
+				x = ProjectionTools.wrapLatitude(x);
+				y = ProjectionTools.wrapLongitude(y);
+			} else if( x <= -90 || 90 < x || y < -180 || 180 <= y ) {
+				// Coordinates off the map
+				out[i] = Double.NaN;
+				continue;
+			}
+			TileSampler sampler = loadLevel(scheme.getTileIndex(x, y), level);
+			out[i] = bilinear ? sampler.bilinear(x, y) : sampler.nearest(x, y);
+		}
+	}
+
+	/**
+	 * Start loading the full-resolution tile, unless the level for the
+	 * coordinate is already stored
+	 */
+	@Override
+	public boolean prefetch(Coordinate coord) throws DataUnavailableException {
+		int level = getLevel(coord.x, coord.y);
+		if( level > 0 ) {
+			double lat = ProjectionTools.wrapLatitude(coord.x);
+			double lon = ProjectionTools.wrapLongitude(coord.y);
+			int tile = scheme.getTileIndex(lat, lon);
+			LevelEntry entry = levels.get(tile*maxLevel+level-1);
+			if( entry != null && entry.sampler != null ) {
+				return true;
+			}
+			if( isStored(tile, level) ) {
+				// Mapped when first used, without the full-resolution tile
+				return false;
+			}
+		}
+		return provider.prefetch(coord);
+	}
+
+	/**
+	 * Choose the level for a position
+	 * @return The coarsest level whose cells are no larger than a block
+	 */
+	public int getLevel(double lat, double lon) {
+		MapProjection projection = this.projection;
+		if(projection == null) {
+			return 0;
+		}
+		Coordinate scale;
+		try {
+			scale = projection.getLocalScale(ProjectionTools.wrapCoordinate(new Coordinate(lat,lon)));
+		} catch(UnsupportedOperationException e) {
+			return 0;
+		}
+		// Keep detail in the finer direction
+		double blockSize = Math.min(Math.abs(scale.x), Math.abs(scale.y));
+		double cellSize = scheme.getCellSize();
+
+		int level = 0;
+		while(level < maxLevel && cellSize*(2<<level) <= blockSize) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Get a downsampled tile, building it if needed. Each level is built
+	 * once, by the first thread to need it; others wait for that thread.
+	 * @param tile Tile index
+	 * @param level Level, from 0 to the maximum level
+	 * @return A sampler for the level
+	 * @throws DataUnavailableException If the tile can't be loaded or the
+	 *  level can't be saved
+	 */
+	public TileSampler loadLevel(final int tile, final int level) throws DataUnavailableException {
+		if(level == 0) {
+			return provider.loadSampler(tile);
+		}
+		int index = tile*maxLevel+level-1;
+		LevelEntry entry = levels.get(index);
+		if(entry != null && entry.sampler != null) {
+			return entry.sampler;
+		}
+		while(entry == null) {
+			LevelEntry created = new LevelEntry(new Callable<TileSampler>() {
+				@Override
+				public TileSampler call() throws DataUnavailableException {
+					return mapLevel(tile, level);
+				}
+			});
+			if(levels.compareAndSet(index, null, created)) {
+				// Won the race, so build it here
+				entry = created;
+				entry.run();
+			} else {
+				entry = levels.get(index);
+			}
+		}
+
+		try {
+			return entry.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataUnavailableException("Interrupted while loading level "+level+
+					" of "+scheme.getTileName(tile),e);
+		} catch (ExecutionException e) {
+			// Allow a retry
+			levels.compareAndSet(index, entry, null);
+			if(e.getCause() instanceof DataUnavailableException) {
+				throw (DataUnavailableException) e.getCause();
+			}
+			throw new DataUnavailableException("Unable to build level "+level+
+					" of "+scheme.getTileName(tile), e.getCause());
+		}
+	}
+
+	/**
+	 * Map a level from disk, building it first if needed. The size and
+	 * position of the level come from the TileScheme, so finer levels are
+	 * only loaded when building.
+	 * Only called by the entry for the level.
+	 */
+	private TileSampler mapLevel(int tile, int level) throws DataUnavailableException {
+		double cellSize = scheme.getCellSize()*(1<<level);
+		double north = scheme.getNorth(tile);
+		double west = scheme.getWest(tile);
+		int width = getLevelWidth(tile, level);
+		int height = getLevelHeight(tile, level);
+
+		File file = getLevelFile(tile, level);
+		try {
+			if( !isStored(tile, level) ) {
+				TileSampler finer = loadLevel(tile, level-1);
+				if( (finer.getWidth()+1)/2 != width || (finer.getHeight()+1)/2 != height ) {
+					throw new DataUnavailableException("Level "+(level-1)+" of "+
+							scheme.getTileName(tile)+" does not match the tile scheme");
+				}
+				buildLevel(finer, file, width, height);
+			}
+			MappedElevationTile mapped = new MappedElevationTile(file, width, height,
+					north, west, cellSize, cellSize);
+			return new TileSampler(mapped.getImage(), mapped.getNorth(), mapped.getWest(),
+					cellSize, cellSize);
+		} catch(IOException e) {
+			throw new DataUnavailableException("Unable to build level "+level+
+					" of "+scheme.getTileName(tile), e);
+		}
+	}
+
+	/**
+	 * @return Whether a complete level has been saved
+	 */
+	private boolean isStored(int tile, int level) {
+		return getLevelFile(tile, level).length() ==
+				2l*getLevelWidth(tile, level)*getLevelHeight(tile, level);
+	}
+
+	private File getLevelFile(int tile, int level) {
+		return new File(dir, scheme.getTileName(tile)+".L"+level+".dem");
+	}
+
+	private int getLevelWidth(int tile, int level) {
+		return getLevelSize(scheme.getEast(tile)-scheme.getWest(tile), level);
+	}
+
+	private int getLevelHeight(int tile, int level) {
+		return getLevelSize(scheme.getNorth(tile)-scheme.getSouth(tile), level);
+	}
+
+	/**
+	 * @param extent Size of the tile in degrees
+	 * @param level Level
+	 * @return Number of cells across the level. Each level has half as many
+	 *  cells as the previous one, rounding up.
+	 */
+	private int getLevelSize(double extent, int level) {
+		int cells = (int) Math.round(extent/scheme.getCellSize());
+		return (cells+(1<<level)-1) >> level;
+	}
+
+	/**
+	 * Average 2x2 blocks of a finer level into a file. Blocks along the
+	 * southern and eastern edges may have fewer cells.
+	 */
+	private void buildLevel(TileSampler finer, File file, int width, int height)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		int finerWidth = finer.getWidth();
+		int finerHeight = finer.getHeight();
+
+		File tmp = new File(dir, file.getName()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1<<16));
+		try {
+			for(int row=0;row<height;row++) {
+				int row0 = 2*row;
+				int row1 = Math.min(row0+1, finerHeight-1);
+				for(int col=0;col<width;col++) {
+					int col0 = 2*col;
+					int col1 = Math.min(col0+1, finerWidth-1);
+					double sum = finer.getSample(col0, row0) + finer.getSample(col1, row0)
+							+ finer.getSample(col0, row1) + finer.getSample(col1, row1);
+					// Cells repeated at the edges are weighted the same
+					out.writeShort((int) Math.round(sum/4));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		log.info(String.format("Built %s. Took %.2f sec", file.getName(),
+				(System.currentTimeMillis()-start)/1000.));
+	}
+
+	public MapProjection getMapProjection() {
+		return projection;
+	}
+	public void setMapProjection(MapProjection projection) {
+		this.projection = projection;
+	}
+	public GridCoverageElevationProvider getElevationProvider() {
+		return provider;
+	}
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * A level which is built or being built
+	 */
+	private static final class LevelEntry extends FutureTask<TileSampler> {
+		// Set once building succeeds, for reads which don't touch the future
+		volatile TileSampler sampler;
+
+		public LevelEntry(Callable<TileSampler> builder) {
+			super(builder);
+		}
+
+		@Override
+		protected void set(TileSampler v) {
+			sampler = v;
+			super.set(v);
+		}
+	}
+}
@@ -5,22 +5,30 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.geotools.util.LRULinkedHashMap;
 
 import com.google.common.collect.Lists;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -31,16 +39,54 @@ import com.vividsolutions.jts.geom.Coordinate;
  * Data is (C) 2012 MapQuest, Inc, and is accessed under the terms given at
  * http://developer.mapquest.com/web/products/open/elevation-service
  *
+ * Requests run asynchronously on a fixed number of worker threads, which
+ * bounds the number of requests in flight. Each worker reuses its
+ * keep-alive connection. Identical requests made while one is pending
+ * share the same result.
+ *
+ * When a batch fails because of a point the service can't handle, it is
+ * split in half until the failing points are found. Such points are left out
+ * of later requests for a while. Other errors, such as an invalid key or an
+ * outage, fail the request without retrying.
+ *
+ * Responses are requested as XML by default, or as JSON after
+ * {@link #setJSON(boolean)}. Either way they are parsed straight into
+ * arrays of doubles.
+ *
  * @author Spencer Bliven
  *
  */
-public class OpenElevationConnector implements ElevationProvider {//, Configurable {
+public class OpenElevationConnector extends AbstractElevationProvider {//, Configurable {
 
 	public static final String USERAGENT = "SBGen v0.1";
-
-	private int requestsMade = 0; //Number of API calls made by this instance
+	public static final String DEFAULT_URL = "http://open.mapquestapi.com/elevation/v1/profile";
+	public static final int DEFAULT_CONNECTIONS = 4;
+	// Number of failing points to remember
+	private static final int BAD_POINT_CAPACITY = 10000;
+	public static final long DEFAULT_BAD_POINT_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+	// Point errors for more points than this in one batch are treated as an outage
+	static final int MAX_BAD_POINTS = 8;
+
+	private final AtomicInteger requestsMade; //Number of API calls made by this instance
 	
 	private String authKey;
+	private final String baseURL;
+	private volatile boolean json;
+
+	// Requests in flight, by query string
+	private final ConcurrentMap<String,Request> pending;
+	private final ExecutorService workers;
+	// Points the service has failed on, as (lat,lon), with when to retry them (ns)
+	private final Map<Coordinate,Long> badPoints;
+	private volatile long badPointTimeout; // ns
+
+	// Parsers are not thread-safe, so keep one per worker
+	private static final ThreadLocal<OpenElevationParser> parsers = new ThreadLocal<OpenElevationParser>() {
+		@Override
+		protected OpenElevationParser initialValue() {
+			return new OpenElevationParser();
+		}
+	};
 	
 	// Infrastructure for regular updates
 	private OpenElevationMonitor monitor;
@@ -50,16 +96,49 @@ public class OpenElevationConnector implements ElevationProvider {//, Configurab
 	private final Logger log;
 
 	public OpenElevationConnector(String authKey) {
+		this(authKey, DEFAULT_URL, DEFAULT_CONNECTIONS);
+	}
+
+	/**
+	 * @param authKey MapQuest API key
+	 * @param baseURL URL of the elevation profile service
+	 * @param connections Maximum number of requests in flight
+	 */
+	public OpenElevationConnector(String authKey, String baseURL, int connections) {
 		if( authKey.length() != 32) {
 			throw new IllegalArgumentException("Invalid MapQuest API consumer key."
 					+ " Keys can be obtained from http://developer.mapquest.com");
 		}
+		if( connections < 1 ) {
+			throw new IllegalArgumentException("Need at least one connection");
+		}
 		this.authKey = authKey;
+		this.baseURL = baseURL;
+		this.json = false;
+		this.requestsMade = new AtomicInteger();
+		this.pending = new ConcurrentHashMap<String,Request>();
+		this.badPoints = Collections.synchronizedMap(
+				LRULinkedHashMap.<Coordinate,Long>createForRecentAccess(BAD_POINT_CAPACITY));
+		this.badPointTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BAD_POINT_TIMEOUT);
+		this.workers = Executors.newFixedThreadPool(connections, new WorkerThreadFactory());
 		monitor = new OpenElevationMonitor();
 		executor = null;
 		monitorHandle = null;
 		log = Logger.getLogger(getClass().getName());
 	}
+
+	/**
+	 * Static, so that idle workers don't keep the connector reachable
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,"Earthcraft OpenElevation");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 //	@Override
 //	public void initFromConfig(ConfigManager config, ConfigurationSection params) {
 //		// No options currently
@@ -73,27 +152,285 @@ public class OpenElevationConnector implements ElevationProvider {//, Configurab
 		return q.get(0);
 	}
 
+	/**
+	 * Fetch elevations, blocking until the request completes
+	 * @see #fetchElevationsAsync(List)
+	 */
 	@Override
 	public List<Double> fetchElevations(List<Coordinate> l) throws DataUnavailableException {
-		final int inputSize = l.size();
-		if(inputSize < 1) {
+		if(l.isEmpty()) {
 			return new ArrayList<Double>();
 		}
+		return await(fetchElevationsAsync(l));
+	}
+
+	/**
+	 * Fetch elevations without boxing, blocking until the request completes
+	 * @see us.bliven.bukkit.earthcraft.gis.ElevationProvider#fetchElevations(double[], double[], double[])
+	 */
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		if(lat.length == 0) {
+			return;
+		}
+		double[] heights = submit(lat.clone(), lon.clone()).getHeights();
+		System.arraycopy(heights, 0, out, 0, lat.length);
+	}
+
+	private static <T> T await(Future<T> future) throws DataUnavailableException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataUnavailableException("Interrupted while fetching elevations",e);
+		} catch (ExecutionException e) {
+			if( e.getCause() instanceof DataUnavailableException ) {
+				throw (DataUnavailableException) e.getCause();
+			}
+			throw new DataUnavailableException(e.getCause().getMessage(),e.getCause());
+		}
+	}
+
+	/**
+	 * Queue a request for elevations.
+	 *
+	 * If an identical request is already pending its future is returned
+	 * instead of making a new request.
+	 * @param l Coordinates to fetch
+	 * @return A future for the unmodifiable list of elevations. Failures
+	 *  are reported as a DataUnavailableException cause.
+	 */
+	public Future<List<Double>> fetchElevationsAsync(List<Coordinate> l) {
+		double[] lat = new double[l.size()];
+		double[] lon = new double[l.size()];
+		for(int i=0;i<lat.length;i++) {
+			lat[i] = l.get(i).x;
+			lon[i] = l.get(i).y;
+		}
+		return submit(lat, lon);
+	}
+
+	private Request submit(final double[] lat, final double[] lon) {
+		final String query = getQuery(lat, lon);
+		Request existing = pending.get(query);
+		if( existing != null ) {
+			if( !existing.isDone() ) {
+				return existing;
+			}
+			// Waiters are released before done() removes the entry
+			pending.remove(query, existing);
+		}
+		Request task = new Request(lat, lon, query);
+		existing = pending.putIfAbsent(query, task);
+		if( existing != null ) {
+			// Lost a race with an identical request
+			return existing;
+		}
+		try {
+			workers.execute(task);
+		} catch(RejectedExecutionException e) {
+			// Shut down; done() removes it from pending
+			task.fail(new DataUnavailableException("OpenElevationConnector has been shut down",e));
+		}
+		return task;
+	}
+
+	/**
+	 * A pending request, which removes itself from {@link #pending} when done
+	 */
+	private class Request extends FutureTask<List<Double>> {
+		private final String query;
+
+		public Request(final double[] lat, final double[] lon, final String query) {
+			super(new Callable<List<Double>>() {
+				@Override
+				public List<Double> call() throws DataUnavailableException {
+					return new HeightList(request(lat, lon, query));
+				}
+			});
+			this.query = query;
+		}
+
+		/**
+		 * Wait for the elevations, without boxing them
+		 */
+		public double[] getHeights() throws DataUnavailableException {
+			return ((HeightList) await(this)).heights;
+		}
+
+		public void fail(Throwable cause) {
+			setException(cause);
+		}
+
+		@Override
+		protected void done() {
+			pending.remove(query, this);
+		}
+	}
+
+	/**
+	 * @return The latLngCollection parameter for some coordinates
+	 */
+	private static String getQuery(double[] lat, double[] lon) {
+		StringBuilder query = new StringBuilder(lat.length*24);
+		for(int i=0;i<lat.length;i++) {
+			query.append(lat[i]);
+			query.append(',');
+			query.append(lon[i]);
+			query.append(',');
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Make a request on the current thread, skipping known bad points
+	 * @param lat Latitudes
+	 * @param lon Longitudes
+	 * @param query Coordinates formatted by {@link #getQuery(double[], double[])}
+	 * @return Elevations, or NaN for points the service could not handle
+	 */
+	private double[] request(double[] lat, double[] lon, String query) throws DataUnavailableException {
+		final int inputSize = lat.length;
+		if(inputSize < 1 || badPoints.isEmpty()) {
+			return requestBatch(lat, lon, query);
+		}
+
+		int[] good = new int[inputSize];
+		int goodSize = 0;
+		for(int i=0;i<inputSize;i++) {
+			if( !isBadPoint(new Coordinate(lat[i],lon[i])) ) {
+				good[goodSize++] = i;
+			}
+		}
+		if( goodSize == inputSize ) {
+			return requestBatch(lat, lon, query);
+		}
+
+		double[] altitude = new double[inputSize];
+		Arrays.fill(altitude, Double.NaN);
+		if( goodSize > 0 ) {
+			double[] goodLat = new double[goodSize];
+			double[] goodLon = new double[goodSize];
+			for(int i=0;i<goodSize;i++) {
+				goodLat[i] = lat[good[i]];
+				goodLon[i] = lon[good[i]];
+			}
+			double[] goodAltitude = requestBatch(goodLat, goodLon, getQuery(goodLat, goodLon));
+			for(int i=0;i<goodSize;i++) {
+				altitude[good[i]] = goodAltitude[i];
+			}
+		}
+		return altitude;
+	}
+
+	/**
+	 * Make a request on the current thread.
+	 *
+	 * If the service reports an error for a point it can't handle, the batch
+	 * is bisected to find the failing points.
+	 * @param lat Latitudes
+	 * @param lon Longitudes
+	 * @param query Coordinates formatted by {@link #getQuery(double[], double[])}
+	 * @return Elevations, or NaN for points the service could not handle
+	 */
+	private double[] requestBatch(double[] lat, double[] lon, String query) throws DataUnavailableException {
+		try {
+			return requestOnce(lat, lon, query);
+		} catch(StatusException e) {
+			if( !e.isPointError() ) {
+				throw e;
+			}
+			List<Coordinate> bad = new ArrayList<Coordinate>();
+			double[] altitude = bisect(lat, lon, e, bad);
+			// Only cache once the batch has been resolved
+			long retry = System.nanoTime()+badPointTimeout;
+			for(Coordinate point : bad) {
+				badPoints.put(point, retry);
+			}
+			return altitude;
+		}
+	}
+
+	/**
+	 * Find the failing points in a batch which failed with a point error.
+	 * Every failing half is bisected again, so isolating k points takes
+	 * O(k log n) requests.
+	 *
+	 * If more than {@link #MAX_BAD_POINTS} fail, the error is probably not
+	 * caused by the points themselves, so it is thrown instead.
+	 * @param lat Latitudes
+	 * @param lon Longitudes
+	 * @param failure The error for this batch
+	 * @param bad Receives the failing points
+	 * @return Elevations, or NaN for the failing points
+	 */
+	private double[] bisect(double[] lat, double[] lon, StatusException failure,
+			List<Coordinate> bad) throws DataUnavailableException {
+		final int inputSize = lat.length;
+		if(inputSize == 1) { //Base case
+			if( bad.size() >= MAX_BAD_POINTS ) {
+				throw failure;
+			}
+			log.warning(String.format("%s, for point %s,%s", failure.getMessage(), lat[0], lon[0]));
+			bad.add(new Coordinate(lat[0],lon[0]));
+			return new double[] {Double.NaN};
+		}
+
+		int mid = inputSize/2;
+		double[] altitude = new double[inputSize];
+		bisectHalf(lat, lon, 0, mid, altitude, bad);
+		bisectHalf(lat, lon, mid, inputSize, altitude, bad);
+		return altitude;
+	}
+
+	/**
+	 * Request part of a batch, bisecting it further if it fails with a point error
+	 * @param from First index, inclusive
+	 * @param to Last index, exclusive
+	 * @param altitude Receives the elevations for [from,to)
+	 */
+	private void bisectHalf(double[] lat, double[] lon, int from, int to,
+			double[] altitude, List<Coordinate> bad) throws DataUnavailableException {
+		double[] halfLat = Arrays.copyOfRange(lat, from, to);
+		double[] halfLon = Arrays.copyOfRange(lon, from, to);
+		double[] half;
+		try {
+			half = requestOnce(halfLat, halfLon, getQuery(halfLat, halfLon));
+		} catch(StatusException e) {
+			if( !e.isPointError() ) {
+				throw e;
+			}
+			half = bisect(halfLat, halfLon, e, bad);
+		}
+		System.arraycopy(half, 0, altitude, from, to-from);
+	}
+
+	/**
+	 * Make a single request on the current thread
+	 * @param lat Latitudes
+	 * @param lon Longitudes
+	 * @param query Coordinates formatted by {@link #getQuery(double[], double[])}
+	 * @return Elevations
+	 * @throws StatusException If the service reports an error
+	 */
+	private double[] requestOnce(double[] lat, double[] lon, String query) throws DataUnavailableException {
+		final int inputSize = lat.length;
+		double[] altitude = new double[inputSize];
+		if(inputSize < 1) {
+			return altitude;
+		}
 
 		// build URL from inputs
-		final String baseURL = "http://open.mapquestapi.com/elevation/v1/profile?";
-		final String params = "inShapeFormat=raw&outShapeFormat=none&outFormat=xml&latLngCollection=";
+		final String params = "inShapeFormat=raw&outShapeFormat=none&latLngCollection=";
 		StringBuilder uri = new StringBuilder(baseURL);
-		uri.append("key=");
+		uri.append("?key=");
 		uri.append(authKey);
+		uri.append("&outFormat=");
+		uri.append(json ? "json" : "xml");
 		uri.append("&");
 		uri.append(params);
-		for(Coordinate p : l) {
-			uri.append(p.x); // actually lat
-			uri.append(',');
-			uri.append(p.y); // actually lon
-			uri.append(',');
-		}
+		uri.append(query);
 
 		URL url;
 		try {
@@ -104,48 +441,95 @@ public class OpenElevationConnector implements ElevationProvider {//, Configurab
 
 		//log.info(url);
 
-		// Create SAX parser for the XML
-
-		OpenElevationHandler handler = new OpenElevationHandler();
-
+		OpenElevationParser parser = parsers.get();
 
 		// Process requested URL
 		try {
-			requestsMade++;
-			handleRestRequest(url, handler);
+			requestsMade.incrementAndGet();
+			handleRestRequest(url, parser, altitude);
 		} catch (Exception e) {
 			DataUnavailableException de = new DataUnavailableException(e.getMessage(),e);
 			throw de;
 		}
 
-		List<Double> altitude = handler.altitude;
-
 		// Check for errors
-		if(handler.status != null && handler.status != 0) {
-			if(inputSize == 1) { //Base case
-				// Only requested one point. Return [null]
-				log.warning(String.format("MapQuest Error: Got response %d for %s%nMapQuest Error message: \"%s\"%n",handler.status,uri, handler.message));
-				altitude = Lists.newArrayList((Double)null);
-			} else {
-				// Try individual requests, then merge them
-				altitude = new ArrayList<Double>(inputSize);
-				for(Coordinate p : l) {
-					List<Double> results = fetchElevations(Lists.newArrayList(p));
-					assert(results.size() == 1);
-					altitude.addAll(results);
-				}
+		if(parser.getStatus() != 0) {
+			throw new StatusException(parser.getStatus(), parser.getMessage());
+		} else if(parser.getCount() != inputSize) {
+			// Results should have one value per input
+			log.severe(String.format("Length mismatch. Requested %d points but got %d.",inputSize, parser.getCount()));
+			for(int i=parser.getCount();i<inputSize;i++) {
+				altitude[i] = Double.NaN;
 			}
 		}
 
+		return altitude;
+	}
+
+	/**
+	 * An error status reported by the service
+	 */
+	private static class StatusException extends DataUnavailableException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		public StatusException(int status, String message) {
+			super("MapQuest Error "+status+": \""+message+"\"");
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
 
-		// Results should have one value per input
-		assert( altitude.size() == l.size());
+		/**
+		 * MapQuest reports points it can't process with 6xx codes
+		 */
+		public boolean isPointError() {
+			return 600 <= status && status < 700;
+		}
+	}
 
-		return altitude;
+	/**
+	 * @return true if the point recently failed
+	 */
+	private boolean isBadPoint(Coordinate point) {
+		Long retry = badPoints.get(point);
+		if( retry == null ) {
+			return false;
+		}
+		if( retry - System.nanoTime() > 0 ) {
+			return true;
+		}
+		badPoints.remove(point);
+		return false;
+	}
+
+	/**
+	 * @return Number of points currently known to fail, including any which
+	 *  have timed out but not yet been retried
+	 */
+	public int getBadPointCount() {
+		return badPoints.size();
+	}
+
+	/**
+	 * @param timeout How long to leave failing points out of requests
+	 * @param unit Units of timeout
+	 */
+	public void setBadPointTimeout(long timeout, TimeUnit unit) {
+		badPointTimeout = unit.toNanos(timeout);
 	}
 
-	private void handleRestRequest(URL url, DefaultHandler handler) throws SAXException, IOException, ParserConfigurationException {
-		// Fetch XML stream
+	/**
+	 * Forget failing points, so that they will be requested again
+	 */
+	public void clearBadPoints() {
+		badPoints.clear();
+	}
+
+	private void handleRestRequest(URL url, OpenElevationParser parser, double[] heights) throws IOException {
+		// Fetch response stream
 		HttpURLConnection huc = null;
 
 		huc = (HttpURLConnection) url.openConnection();
@@ -156,120 +540,96 @@ public class OpenElevationConnector implements ElevationProvider {//, Configurab
 		if(responseCode != 200) {
 			// We're probably about to throw an exception
 			log.warning("HTTP Error: Got response "+responseCode+" for "+url);
+			// Drain the error so the connection can be reused
+			InputStream error = huc.getErrorStream();
+			if( error != null ) {
+				drain(error);
+			}
 		}
 
 		InputStream response = huc.getInputStream();
+		try {
+			parser.parse(response, json, heights);
+		} finally {
+			// Closing the response returns the connection to the keep-alive cache
+			response.close();
+		}
+	}
 
-
-		InputSource xml = new InputSource(response);
-
-		// Parse XML
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		SAXParser saxParser = factory.newSAXParser();
-		saxParser.parse(xml, handler);
+	/**
+	 * Read and close a stream
+	 */
+	private static void drain(InputStream in) throws IOException {
+		try {
+			byte[] buf = new byte[1024];
+			while( in.read(buf) >= 0 ) {}
+		} finally {
+			in.close();
+		}
 	}
 
-	private static class OpenElevationHandler extends DefaultHandler {
-		public List<Double> altitude = new ArrayList<Double>();
-		public Integer status = null;
-		public String message = null;
-		private String data = "";
-		protected final Logger log = Logger.getLogger(OpenElevationHandler.class.getName());
+	/**
+	 * Read-only view of a result. NaN heights appear as null.
+	 */
+	private static class HeightList extends AbstractList<Double> implements RandomAccess {
+		private final double[] heights;
 
-		// State machine
-		private static enum State {
-			IDLE,
-			GET_HEIGHT,
-			GET_STATUS,
-			GET_MSG
-		};
-		private State state = State.IDLE;
+		public HeightList(double[] heights) {
+			this.heights = heights;
+		}
 
-		int pointNum = 0;
 		@Override
-		public void startElement(String uri, String localName,String qName,
-				Attributes attributes) throws SAXException {
-			if(qName.equalsIgnoreCase("height")) {
-				state = State.GET_HEIGHT;
-			} else if(qName.equalsIgnoreCase("statusCode")) {
-				state = State.GET_STATUS;
-			} else if(qName.equalsIgnoreCase("message")) {
-				state = State.GET_MSG;
-			} else if(qName.equalsIgnoreCase("distanceHeight")) {
-				pointNum++;
-			}
-
-			data = "";
+		public Double get(int index) {
+			double height = heights[index];
+			return Double.isNaN(height) ? null : height;
 		}
-		@Override
-		public void endElement(String uri, String localName, String qName) {
-			assert( state == State.GET_HEIGHT && qName.equalsIgnoreCase("height") ||
-					state == State.GET_STATUS && qName.equalsIgnoreCase("statusCode") ||
-					state == State.GET_MSG && qName.equalsIgnoreCase("message") ||
-					state == State.IDLE);
-
-			switch(state) {
-			case GET_HEIGHT:
-				Double d = new Double(data);
-				altitude.add(d);
-				if(pointNum != altitude.size()) {
-					log.severe(String.format("Length mismatch. Should be on point %d but have %d points.",pointNum, altitude.size()));
-				}
-				break;
-			case GET_STATUS:
-				status = new Integer(data);
-				break;
-			case GET_MSG:
-				if(message == null) {
-					message = data;
-				} else {
-					message += "\n"+data;
-				}
-				break;
-			case IDLE:
-				break;
-			default:
-				log.severe("Unknown state "+state);
-				break;
-			}
 
-			state = State.IDLE;
-		}
 		@Override
-		public void characters(char[] ch, int start, int length) {
-			if(state != State.IDLE) {
-				data += new String(ch,start,length);
-			}
+		public int size() {
+			return heights.length;
 		}
-	};
-	public static void main(String[] a) {
-		try {
-			String authKey = "YOUR_KEY_HERE";
+	}
 
-			URL url = new URL("http://open.mapquestapi.com/elevation/v1/profile?key="+authKey+"&inShapeFormat=raw&latLngCollection=32.839825,-117.244669&outShapeFormat=none&outFormat=xml");
+	/**
+	 * Whether responses are requested in JSON rather than XML
+	 */
+	public boolean isJSON() {
+		return json;
+	}
 
-			DefaultHandler handler = new DefaultHandler() {
-				@Override
-				public void startElement(String uri, String localName,String qName,
-						Attributes attributes) throws SAXException {
-					System.out.println("Started "+qName);
-				}
-			};
+	public void setJSON(boolean json) {
+		this.json = json;
+	}
 
-			OpenElevationConnector oec = new OpenElevationConnector(authKey);
-			oec.handleRestRequest(url, handler);
+	public static void main(String[] a) {
+		String authKey = "YOUR_KEY_HERE";
+
+		OpenElevationConnector oec = new OpenElevationConnector(authKey);
+		try {
+			System.out.println(oec.fetchElevation(new Coordinate(32.839825,-117.244669)));
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			oec.shutdown();
 		}
-
-
 	}
 
 	/**
 	 * Get the number of API requests made over the lifetime of this instance
 	 */
 	public int getRequestsMade() {
-		return requestsMade;
+		return requestsMade.get();
+	}
+
+	/**
+	 * Stop the worker threads. Pending requests are abandoned.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		if( executor != null ) {
+			executor.shutdownNow();
+			executor = null;
+		}
 	}
 
 	public void monitor() {
@@ -283,8 +643,7 @@ public class OpenElevationConnector implements ElevationProvider {//, Configurab
 	}
 	@Override
 	public void finalize() {
-		executor.shutdownNow();
-		executor = null;
+		shutdown();
 	}
 
 	private class OpenElevationMonitor implements Runnable {
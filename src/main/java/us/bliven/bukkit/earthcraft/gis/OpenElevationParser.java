@@ -0,0 +1,362 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming parser for Open Elevation profile responses, in either the XML
+ * or the JSON output format.
+ *
+ * Only the heights, status code and messages are extracted. Heights are
+ * parsed directly from the bytes and written into the caller's array, so
+ * no objects are allocated per point. The byte buffer is reused between
+ * calls; instances are not thread-safe.
+ * @author Spencer Bliven
+ */
+class OpenElevationParser {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for(int i=1;i<POW10.length;i++) {
+			POW10[i] = POW10[i-1]*10;
+		}
+	}
+
+	private final byte[] buf = new byte[8192];
+	private int pos;
+	private int limit;
+	private InputStream in;
+
+	// Current tag name or string. Grows as needed.
+	private byte[] text = new byte[64];
+	private int textLength;
+
+	private int status;
+	private String message;
+	private int count;
+
+	/**
+	 * Parse a response
+	 * @param in Response body
+	 * @param json True for the JSON format, false for XML
+	 * @param heights Receives the heights in order, in meters. Null heights
+	 *  become NaN. Heights beyond its length are counted but not stored.
+	 * @throws IOException for read errors or malformed numbers
+	 */
+	public void parse(InputStream in, boolean json, double[] heights) throws IOException {
+		this.in = in;
+		pos = limit = 0;
+		status = 0;
+		message = null;
+		count = 0;
+		try {
+			if( json ) {
+				parseJSON(heights);
+			} else {
+				parseXML(heights);
+			}
+		} finally {
+			this.in = null;
+		}
+	}
+
+	/**
+	 * @return The status code, or 0 if none was given
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return Messages, separated by newlines, or null if there were none
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return Number of heights in the response
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	private void parseXML(double[] heights) throws IOException {
+		int c;
+		while( (c = read()) >= 0 ) {
+			if( c != '<' ) {
+				continue;
+			}
+			c = read();
+			if( c == '/' || c == '?' || c == '!' ) {
+				// End tags, declarations and comments
+				continue;
+			}
+			textLength = 0;
+			while( c >= 0 && c != '>' && c != '/' && !isSpace(c) ) {
+				appendText(c);
+				c = read();
+			}
+			// Skip attributes
+			boolean empty = false;
+			while( c >= 0 && c != '>' ) {
+				empty = c == '/';
+				c = read();
+			}
+			if( empty ) {
+				continue;
+			}
+			if( textEquals("height") ) {
+				addHeight(heights, parseNumber());
+			} else if( textEquals("statusCode") ) {
+				status = (int) parseNumber();
+			} else if( textEquals("message") ) {
+				textLength = 0;
+				while( (c = read()) >= 0 && c != '<' ) {
+					appendText(c);
+				}
+				if( c >= 0 ) {
+					unread();
+				}
+				addMessage();
+			}
+		}
+	}
+
+	private void parseJSON(double[] heights) throws IOException {
+		boolean inMessages = false;
+		int c;
+		while( (c = read()) >= 0 ) {
+			if( c == ']' ) {
+				inMessages = false;
+			}
+			if( c != '"' ) {
+				continue;
+			}
+			readString();
+			c = skipSpace();
+			if( c != ':' ) {
+				// A value
+				if( c >= 0 ) {
+					unread();
+				}
+				if( inMessages ) {
+					addMessage();
+				}
+				continue;
+			}
+			// A key
+			if( textEquals("height") ) {
+				addHeight(heights, parseNumber());
+			} else if( textEquals("statuscode") ) {
+				status = (int) parseNumber();
+			} else if( textEquals("messages") ) {
+				c = skipSpace();
+				if( c == '[' ) {
+					inMessages = true;
+				} else if( c >= 0 ) {
+					unread();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the rest of a JSON string into the text buffer
+	 */
+	private void readString() throws IOException {
+		textLength = 0;
+		int c;
+		while( (c = read()) >= 0 && c != '"' ) {
+			if( c == '\\' ) {
+				// Keep the escaped character. Good enough for messages.
+				c = read();
+				if( c < 0 ) {
+					break;
+				}
+			}
+			appendText(c);
+		}
+	}
+
+	private void addHeight(double[] heights, double height) {
+		if( count < heights.length ) {
+			heights[count] = height;
+		}
+		count++;
+	}
+
+	private void addMessage() {
+		String str = new String(text, 0, textLength, UTF8);
+		if( message == null ) {
+			message = str;
+		} else {
+			message += "\n"+str;
+		}
+	}
+
+	/**
+	 * Parse a decimal number, or null as NaN. Leaves the following byte
+	 * unread.
+	 *
+	 * Numbers with up to 15 significant digits and small exponents are
+	 * converted without allocating. Others fall back to
+	 * {@link Double#parseDouble(String)}.
+	 */
+	private double parseNumber() throws IOException {
+		int c = skipSpace();
+		if( c == 'n' ) {
+			// null
+			while( (c = read()) >= 'a' && c <= 'z' ) {}
+			if( c >= 0 ) {
+				unread();
+			}
+			return Double.NaN;
+		}
+		textLength = 0;
+		boolean negative = false;
+		if( c == '-' ) {
+			negative = true;
+			c = next(c);
+		} else if( c == '+' ) {
+			c = next(c);
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exp = 0;
+		boolean any = false;
+		while( isDigit(c) ) {
+			any = true;
+			if( digits < 18 ) {
+				mantissa = mantissa*10 + (c-'0');
+				if( mantissa != 0 ) {
+					digits++;
+				}
+			} else {
+				exp++;
+			}
+			c = next(c);
+		}
+		if( c == '.' ) {
+			c = next(c);
+			while( isDigit(c) ) {
+				any = true;
+				if( digits < 18 ) {
+					mantissa = mantissa*10 + (c-'0');
+					if( mantissa != 0 ) {
+						digits++;
+					}
+					exp--;
+				}
+				c = next(c);
+			}
+		}
+		if( !any ) {
+			throw new IOException("Expected a number but found '"+(char)c+"'");
+		}
+		if( c == 'e' || c == 'E' ) {
+			c = next(c);
+			boolean negativeExp = false;
+			if( c == '-' ) {
+				negativeExp = true;
+				c = next(c);
+			} else if( c == '+' ) {
+				c = next(c);
+			}
+			int e = 0;
+			while( isDigit(c) ) {
+				if( e < 10000 ) {
+					e = e*10 + (c-'0');
+				}
+				c = next(c);
+			}
+			exp += negativeExp ? -e : e;
+		}
+		if( c >= 0 ) {
+			unread();
+		}
+
+		double value;
+		if( exp == 0 ) {
+			value = mantissa;
+		} else if( mantissa < (1L<<53) && exp > 0 && exp < POW10.length ) {
+			value = mantissa*POW10[exp];
+		} else if( mantissa < (1L<<53) && exp < 0 && -exp < POW10.length ) {
+			value = mantissa/POW10[-exp];
+		} else {
+			// Rare; fall back to the slow but exact parser
+			return Double.parseDouble(new String(text, 0, textLength, UTF8));
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Record a character of a number in the text buffer and read the next
+	 */
+	private int next(int c) throws IOException {
+		appendText(c);
+		return read();
+	}
+
+	private int skipSpace() throws IOException {
+		int c;
+		while( isSpace(c = read()) ) {}
+		return c;
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static boolean isDigit(int c) {
+		return '0' <= c && c <= '9';
+	}
+
+	private void appendText(int c) {
+		if( textLength == text.length ) {
+			byte[] larger = new byte[text.length*2];
+			System.arraycopy(text, 0, larger, 0, textLength);
+			text = larger;
+		}
+		text[textLength++] = (byte) c;
+	}
+
+	/**
+	 * Case-insensitive comparison of the text buffer with an ASCII string
+	 */
+	private boolean textEquals(String str) {
+		if( str.length() != textLength ) {
+			return false;
+		}
+		for(int i=0;i<textLength;i++) {
+			if( Character.toLowerCase((char)text[i]) != Character.toLowerCase(str.charAt(i)) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The next byte, or -1 at the end of the stream
+	 */
+	private int read() throws IOException {
+		if( pos == limit ) {
+			limit = in.read(buf, 0, buf.length);
+			pos = 0;
+			if( limit <= 0 ) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	/**
+	 * Push back the byte just read. Only valid once after a successful read.
+	 */
+	private void unread() {
+		pos--;
+	}
+}
@@ -0,0 +1,18 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Data sources which can start loading data in the background before it is
+ * needed.
+ * @author Spencer Bliven
+ */
+public interface Prefetchable {
+	/**
+	 * Start loading the data around a coordinate, without waiting for it.
+	 * @param coord lat/lon coordinate
+	 * @return true if the data is already loaded
+	 * @throws DataUnavailableException If the load can't be started
+	 */
+	public boolean prefetch(Coordinate coord) throws DataUnavailableException;
+}
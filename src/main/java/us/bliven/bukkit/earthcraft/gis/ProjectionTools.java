@@ -18,19 +18,37 @@ public final class ProjectionTools {
 	 */
 	public static Coordinate wrapCoordinate(Coordinate pos) {
 		// Convert coordinates to valid lat=(-90,90], lon=[-180,180)
-		double wrapx = pos.x % 180;
-		double wrapy = pos.y % 360;
+		return new Coordinate(wrapLatitude(pos.x),wrapLongitude(pos.y),pos.z);
+	}
+
+	/**
+	 * Convert a latitude to the valid range (-90,90]
+	 * @param lat latitude, in degrees
+	 * @return
+	 */
+	public static double wrapLatitude(double lat) {
+		double wrapx = lat % 180;
 		if( wrapx > 90) {
 			wrapx -= 180;
 		} else if(wrapx <=-90) {
 			wrapx += 180;
 		}
+		return wrapx;
+	}
+
+	/**
+	 * Convert a longitude to the valid range [-180,180)
+	 * @param lon longitude, in degrees
+	 * @return
+	 */
+	public static double wrapLongitude(double lon) {
+		double wrapy = lon % 360;
 		if( wrapy >= 180) {
 			wrapy -= 360;
 		} else if(wrapy < -180) {
 			wrapy += 360;
 		}
-		return new Coordinate(wrapx,wrapy,pos.z);
+		return wrapy;
 	}
 
 	/**
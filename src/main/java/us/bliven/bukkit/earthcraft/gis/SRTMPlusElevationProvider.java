@@ -1,8 +1,6 @@
 package us.bliven.bukkit.earthcraft.gis;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.concurrent.Callable;
@@ -10,11 +8,8 @@ import java.util.concurrent.Callable;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.gce.gtopo30.GTopo30Reader;
 import org.geotools.geometry.DirectPosition2D;
-import org.geotools.geometry.Envelope2D;
 import org.opengis.geometry.DirectPosition;
-import org.opengis.geometry.Envelope;
 import org.opengis.referencing.operation.TransformException;
 
 import us.bliven.bukkit.earthcraft.util.FileCache;
@@ -31,6 +26,40 @@ public class SRTMPlusElevationProvider extends GridCoverageElevationProvider
 	//SMTP Plus FTP server
 	private static final String SMTP_PLUS_SERVER = "ftp://topex.ucsd.edu/pub/srtm30_plus/srtm30/erm/";
 
+	// Size of each cell, in degrees (30 arc-seconds)
+	private static final double CELL_SIZE = 30./3600;
+
+	/*
+	 *              Latitude          Longitude
+		 Tile    Minimum  Maximum   Minimum  Maximum
+		-------  ----------------   ----------------
+
+		w180n90     40       90       -180    -140
+		w140n90     40       90       -140    -100
+		...
+		e140n90     40       90        140     180
+
+		w180n40    -10       40       -180    -140
+		...
+		e140n40    -10       40        140     180
+
+		w180s10    -60      -10       -180    -140
+		...
+		e140s10    -60      -10        140     180
+
+		w180s60    -90      -60       -180    -120
+		w120s60    -90      -60       -120     -60
+		...
+		e120s60    -90      -60        120     180
+	 */
+	static final TileScheme TILES = new TileScheme(
+			new double[] {90, 40, -10, -60, -90},
+			new double[] {40, 40, 40, 60},
+			10, CELL_SIZE);
+
+	// Mapped tiles live outside the heap, so all 33 SRTM30+ tiles can stay loaded
+	private static final int TILE_CACHE_SIZE = TILES.getTileCount();
+
 	// directory to store SMTP+ files
 	private FileCache cache;
 
@@ -44,9 +73,10 @@ public class SRTMPlusElevationProvider extends GridCoverageElevationProvider
 		this(dir,true);
 	}
 	public SRTMPlusElevationProvider(String dir, boolean wrap) {
-		super(wrap);
+		super(TILES,wrap,TILE_CACHE_SIZE);
 
-		this.cache = new FileCache(dir,getExecutor());
+		// Downloads get their own threads, since tile loaders wait on them
+		this.cache = new FileCache(dir);
 	}
 
 //	@Override
@@ -69,380 +99,74 @@ public class SRTMPlusElevationProvider extends GridCoverageElevationProvider
 //		}
 //
 //		if( dir != cache.getDir() )
-//			cache = new FileCache(dir,getExecutor());
+//			cache = new FileCache(dir);
 //	}
 
-	private synchronized void createHDR(String filename,Envelope bounds) {
-		/*
-		BYTEORDER     M
-		LAYOUT        BIL
-		NROWS         6000
-		NCOLS         4800
-		NBANDS        1
-		NBITS         16
-		BANDROWBYTES         9600
-		TOTALROWBYTES        9600
-		BANDGAPBYTES         0
-		NODATA        -9999
-		ULXMAP        -140.0
-		ULYMAP        40.0
-		XDIM          0.00833333333333
-		YDIM          0.00833333333333
-		*/
-		double lat = bounds.getMaximum(0);
-		double lon = bounds.getMinimum(1);
-
-		int nrows, ncols;
-		if(lat > -60 ) {
-			ncols = 4800;
-			nrows = 6000;
-		} else {
-			// Antarctic latitudes
-			ncols = 7200;
-			nrows = 3600;
-		}
-		double grid = 50./6000;
-
-		if(cache.isAvailable(filename)) {
-			// Don't replace existing file
-			return;
-		}
-
-		log.info("Creating "+filename);
-
-		StringBuilder contents = new StringBuilder();
-		String eol = System.getProperty("line.separator");
-		contents.append("BYTEORDER     M"+eol);
-		contents.append("LAYOUT        BIL"+eol);
-		contents.append("NROWS         "+nrows+eol);
-		contents.append("NCOLS         "+ncols+eol);
-		contents.append("NBANDS        1"+eol);
-		contents.append("NBITS         16"+eol);
-		contents.append("BANDROWBYTES  "+(ncols*2)+eol);
-		contents.append("TOTALROWBYTES "+(ncols*2)+eol);
-		contents.append("BANDGAPBYTES  0"+eol);
-		contents.append("NODATA        -9999"+eol);
-		// Storing floats as strings is always problematic. Err a bit on the safe
-		// side by subtracting 1e-14, since nice round numbers are used more than
-		// their slightly smaller counterparts.
-		// TODO Needs an actual fix
-		contents.append("ULXMAP        "+(lon+grid/2-1e-13)+eol);
-		contents.append("ULYMAP        "+(lat-grid/2+1e-13)+eol);
-		contents.append("XDIM          "+grid+eol);
-		contents.append("YDIM          "+grid+eol);
-
-
-		InputStream in = new ByteArrayInputStream(contents.toString().getBytes());
-		cache.prefetch(filename, in);
-
-	}
-	private synchronized void createPRJ(String filename) {
-		if(cache.isAvailable(filename)) {
-			// Don't replace existing file
-			return;
-		}
-
-		log.info("Creating "+filename);
-
-		StringBuilder contents = new StringBuilder();
-		String eol = System.getProperty("line.separator");
-		contents.append("Projection    GEOGRAPHIC"+eol);
-		contents.append("Datum         WGS84"+eol);
-		contents.append("Zunits        METERS"+eol);
-		contents.append("Units         DD"+eol);
-		contents.append("Spheroid      WGS84"+eol);
-		contents.append("Xshift        0.0000000000"+eol);
-		contents.append("Yshift        0.0000000000"+eol);
-		contents.append("Parameters    "+eol);
-
-		InputStream in = new ByteArrayInputStream(contents.toString().getBytes());
-		cache.prefetch(filename, in);
-	}
-	private synchronized void createSTX(String filename) {
-		if(cache.isAvailable(filename)) {
-			// Don't replace existing file
-			return;
-		}
-
-		log.info("Creating "+filename);
-
-		StringBuilder contents = new StringBuilder();
-		String eol = System.getProperty("line.separator");
-		// band min max avg sd
-		contents.append("1 -9999 9999 0 100"+eol);
-
-
-		InputStream in = new ByteArrayInputStream(contents.toString().getBytes());
-		cache.prefetch(filename, in);
-	}
-
-
-	/**
-	 * Get the tile name for a given coordinate
-	 * @param coord
-	 * @return
-	 */
 	@Override
-	protected String getTileName(Coordinate coord) {
-		/*
-		 *              Latitude          Longitude
-			 Tile    Minimum  Maximum   Minimum  Maximum
-			-------  ----------------   ----------------
-
-			w180n90     40       90       -180    -140
-			w140n90     40       90       -140    -100
-			w100n90     40       90       -100     -60
-			w060n90     40       90        -60     -20
-			w020n90     40       90        -20      20
-			e020n90     40       90         20      60
-			e060n90     40       90         60     100
-			e100n90     40       90        100     140
-			e140n90     40       90        140     180
-
-			w180n40    -10       40       -180    -140
-			w140n40    -10       40       -140    -100
-			w100n40    -10       40       -100     -60
-			w060n40    -10       40        -60     -20
-			w020n40    -10       40        -20      20
-			e020n40    -10       40         20      60
-			e060n40    -10       40         60     100
-			e100n40    -10       40        100     140
-			e140n40    -10       40        140     180
-
-			w180s10    -60      -10       -180    -140
-			w140s10    -60      -10       -140    -100
-			w100s10    -60      -10       -100     -60
-			w060s10    -60      -10        -60     -20
-			w020s10    -60      -10        -20      20
-			e020s10    -60      -10         20      60
-			e060s10    -60      -10         60     100
-			e100s10    -60      -10        100     140
-			e140s10    -60      -10        140     180
-
-			w180s60    -90      -60       -180    -120
-			w120s60    -90      -60       -120     -60
-			w060s60    -90      -60        -60       0
-			w000s60    -90      -60          0      60
-			e060s60    -90      -60         60     120
-			e120s60    -90      -60        120     180
-		 */
-		double lat = coord.x;
-		double lon = coord.y;
-
-		//ensure within bounds
-		// TODO handle lat==-90
-		if( lon == 180.) lon = -180.;
-		if(lat <= -90 || lon < -180 || 180 <= lon) {
-			throw new IllegalArgumentException("Coordinate out of Bounds. "+coord);
-		}
-
-		StringBuilder prefix = new StringBuilder();
-		if(lat <= -60) {
-			//Antarctic: devided into 60 deg segments
-			if(-180 <= lon && lon < -120) {
-				prefix.append("w180");
-			} else if(-120 <= lon && lon < -60) {
-				prefix.append("w120");
-			} else if(-60 <= lon && lon < 0) {
-				prefix.append("w060");
-			} else if(0 <= lon && lon < 60) {
-				prefix.append("w000");
-			} else if(60 <= lon && lon < 120) {
-				prefix.append("e060");
-			} else if(120 <= lon && lon < 180) {
-				prefix.append("e120");
-			} else {
-				throw new IllegalArgumentException("Illegal Longitude: "+lon);
-			}
-
-			prefix.append("s60");
-		} else {
-			// 40 deg segments
-			if(-180 <= lon && lon < -140) {
-				prefix.append("w180");
-			} else if(-140 <= lon && lon < -100) {
-				prefix.append("w140");
-			} else if(-100 <= lon && lon < -60) {
-				prefix.append("w100");
-			} else if(-60 <= lon && lon < -20) {
-				prefix.append("w060");
-			} else if(-20 <= lon && lon < 20) {
-				prefix.append("w020");
-			} else if(20 <= lon && lon < 60) {
-				prefix.append("e020");
-			} else if(60 <= lon && lon < 100) {
-				prefix.append("e060");
-			} else if(100 <= lon && lon < 140) {
-				prefix.append("e100");
-			} else if(140 <= lon && lon < 180) {
-				prefix.append("e140");
-			} else {
-				throw new IllegalArgumentException("Illegal Longitude: "+lon);
-			}
-
-			if(-60 < lat && lat <= -10) {
-				prefix.append("s10");
-			} else if(-10 < lat && lat <= 40) {
-				prefix.append("n40");
-			} else if(40 < lat && lat <= 90) {
-				prefix.append("n90");
-			} else {
-				throw new IllegalArgumentException("Illegal Latitude: "+lat);
-			}
-		}
-
-		return prefix.toString();
-	}
-
-	/**
-	 * Get the bounding envelope for the tile around a given coordinate
-	 * @param coord
-	 * @return
-	 */
-	protected Envelope getTileEnvelope(Coordinate coord) {
-		double lat = coord.x;
-		double lon = coord.y;
-
-		//ensure within bounds
-		// TODO handle lat==-90
-		if( lon == 180.) lon = -180.;
-		if(lat <= -90 || lon < -180 || 180 <= lon) {
-			throw new IllegalArgumentException("Coordinate out of Bounds. "+coord);
-		}
-		double left,right,upper,lower;
-		if(lat <= -60) {
-			//Antarctic: devided into 60 deg segments
-			if(-180 <= lon && lon < -120) {
-				left = -180;
-				right = -120;
-			} else if(-120 <= lon && lon < -60) {
-				left = -120;
-				right = -60;
-			} else if(-60 <= lon && lon < 0) {
-				left = -60;
-				right = 0;
-			} else if(0 <= lon && lon < 60) {
-				left = 0;
-				right = 60;
-			} else if(60 <= lon && lon < 120) {
-				left = 60;
-				right = 120;
-			} else if(120 <= lon && lon < 180) {
-				left = 120;
-				right = 180;
-			} else {
-				throw new IllegalArgumentException("Illegal Longitude: "+lon);
-			}
-
-			lower = -90;
-			upper = -60;
-		} else {
-			// 40 deg segments
-			if(-180 <= lon && lon < -140) {
-				left = -180;
-				right = -140;
-			} else if(-140 <= lon && lon < -100) {
-				left = -140;
-				right = -100;
-			} else if(-100 <= lon && lon < -60) {
-				left = -100;
-				right = -60;
-			} else if(-60 <= lon && lon < -20) {
-				left = -60;
-				right = -20;
-			} else if(-20 <= lon && lon < 20) {
-				left = -20;
-				right = 20;
-			} else if(20 <= lon && lon < 60) {
-				left = 20;
-				right = 60;
-			} else if(60 <= lon && lon < 100) {
-				left = 60;
-				right = 100;
-			} else if(100 <= lon && lon < 140) {
-				left = 100;
-				right = 140;
-			} else if(140 <= lon && lon < 180) {
-				left = 140;
-				right = 180;
-			} else {
-				throw new IllegalArgumentException("Illegal Longitude: "+lon);
-			}
-
-			if(-60 < lat && lat <= -10) {
-				lower = -60;
-				upper = -10;
-			} else if(-10 < lat && lat <= 40) {
-				lower = -10;
-				upper = 40;
-			} else if(40 < lat && lat <= 90) {
-				lower = 40;
-				upper = 90;
-			} else {
-				throw new IllegalArgumentException("Illegal Latitude: "+lat);
-			}
-		}
-		Envelope2D env = new Envelope2D(new DirectPosition2D(upper,left),new DirectPosition2D(lower,right));
-		return env;
-	}
-
-	@Override
-	protected Callable<GridCoverage2D> createTileLoader(Coordinate coord) {
+	protected Callable<GridCoverage2D> createTileLoader(int tile) {
 		// Get the tile prefix, eg 'w140n40'
-		final String tile = getTileName(coord);
-		final Envelope tileBounds = getTileEnvelope(coord);
+		final String name = TILES.getTileName(tile);
 
 		// file to fetch from ftp
-		final String fileBase = tile + ".Bathymetry.srtm";
+		final String fileBase = name + ".Bathymetry.srtm";
 
-		// Download the data files asynchronously
+		// Download the data file asynchronously
 		// Should take about 40s to download dem file
 		try {
 			cache.prefetch(fileBase+".dem", new URL(SMTP_PLUS_SERVER+fileBase) );
-			cache.prefetch(fileBase+".ers", new URL(SMTP_PLUS_SERVER+fileBase+".ers") );
-
-			// Create bogus GTopo30 files for the inflexible Reader
-			createHDR(fileBase+".hdr",tileBounds);
-			createPRJ(fileBase+".prj");
-			createSTX(fileBase+".stx");
 		} catch (MalformedURLException e) {
-			throw new RuntimeException("[Bug] bad URL for downloading tile "+tile,e);
+			throw new RuntimeException("[Bug] bad URL for downloading tile "+name,e);
 		}
 
-		return new GridLoader(tile, fileBase);
+		return new GridLoader(name, fileBase, TILES.getNorth(tile), TILES.getSouth(tile),
+				TILES.getWest(tile), TILES.getEast(tile));
 	}
 
 	private final class GridLoader implements Callable<GridCoverage2D> {
 		private final String tile;
 		private final String fileBase;
+		private final double north;
+		private final double south;
+		private final double west;
+		private final double east;
 
-		private GridLoader(String tile, String fileBase) {
+		private GridLoader(String tile, String fileBase,
+				double north, double south, double west, double east) {
 			this.tile = tile;
 			this.fileBase = fileBase;
+			this.north = north;
+			this.south = south;
+			this.west = west;
+			this.east = east;
 		}
 
 		@Override
 		public GridCoverage2D call() throws Exception {
 
-			// fetch all the files synchronously
-			cache.fetch(fileBase+".hdr");
-			cache.fetch(fileBase+".prj");
-			cache.fetch(fileBase+".stx");
-			cache.fetch(fileBase+".ers");
-			cache.fetch(fileBase+".dem");
+			// fetch the file synchronously
+			long fetchStart = System.nanoTime();
+			boolean fetched = false;
+			try {
+				cache.fetch(fileBase+".dem");
+				fetched = true;
+			} finally {
+				ElevationMetrics files = getFileMetrics();
+				if( files != null ) {
+					files.record(1, 0, System.nanoTime()-fetchStart, !fetched);
+				}
+			}
 
 			long start = System.currentTimeMillis();
 
 			File demFile = new File(cache.getDir(),fileBase+".dem");
 
+			int rows = (int) Math.round((north-south)/CELL_SIZE);
+			int cols = (int) Math.round((east-west)/CELL_SIZE);
+
 			// Check for cache errors
 			if( !demFile.exists() ) {
 				log.severe("[Bug] File "+demFile+" not found in cache.");
-			} else if(	!(
-					demFile.length() == 2l*6000*4800 || // typical tiles
-					demFile.length() == 2l*7200*3600 // Antarctic tiles
-					) )
-			{
+			} else if( demFile.length() != 2l*rows*cols ) {
 				log.severe("Error downloading "+demFile+". Size is "+demFile.length()+". 1 Attempt remaining. If error persist, delete it manually.");
 				boolean deleted = cache.delete(fileBase+".dem");
 				if(deleted) {
@@ -453,14 +177,14 @@ public class SRTMPlusElevationProvider extends GridCoverageElevationProvider
 				}
 			}
 
-			// Load the grid into memory
-			GTopo30Reader reader = new GTopo30Reader( demFile );
-			GridCoverage2D coverage = reader.read(null);
+			// Map the tile. Samples are paged in by the OS as needed.
+			MappedElevationTile mapped = new MappedElevationTile(demFile,
+					cols, rows, north, west, CELL_SIZE, CELL_SIZE);
+			GridCoverage2D coverage = mapped.getCoverage(tile);
 
-			log.info(String.format("Loaded grid %s. Took %f s%n",
+			log.info(String.format("Mapped grid %s. Took %f s%n",
 					tile, (System.currentTimeMillis()-start)/1000.));
 
-			// Dummy result object
 			return coverage;
 		}
 	}
@@ -76,20 +76,7 @@ public class TestElevationProvider implements ElevationProvider{//,Configurable
 
 		ArrayList<Double> elevations = new ArrayList<Double>(l.size());
 		for(Coordinate c : l) {
-			double latfrac = (c.x-south)/(north-south);
-			double lonfrac = (c.y-west)/(east-west);
-
-			double elev;
-			// outside the box, return random values
-			if(0>latfrac || latfrac>1 || 0>lonfrac || lonfrac>1) {
-				elev = Math.random()*(maxElev-minElev)+minElev;
-			} else {
-				if(latfrac<.05)
-					elev = minElev;
-				else
-					elev = (latfrac+lonfrac)/2*(maxElev-minElev)+minElev;
-			}
-			elevations.add(elev);
+			elevations.add(getElevation(c.x,c.y));
 		}
 		return elevations;
 	}
@@ -98,8 +85,25 @@ public class TestElevationProvider implements ElevationProvider{//,Configurable
 	public Double fetchElevation(Coordinate c) throws DataUnavailableException {
 		requestsMade++;
 
-		double latfrac = (c.x-south)/(north-south);
-		double lonfrac = (c.y-west)/(east-west);
+		return getElevation(c.x,c.y);
+	}
+
+	@Override
+	public void fetchElevations(double[] lat, double[] lon, double[] out)
+			throws DataUnavailableException {
+		requestsMade++;
+
+		for(int i=0;i<lat.length;i++) {
+			out[i] = getElevation(lat[i],lon[i]);
+		}
+	}
+
+	/**
+	 * Calculate the test pattern at a point
+	 */
+	private double getElevation(double lat, double lon) {
+		double latfrac = (lat-south)/(north-south);
+		double lonfrac = (lon-west)/(east-west);
 
 		double elev;
 		// outside the box, return random values
@@ -0,0 +1,182 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.Envelope2D;
+
+/**
+ * Reads samples from a grid by row and column.
+ *
+ * <p>The mapping from lat/lon to grid cells is computed once per grid.
+ * For single-tile images with a {@link ComponentSampleModel} (such as those
+ * from {@link MappedElevationTile}), samples are read straight from the
+ * DataBuffer. This avoids the CRS checks and allocations of
+ * {@link GridCoverage2D#evaluate}.
+ *
+ * <p>Samples are raw values of the first band.
+ * @author Spencer Bliven
+ */
+public class TileSampler {
+	private final GridCoverage2D grid; // may be null
+	private final RenderedImage image;
+	private final int width;
+	private final int height;
+	private final double north;
+	private final double west;
+	private final double cellWidth;
+	private final double cellHeight;
+
+	// Direct access to the data, if the layout allows it
+	private final DataBuffer data; // null if unavailable
+	private final int bank;
+	private final int offset; // index of (0,0)
+	private final int pixelStride;
+	private final int scanlineStride;
+
+	/**
+	 * @param grid A grid in (lon,lat) order
+	 */
+	public TileSampler(GridCoverage2D grid) {
+		this(grid, grid.getRenderedImage(), grid.getEnvelope2D());
+	}
+
+	private TileSampler(GridCoverage2D grid, RenderedImage image, Envelope2D env) {
+		this(grid, image, env.getMaxY(), env.getMinX(),
+				env.getWidth()/image.getWidth(), env.getHeight()/image.getHeight());
+	}
+
+	/**
+	 * @param image Samples, with row 0 at the north
+	 * @param north Latitude of the northern edge
+	 * @param west Longitude of the western edge
+	 * @param cellWidth Width of each cell, in degrees longitude
+	 * @param cellHeight Height of each cell, in degrees latitude
+	 */
+	TileSampler(RenderedImage image, double north, double west, double cellWidth, double cellHeight) {
+		this(null, image, north, west, cellWidth, cellHeight);
+	}
+
+	private TileSampler(GridCoverage2D grid, RenderedImage image,
+			double north, double west, double cellWidth, double cellHeight) {
+		this.grid = grid;
+		this.image = image;
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.north = north;
+		this.west = west;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+
+		DataBuffer data = null;
+		int bank = 0, offset = 0, pixelStride = 0, scanlineStride = 0;
+		if( image.getNumXTiles() == 1 && image.getNumYTiles() == 1 ) {
+			Raster raster = image.getTile(image.getMinTileX(), image.getMinTileY());
+			SampleModel model = raster.getSampleModel();
+			if( model instanceof ComponentSampleModel ) {
+				ComponentSampleModel csm = (ComponentSampleModel) model;
+				data = raster.getDataBuffer();
+				bank = csm.getBankIndices()[0];
+				pixelStride = csm.getPixelStride();
+				scanlineStride = csm.getScanlineStride();
+				// Raster coordinates of image pixel (0,0) in the sample model
+				int x = image.getMinX()-raster.getSampleModelTranslateX();
+				int y = image.getMinY()-raster.getSampleModelTranslateY();
+				offset = csm.getBandOffsets()[0] + y*scanlineStride + x*pixelStride;
+			}
+		}
+		this.data = data;
+		this.bank = bank;
+		this.offset = offset;
+		this.pixelStride = pixelStride;
+		this.scanlineStride = scanlineStride;
+	}
+
+	/**
+	 * Read one sample
+	 * @param col Column, from 0 at the west
+	 * @param row Row, from 0 at the north
+	 * @return The sample value
+	 */
+	public double getSample(int col, int row) {
+		if( data != null ) {
+			return data.getElemDouble(bank, offset + row*scanlineStride + col*pixelStride);
+		}
+		int x = image.getMinX()+col;
+		int y = image.getMinY()+row;
+		int tileX = (int) Math.floor((x-image.getTileGridXOffset())/(double)image.getTileWidth());
+		int tileY = (int) Math.floor((y-image.getTileGridYOffset())/(double)image.getTileHeight());
+		return image.getTile(tileX, tileY).getSampleDouble(x, y, 0);
+	}
+
+	/**
+	 * @return The sample of the cell containing a point. Points off the grid
+	 *  use the nearest edge cell.
+	 */
+	public double nearest(double lat, double lon) {
+		int col = (int) Math.floor((lon-west)/cellWidth);
+		int row = (int) Math.floor((north-lat)/cellHeight);
+		// Guard against rounding errors at the edges
+		col = Math.max(0, Math.min(col, width-1));
+		row = Math.max(0, Math.min(row, height-1));
+		return getSample(col, row);
+	}
+
+	/**
+	 * Bilinear interpolation between the centers of the four cells nearest
+	 * to a point. Along the edges of the grid the outermost samples are
+	 * extended.
+	 */
+	public double bilinear(double lat, double lon) {
+		// Position relative to cell centers
+		double x = (lon-west)/cellWidth - .5;
+		double y = (north-lat)/cellHeight - .5;
+		int col = (int) Math.floor(x);
+		int row = (int) Math.floor(y);
+		double dx = x-col;
+		double dy = y-row;
+
+		int col0 = Math.max(0, Math.min(col, width-1));
+		int col1 = Math.max(0, Math.min(col+1, width-1));
+		int row0 = Math.max(0, Math.min(row, height-1));
+		int row1 = Math.max(0, Math.min(row+1, height-1));
+
+		double nw = getSample(col0, row0);
+		double ne = getSample(col1, row0);
+		double sw = getSample(col0, row1);
+		double se = getSample(col1, row1);
+
+		double n = nw + (ne-nw)*dx;
+		double s = sw + (se-sw)*dx;
+		return n + (s-n)*dy;
+	}
+
+	/**
+	 * @return The grid this samples, or null if created from an image
+	 */
+	public GridCoverage2D getGrid() {
+		return grid;
+	}
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	public double getNorth() {
+		return north;
+	}
+	public double getWest() {
+		return west;
+	}
+	public double getCellWidth() {
+		return cellWidth;
+	}
+	public double getCellHeight() {
+		return cellHeight;
+	}
+}
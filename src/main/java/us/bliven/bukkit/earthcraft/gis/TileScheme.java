@@ -0,0 +1,164 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+/**
+ * Describes how the globe is divided into rectangular tiles.
+ *
+ * <p>The globe is split into latitude bands, and each band into tiles of
+ * equal width starting at 180 W. Tiles are numbered consecutively from the
+ * northwest, band by band, so indices are dense and can be used directly in
+ * arrays.
+ *
+ * <p>Latitudes are inclusive along the northern edge of a tile and exclusive
+ * along the southern edge. Longitudes are inclusive on the western edge and
+ * exclusive on the eastern edge.
+ *
+ * <p>Lookups use a table with one entry per <tt>resolution</tt> degrees of
+ * latitude, so finding a tile takes a few arithmetic operations.
+ * @author Spencer Bliven
+ */
+public class TileScheme {
+	private final double[] edges; // band edges, north to south
+	private final double[] widths; // tile width for each band
+	private final int[] columns; // tiles in each band
+	private final int[] firstTile; // index of the westernmost tile in each band
+	private final int tileCount;
+
+	private final double resolution;
+	private final int[] bandLookup; // band for each resolution step south of 90 N
+
+	private final double cellSize; // degrees, or NaN if unknown
+
+	/**
+	 * @param edges Band edges in degrees latitude, from 90 to -90
+	 * @param widths Width of the tiles in each band, in degrees longitude.
+	 *  Must divide 360.
+	 * @param resolution Spacing which all band edges are multiples of
+	 */
+	public TileScheme(double[] edges, double[] widths, double resolution) {
+		this(edges, widths, resolution, Double.NaN);
+	}
+
+	/**
+	 * @param edges Band edges in degrees latitude, from 90 to -90
+	 * @param widths Width of the tiles in each band, in degrees longitude.
+	 *  Must divide 360.
+	 * @param resolution Spacing which all band edges are multiples of
+	 * @param cellSize Size of the cells in each tile, in degrees
+	 */
+	public TileScheme(double[] edges, double[] widths, double resolution, double cellSize) {
+		if(edges.length != widths.length+1) {
+			throw new IllegalArgumentException("Need one tile width per band");
+		}
+		if(edges[0] != 90 || edges[edges.length-1] != -90) {
+			throw new IllegalArgumentException("Bands must cover 90 to -90");
+		}
+		this.edges = edges.clone();
+		this.widths = widths.clone();
+		this.resolution = resolution;
+		this.cellSize = cellSize;
+
+		int bands = widths.length;
+		columns = new int[bands];
+		firstTile = new int[bands];
+		int count = 0;
+		for(int b=0;b<bands;b++) {
+			columns[b] = (int) Math.round(360/widths[b]);
+			if(Math.abs(columns[b]*widths[b]-360) > 1e-9) {
+				throw new IllegalArgumentException("Tile width "+widths[b]+" does not divide 360");
+			}
+			firstTile[b] = count;
+			count += columns[b];
+		}
+		tileCount = count;
+
+		bandLookup = new int[(int) Math.round(180/resolution)];
+		int band = 0;
+		for(int i=0;i<bandLookup.length;i++) {
+			double north = 90-i*resolution;
+			while(north <= edges[band+1]+1e-9) {
+				band++;
+			}
+			double south = north-resolution;
+			if(south < edges[band+1]-1e-9) {
+				throw new IllegalArgumentException("Band edge "+edges[band+1]
+						+" is not a multiple of "+resolution);
+			}
+			bandLookup[i] = band;
+		}
+	}
+
+	/**
+	 * Find the tile containing a point
+	 * @param lat Latitude in (-90,90]
+	 * @param lon Longitude in [-180,180]. 180 is treated as -180.
+	 * @return The tile index
+	 * @throws IllegalArgumentException if the point is off the map
+	 */
+	public int getTileIndex(double lat, double lon) {
+		if( lon == 180.) lon = -180.;
+		// TODO handle lat==-90
+		if(!(-90 < lat && lat <= 90 && -180 <= lon && lon < 180)) {
+			throw new IllegalArgumentException("Coordinate out of Bounds. ("+lat+", "+lon+")");
+		}
+		int band = bandLookup[(int) ((90-lat)/resolution)];
+		int col = (int) ((lon+180)/widths[band]);
+		if(col >= columns[band]) {
+			col = columns[band]-1; // rounding just west of 180
+		}
+		return firstTile[band]+col;
+	}
+
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return The size of the cells in each tile, in degrees, or NaN if unknown
+	 */
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return The band (row of tiles) containing a tile
+	 */
+	private int getBand(int tile) {
+		if(tile < 0 || tileCount <= tile) {
+			throw new IndexOutOfBoundsException("No tile "+tile);
+		}
+		int band = 0;
+		while(band+1 < firstTile.length && firstTile[band+1] <= tile) {
+			band++;
+		}
+		return band;
+	}
+
+	public double getNorth(int tile) {
+		return edges[getBand(tile)];
+	}
+	public double getSouth(int tile) {
+		return edges[getBand(tile)+1];
+	}
+	public double getWest(int tile) {
+		int band = getBand(tile);
+		return -180+(tile-firstTile[band])*widths[band];
+	}
+	public double getEast(int tile) {
+		int band = getBand(tile);
+		return -180+(tile-firstTile[band]+1)*widths[band];
+	}
+
+	/**
+	 * Get the GTOPO30-style name of a tile, giving its northwest corner.
+	 * For instance, the tile with its corner at 140 W, 40 N is "w140n40".
+	 * @param tile Tile index
+	 * @return The tile name
+	 */
+	public String getTileName(int tile) {
+		int west = (int) Math.round(getWest(tile));
+		int north = (int) Math.round(getNorth(tile));
+		return String.format("%s%03d%s%02d",
+				west <= 0 ? "w" : "e", Math.abs(west),
+				north > 0 ? "n" : "s", Math.abs(north));
+	}
+}
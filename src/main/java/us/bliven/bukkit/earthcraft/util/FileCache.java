@@ -1,6 +1,5 @@
 package us.bliven.bukkit.earthcraft.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -8,6 +7,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -21,9 +26,20 @@ import java.util.logging.Logger;
 
 /**
  * Manages file downloads
+ *
+ * <p>Files are written under a temporary name and renamed once complete, so
+ * a file is only ever visible in the cache directory once it has been fully
+ * downloaded. Temporary files left behind by a crash are removed when the
+ * cache is created.
  * @author Spencer Bliven
  */
 public class FileCache {
+	// Number of simultaneous downloads when using the internal executor
+	private static final int DEFAULT_THREADS = 4;
+	// Bytes to move per NIO transfer
+	private static final long TRANSFER_SIZE = 1<<24;
+	private static final String PARTIAL_SUFFIX = ".part";
+
 	private final String dir;
 
 	private ExecutorService executor;
@@ -38,7 +54,7 @@ public class FileCache {
 		this(System.getProperty("java.io.tmpdir"));
 	}
 	public FileCache(String cacheDir) {
-		this( cacheDir, Executors.newFixedThreadPool(2) );
+		this( cacheDir, Executors.newFixedThreadPool(DEFAULT_THREADS) );
 		this.shutdownExecutorOnExit = true;
 	}
 	/**
@@ -58,6 +74,17 @@ public class FileCache {
 		if(!dirFile.exists()) {
 			log.info("Creating "+dirFile.getAbsolutePath());
 			dirFile.mkdirs();
+		} else {
+			// Remove downloads interrupted by a crash
+			File[] partials = dirFile.listFiles();
+			if(partials != null) {
+				for(File partial : partials) {
+					if(partial.getName().endsWith(PARTIAL_SUFFIX)) {
+						log.info("Removing incomplete download "+partial);
+						partial.delete();
+					}
+				}
+			}
 		}
 
 		this.executor = executor;
@@ -279,6 +306,7 @@ public class FileCache {
 		}
 
 		// Delete the file
+		new File(dir,filename+PARTIAL_SUFFIX).delete();
 		File f = new File(dir,filename);
 		return f.delete();
 	}
@@ -293,6 +321,48 @@ public class FileCache {
 		return avail && new File(this.dir,filename).exists();
 	}
 
+	/**
+	 * Copy a stream to a temporary file, then rename it to its final name
+	 * @param in Source; closed when finished
+	 * @param file Destination
+	 * @param expectedLength Expected number of bytes, or -1 if unknown
+	 * @return The number of bytes written
+	 * @throws IOException If the copy fails or is the wrong length. The
+	 *  temporary file is removed.
+	 */
+	private static long transfer(InputStream in, File file, long expectedLength) throws IOException {
+		File partial = new File(file.getParentFile(), file.getName()+PARTIAL_SUFFIX);
+		long length = 0;
+		boolean success = false;
+		ReadableByteChannel src = Channels.newChannel(in);
+		try {
+			FileOutputStream out = new FileOutputStream(partial);
+			try {
+				FileChannel dest = out.getChannel();
+				long n;
+				while( (n = dest.transferFrom(src, length, TRANSFER_SIZE)) > 0) {
+					length += n;
+				}
+				dest.force(false);
+			} finally {
+				out.close();
+			}
+			if( expectedLength >= 0 && length != expectedLength ) {
+				throw new IOException(String.format("Incomplete download of %s: got %d of %d bytes",
+						file, length, expectedLength));
+			}
+			Files.move(partial.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			success = true;
+		} finally {
+			src.close();
+			if(!success) {
+				partial.delete();
+			}
+		}
+		return length;
+	}
+
 	protected class URLRequest implements Callable<Response> {
 	    private URL url;
 	    private File file;
@@ -310,19 +380,14 @@ public class FileCache {
 	    @Override
 	    public Response call() throws IOException {
 	    	long startTime = System.currentTimeMillis();
-			BufferedInputStream in = new BufferedInputStream(url.openStream());
-			FileOutputStream out = new FileOutputStream(file);
+	    	URLConnection connection = url.openConnection();
+	    	long expected = connection.getContentLengthLong();
 
-			int i = 0;
-			byte[] bytesIn = new byte[1024];
-			while ((i = in.read(bytesIn)) >= 0) {
-				out.write(bytesIn, 0, i);
-			}
-			out.close();
-			in.close();
+	    	long length = transfer(connection.getInputStream(), file, expected);
 
-			System.out.println(String.format("Downloaded %s. Took %.2f sec%n",
-					file.toString(), (System.currentTimeMillis()-startTime)/1000.));
+	    	double secs = Math.max(System.currentTimeMillis()-startTime,1)/1000.;
+	    	log.info(String.format("Downloaded %s (%.1f MB). Took %.2f sec, %.2f MB/s",
+	    			file.toString(), length/1e6, secs, length/1e6/secs));
 
 	        return new Response(file.toString());
 	    }
@@ -344,16 +409,7 @@ public class FileCache {
 
 	    @Override
 	    public Response call() throws IOException {
-			FileOutputStream out = new FileOutputStream(file);
-
-			int i = 0;
-			byte[] bytesIn = new byte[1024];
-			while ((i = in.read(bytesIn)) >= 0) {
-				out.write(bytesIn, 0, i);
-			}
-			out.close();
-			in.close();
-
+	    	transfer(in, file, -1);
 	        return new Response(file.toString());
 	    }
 	}
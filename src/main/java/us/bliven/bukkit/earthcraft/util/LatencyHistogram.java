@@ -0,0 +1,106 @@
+package us.bliven.bukkit.earthcraft.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, in nanoseconds.
+ *
+ * Each power of two is split into four buckets, so percentiles are accurate
+ * to within 25%. Recording never allocates.
+ * @author Spencer Bliven
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 4; // per power of two
+	private static final int BUCKETS = SUB_BUCKETS*62;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos A duration. Negative values are treated as 0.
+	 */
+	public void record(long nanos) {
+		if( nanos < 0 ) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long prev;
+		while( (prev = max.get()) < nanos && !max.compareAndSet(prev, nanos) ) {}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Mean duration in ns, or 0 if empty
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get()/n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param p Fraction of samples, in [0,1]
+	 * @return Upper bound of the bucket containing the p-th quantile, in ns,
+	 *  or 0 if empty
+	 */
+	public long getPercentile(double p) {
+		long n = count.get();
+		if( n == 0 ) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p*n);
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += counts.get(i);
+			if( seen >= rank && seen > 0 ) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for(int i=0;i<BUCKETS;i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	static int getBucket(long nanos) {
+		if( nanos < SUB_BUCKETS ) {
+			return (int) nanos;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exp-2)) & (SUB_BUCKETS-1);
+		return SUB_BUCKETS*(exp-1) + sub;
+	}
+
+	static long getUpperBound(int bucket) {
+		if( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		int exp = bucket/SUB_BUCKETS + 1;
+		int sub = bucket%SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS+sub+1) << (exp-2)) - 1;
+	}
+}
@@ -0,0 +1,179 @@
+package us.bliven.bukkit.earthcraft.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity map from long keys to double values.
+ *
+ * <p>Entries are stored in parallel primitive arrays using open addressing with
+ * linear probing, so lookups never allocate. Once the capacity is reached,
+ * inserting a new key evicts an old entry using the CLOCK algorithm, an
+ * approximation of least-recently-used.
+ *
+ * <p>Not thread safe.
+ * @author Spencer Bliven
+ */
+public class LongDoubleCache {
+	private final long[] keys;
+	private final double[] values;
+	private final boolean[] used;
+	private final boolean[] referenced; // CLOCK bit, set on each access
+	private final int mask;
+	private final int capacity;
+	private int size;
+	private int hand; // CLOCK position
+
+	/**
+	 * @param capacity Maximum number of entries
+	 */
+	public LongDoubleCache(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		// Keep the load factor at or below 1/2
+		int slots = Integer.highestOneBit(capacity)*4;
+		if(slots < 0) {
+			throw new IllegalArgumentException("Capacity too large: "+capacity);
+		}
+		this.keys = new long[slots];
+		this.values = new double[slots];
+		this.used = new boolean[slots];
+		this.referenced = new boolean[slots];
+		this.mask = slots-1;
+		this.capacity = capacity;
+		this.size = 0;
+		this.hand = 0;
+	}
+
+	/**
+	 * @param key
+	 * @return The slot containing key, or -1 if absent
+	 */
+	private int find(long key) {
+		int slot = hash(key);
+		while(used[slot]) {
+			if(keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Get a value, marking it as recently used
+	 * @param key
+	 * @return The value stored for key, or NaN if absent
+	 */
+	public double get(long key) {
+		int slot = find(key);
+		if(slot < 0) {
+			return Double.NaN;
+		}
+		referenced[slot] = true;
+		return values[slot];
+	}
+
+	/**
+	 * Store a value, evicting another entry if the cache is full
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, double value) {
+		int slot = find(key);
+		if(slot >= 0) {
+			values[slot] = value;
+			referenced[slot] = true;
+			return;
+		}
+		if(size >= capacity) {
+			evict();
+		}
+		slot = hash(key);
+		while(used[slot]) {
+			slot = (slot+1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+		referenced[slot] = false;
+		size++;
+	}
+
+	/**
+	 * Remove a key
+	 * @param key
+	 * @return true if the key was present
+	 */
+	public boolean remove(long key) {
+		int slot = find(key);
+		if(slot < 0) {
+			return false;
+		}
+		delete(slot);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Advance the clock hand to the first unreferenced entry and remove it
+	 */
+	private void evict() {
+		while(true) {
+			if(used[hand]) {
+				if(referenced[hand]) {
+					// Second chance
+					referenced[hand] = false;
+				} else {
+					delete(hand);
+					return;
+				}
+			}
+			hand = (hand+1) & mask;
+		}
+	}
+
+	/**
+	 * Empty a slot, shifting later entries in the probe sequence back so
+	 * that lookups still find them.
+	 * @param slot
+	 */
+	private void delete(int slot) {
+		int gap = slot;
+		int next = (gap+1) & mask;
+		while(used[next]) {
+			int home = hash(keys[next]);
+			// Move next into the gap unless its home lies cyclically in (gap,next]
+			if( ((next-home) & mask) >= ((next-gap) & mask) ) {
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				referenced[gap] = referenced[next];
+				gap = next;
+			}
+			next = (next+1) & mask;
+		}
+		used[gap] = false;
+		size--;
+	}
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+}
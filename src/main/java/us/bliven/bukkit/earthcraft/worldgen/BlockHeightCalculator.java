@@ -0,0 +1,165 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+import us.bliven.bukkit.earthcraft.gis.ElevationProjection;
+import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.Location;
+import us.bliven.bukkit.earthcraft.gis.MapProjection;
+import us.bliven.bukkit.earthcraft.gis.ProjectionTools;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Calculates terrain heights for block columns.
+ *
+ * Combines the map projection, elevation provider and elevation projection.
+ * Unlike {@link EarthChunkProvider}, this does not need a World, so it can
+ * also be used outside of a running server.
+ * @author Spencer Bliven
+ */
+public class BlockHeightCalculator {
+	private static final double WORLD_HEIGHT = 256; //TODO parameterize?
+
+	private final MapProjection mapProjection;
+	private final ElevationProjection elevationProjection;
+	private final ElevationProvider elevationProvider;
+
+	private final int defaultBlockHeight;
+
+	private final Logger log;
+
+	/**
+	 * @param mapProjection Converts block positions to lat/lon
+	 * @param elevationProjection Converts elevations to block heights
+	 * @param elevationProvider Source of elevations
+	 * @param defaultBlockHeight Height to use where no elevation is available
+	 * @param log Logger for errors
+	 */
+	public BlockHeightCalculator(MapProjection mapProjection,
+			ElevationProjection elevationProjection,
+			ElevationProvider elevationProvider,
+			int defaultBlockHeight, Logger log) {
+		this.mapProjection = mapProjection;
+		this.elevationProjection = elevationProjection;
+		this.elevationProvider = elevationProvider;
+		this.defaultBlockHeight = defaultBlockHeight;
+		this.log = log;
+	}
+
+	public BlockHeightCalculator(MapProjection mapProjection,
+			ElevationProjection elevationProjection,
+			ElevationProvider elevationProvider) {
+		this(mapProjection, elevationProjection, elevationProvider, 1,
+				Logger.getLogger(BlockHeightCalculator.class.getName()));
+	}
+
+	public Coordinate getLatLon( int worldx, int worldz) {
+		Location root = new Location(null,worldx,0,worldz);
+		// Translate x/z to lat/lon
+		Coordinate coord = mapProjection.locationToCoordinate(root);
+		return coord;
+	}
+
+	/**
+	 * Calculate the elevation for a position
+	 * @param coord lat/lon coordinate. coord.z will be set to the fetched elevation
+	 * @return block height (y); number of solid blocks to generate
+	 */
+	public int getBlockHeight( Coordinate coord) throws DataUnavailableException{
+
+		// get elevation in m
+		Double elev  = elevationProvider.fetchElevation(coord);
+
+		if(elev == null) {
+			return defaultBlockHeight;
+		}
+
+		// Side effect: Store elevation into coord
+		if(!Double.isNaN(elev)) {
+			coord.z = elev;
+		}
+
+		return elevationToBlockHeight(elev);
+	}
+
+	/**
+	 * Calculate the block heights for every column of a chunk.
+	 *
+	 * All 256 columns are projected first and then fetched from the
+	 * elevation provider with a single primitive request.
+	 * @param cx chunk x coordinate
+	 * @param cz chunk z coordinate
+	 * @param heights Output array of at least 256 block heights, indexed by
+	 *  <tt>(lz&lt;&lt;4)|lx</tt>
+	 */
+	public void getBlockHeights(int cx, int cz, int[] heights) {
+		// Project all columns
+		double[] lats = new double[256];
+		double[] lons = new double[256];
+		for(int lz=0; lz<16; lz++) {
+			for(int lx=0; lx<16; lx++) {
+				Coordinate coord = getLatLon(cx*16+lx, cz*16+lz);
+				lats[(lz<<4)|lx] = coord.x;
+				lons[(lz<<4)|lx] = coord.y;
+			}
+		}
+
+		// Get elevations
+		double[] elevs = new double[256];
+		try {
+			elevationProvider.fetchElevations(lats, lons, elevs);
+		} catch (DataUnavailableException e) {
+			// Severe but expected exception
+			log.log(Level.SEVERE,"Data unavailable for chunk "+cx+","+cz,e);
+			Arrays.fill(heights, 0, 256, defaultBlockHeight);
+			return;
+		} catch (Exception e) {
+			// Unexpected exception; indicates a bug
+			log.log(Level.SEVERE,"[Bug] Unexpected error fetching heights for chunk " +
+					cx+","+cz +
+					" (" + ProjectionTools.latlonString(new Coordinate(lats[0],lons[0])) + ")", e);
+			Arrays.fill(heights, 0, 256, defaultBlockHeight);
+			return;
+		}
+
+		for(int i=0; i<256; i++) {
+			heights[i] = elevationToBlockHeight(elevs[i]);
+		}
+	}
+
+	/**
+	 * Translate an elevation to a block height
+	 * @param elev elevation in meters, or NaN if unavailable
+	 * @return block height (y); number of solid blocks to generate
+	 */
+	public int elevationToBlockHeight(double elev) {
+		if( Double.isNaN(elev) ) {
+			return defaultBlockHeight;
+		}
+
+		// translate elevation to blocks
+		double y = elevationProjection.elevationToY(elev);
+
+		if( Double.isNaN(y) ) {
+			return defaultBlockHeight;
+		} else {
+			return (int) Math.floor(Math.min(y, WORLD_HEIGHT));
+		}
+	}
+
+	public MapProjection getMapProjection() {
+		return mapProjection;
+	}
+
+	public ElevationProjection getElevationProjection() {
+		return elevationProjection;
+	}
+
+	public ElevationProvider getElevationProvider() {
+		return elevationProvider;
+	}
+}
@@ -1,10 +1,15 @@
 package us.bliven.bukkit.earthcraft.worldgen;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.minecraft.block.state.IBlockState;
 import net.minecraft.init.Blocks;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.ChunkPrimer;
@@ -14,9 +19,8 @@ import us.bliven.bukkit.earthcraft.biome.CoordBiomeProvider;
 import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
 import us.bliven.bukkit.earthcraft.gis.ElevationProjection;
 import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
-import us.bliven.bukkit.earthcraft.gis.Location;
 import us.bliven.bukkit.earthcraft.gis.MapProjection;
-import us.bliven.bukkit.earthcraft.gis.ProjectionTools;
+import us.bliven.bukkit.earthcraft.gis.Prefetchable;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
@@ -25,8 +29,6 @@ import com.vividsolutions.jts.geom.Coordinate;
  * @author Spencer Bliven
  */
 public class EarthChunkProvider extends ChunkProviderOverworld {// implements Configurable {
-	private static final double WORLD_HEIGHT = 256; //TODO parameterize?
-
 	Logger log;
 
 	private MapProjection mapProjection;
@@ -38,6 +40,11 @@ public class EarthChunkProvider extends ChunkProviderOverworld {// implements Co
 
 	private final int defaultBlockHeight = 1;
 
+	private BlockHeightCalculator heightCalculator;
+	private PrefetchScheduler prefetchScheduler; // null if the elevations can't be prefetched
+	// Heights computed ahead of generation, by chunk key. Each is used once.
+	private final ConcurrentMap<Long,int[]> precomputed = new ConcurrentHashMap<Long, int[]>();
+
 	private int seaLevel; // 1st block above water
 
 	private boolean spawnOcean;
@@ -80,6 +87,15 @@ public class EarthChunkProvider extends ChunkProviderOverworld {// implements Co
 			this.log = Logger.getLogger(EarthChunkProvider.class.getName());
 		}
 
+		this.heightCalculator = new BlockHeightCalculator(mapProjection, elevationProjection,
+				elevationProvider, defaultBlockHeight, log);
+
+		this.prefetchScheduler = null;
+		if( elevationProvider instanceof Prefetchable ) {
+			this.prefetchScheduler = new PrefetchScheduler(mapProjection,
+					(Prefetchable) elevationProvider);
+		}
+
 		this.seaLevel = (int) Math.floor(elevationProjection.elevationToY(0.));
 
 		this.spawnOcean = true;
@@ -326,120 +342,107 @@ public class EarthChunkProvider extends ChunkProviderOverworld {// implements Co
 //		byte[][] result = new byte[16][];
 //
 //
+		// Fetch all elevations for the chunk before placing any blocks
+		int[] heights = new int[256];
+		getBlockHeights(cx, cz, heights);
+
+		TerrainBlock[] column = new TerrainBlock[256];
 		for(int lx=0; lx<16; lx++){
 			for(int lz=0; lz<16; lz++) {
-				int y = 0;
-				//This will set the floor of each chunk at bedrock level to bedrock
-				primer.setBlockState(lx,y,lz, Blocks.bedrock.getDefaultState());
-				y++;
-
-				// Get lat/lon
-				int worldx = cx*16+lx;
-				int worldz = cz*16+lz;
-				Coordinate coord = getLatLon( worldx, worldz );
-
 				// Get elevation
-				int height;
-				try {
-					height = getBlockHeight(coord);
-				} catch (DataUnavailableException e) {
-					// Severe but expected exception
-					log.log(Level.SEVERE,"Data unavailable at "+worldx+","+worldz,e);
-					height = defaultBlockHeight;
-				} catch (Exception e) {
-					// Unexpected exception; indicates a bug
-					log.log(Level.SEVERE,"[Bug] Unexpected error fetching height at " +
-							worldx+","+worldz +
-							" (" + ProjectionTools.latlonString(coord) + ")", e);
-					height = defaultBlockHeight;
-				}
+				int height = heights[(lz<<4)|lx];
 //
 //				// Set the biome
 //				Biome biome = biomeProvider.getBiome(this, world, coord);
 //				biomes.setBiome(x, z, biome);
 //
-//
-				int stoneHeight = height - 16;
-
-				for(;y<stoneHeight; y++) {
-					primer.setBlockState(lx,y,lz, Blocks.stone.getDefaultState());
-				}
-//
-//				if( biome == Biome.BEACH ||
-//						biome == Biome.OCEAN ||
-//						biome == Biome.FROZEN_OCEAN ||
-//						biome == Biome.DESERT ||
-//						biome == Biome.DESERT_HILLS )
-//				{
-//					// Ocean or beach
-//					if( y < height-1 ) {
-//						setBlock(result,x,y,z, Material.SANDSTONE);
-//						y++;
-//					}
-//					for(;y< height;y++) {
-//						setBlock(result,x,y,z, Material.SAND );
-//					}
-//				} else if( biome == Biome.ICE_MOUNTAINS ) {
-//					// Mountain
-//					for(;y< height;y++) {
-//						setBlock(result,x,y,z, Material.STONE );
-//					}
-//
-//				} else {
-					// Land
-					for(;y< height-1;y++) {
-						primer.setBlockState(lx,y,lz, Blocks.dirt.getDefaultState() );
-					}
-					if(y<height) {
-						primer.setBlockState(lx,y,lz, Blocks.grass.getDefaultState() );
-						y++;
-					}
-//				}
-				for(;y<seaLevel-1 && spawnOcean ;y++) {
-					primer.setBlockState(lx,y,lz, Blocks.water.getDefaultState() );
-				}
-				if( y==seaLevel-1 && spawnOcean) {
-//					if(biome == Biome.FROZEN_OCEAN || biome == Biome.FROZEN_RIVER) {
-//						setBlock(result,x,y,z, Material.ICE );
-//					} else {
-						primer.setBlockState(lx,y,lz, Blocks.water.getDefaultState() );
-//					}
-					y++;
+				int top = TerrainBlock.fillColumn(height, seaLevel, spawnOcean, column);
+				for(int y=0;y<top;y++) {
+					primer.setBlockState(lx,y,lz, getBlockState(column[y]));
 				}
 			}
 		}
 	}
 
+	private static IBlockState getBlockState(TerrainBlock block) {
+		switch(block) {
+		case BEDROCK: return Blocks.bedrock.getDefaultState();
+		case STONE: return Blocks.stone.getDefaultState();
+		case DIRT: return Blocks.dirt.getDefaultState();
+		case GRASS: return Blocks.grass.getDefaultState();
+		case WATER: return Blocks.water.getDefaultState();
+		default: return Blocks.air.getDefaultState();
+		}
+	}
+
 	protected Coordinate getLatLon( int worldx, int worldz) {
-		Location root = new Location(null,worldx,0,worldz);
-		// Translate x/z to lat/lon
-		Coordinate coord = mapProjection.locationToCoordinate(root);
-		return coord;
+		return heightCalculator.getLatLon(worldx, worldz);
 	}
 
 	/**
 	 * Calculate the elevation for a position
-	 * @param world
 	 * @param coord lat/lon coordinate. coord.z will be set to the fetched elevation
 	 * @return block height (y); number of solid blocks to generate
+	 * @see BlockHeightCalculator#getBlockHeight(Coordinate)
 	 */
 	public int getBlockHeight( Coordinate coord) throws DataUnavailableException{
+		return heightCalculator.getBlockHeight(coord);
+	}
 
-		// get elevation in m
-		Double elev  = elevationProvider.fetchElevation(coord);
-
-		// Side effect: Store elevation into coord
-		if(!Double.isNaN(elev)) {
-			coord.z = elev;
+	/**
+	 * Calculate the block heights for every column of a chunk.
+	 * @param cx chunk x coordinate
+	 * @param cz chunk z coordinate
+	 * @param heights Output array of at least 256 block heights, indexed by
+	 *  <tt>(lz&lt;&lt;4)|lx</tt>
+	 * @see BlockHeightCalculator#getBlockHeights(int, int, int[])
+	 */
+	public void getBlockHeights(int cx, int cz, int[] heights) {
+		int[] ready = precomputed.remove(getChunkKey(cx,cz));
+		if( ready != null ) {
+			System.arraycopy(ready, 0, heights, 0, 256);
+			return;
 		}
+		heightCalculator.getBlockHeights(cx, cz, heights);
+	}
 
-		// translate elevation to blocks
-		double y = elevationProjection.elevationToY(elev);
+	/**
+	 * Calculate the block heights for a chunk ahead of time. The next call to
+	 * {@link #getBlockHeights(int, int, int[])} for the chunk will use them.
+	 * Thread-safe, so that elevations can be fetched on worker threads.
+	 * @param cx chunk x coordinate
+	 * @param cz chunk z coordinate
+	 */
+	public void precomputeBlockHeights(int cx, int cz) {
+		int[] heights = new int[256];
+		heightCalculator.getBlockHeights(cx, cz, heights);
+		precomputed.put(getChunkKey(cx,cz), heights);
+	}
 
-		if( y == Double.NaN ) {
-			return defaultBlockHeight;
-		} else {
-			return (int) Math.floor(Math.min(y, WORLD_HEIGHT));
+	/**
+	 * Forget precomputed heights which were not used, eg because the chunk
+	 * was already generated
+	 */
+	public void discardBlockHeights(int cx, int cz) {
+		precomputed.remove(getChunkKey(cx,cz));
+	}
+
+	private static long getChunkKey(int cx, int cz) {
+		return ((long)cx << 32) | (cz & 0xffffffffL);
+	}
+
+	/**
+	 * Release the elevation provider's background threads and files, once
+	 * the world is unloaded
+	 */
+	public void close() {
+		precomputed.clear();
+		if( elevationProvider instanceof Closeable ) {
+			try {
+				((Closeable) elevationProvider).close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to close elevation provider", e);
+			}
 		}
 	}
 
@@ -484,5 +487,17 @@ public class EarthChunkProvider extends ChunkProviderOverworld {// implements Co
 		return spawn;
 	}
 
+	public BlockHeightCalculator getHeightCalculator() {
+		return heightCalculator;
+	}
+
+	/**
+	 * @return Scheduler for prefetching elevations ahead of players, or null
+	 *  if the elevation provider does not support prefetching
+	 */
+	public PrefetchScheduler getPrefetchScheduler() {
+		return prefetchScheduler;
+	}
+
 
 }
\ No newline at end of file
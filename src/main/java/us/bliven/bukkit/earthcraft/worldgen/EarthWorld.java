@@ -11,6 +11,7 @@ import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
 import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
 import us.bliven.bukkit.earthcraft.gis.LinearElevationProjection;
 import us.bliven.bukkit.earthcraft.gis.MapProjection;
+import us.bliven.bukkit.earthcraft.gis.MeteredElevationProvider;
 import us.bliven.bukkit.earthcraft.gis.TestElevationProvider;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -34,15 +35,22 @@ public class EarthWorld extends WorldType {
 	@Override
 	public IChunkGenerator getChunkGenerator(World world,
 			String settingsJson) {
-		EarthcraftMod plugin = null;
+		EarthcraftMod plugin = EarthcraftMod.instance;
 		MapProjection mapProjection = new EquirectangularProjection();
 		ElevationProjection elevProjection = new LinearElevationProjection();
 		ElevationProvider elevation = new TestElevationProvider();
+		if( plugin != null && plugin.getMetrics() != null ) {
+			elevation = MeteredElevationProvider.instrument(elevation, plugin.getMetrics(),
+					world.getWorldInfo().getWorldName());
+		}
 		CoordBiomeProvider biome = new DefaultBiomeProvider();
 		Coordinate spawn = new Coordinate(0,0);
 		EarthChunkProvider chunkGen = new EarthChunkProvider(plugin, world,
 				world.getSeed(), world.getWorldInfo().isMapFeaturesEnabled(),
 				settingsJson, mapProjection, elevProjection , elevation , biome , spawn );
+		if( plugin != null ) {
+			plugin.addGenerator(world, chunkGen);
+		}
 		//return super.getChunkGenerator(world, generatorOptions);
 		return chunkGen;
 	}
@@ -0,0 +1,395 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import us.bliven.bukkit.earthcraft.gis.ElevationMetricsRegistry;
+import us.bliven.bukkit.earthcraft.gis.ElevationProjection;
+import us.bliven.bukkit.earthcraft.gis.ElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
+import us.bliven.bukkit.earthcraft.gis.FlatElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.GridCoverageElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.InterpolatingElevationCache;
+import us.bliven.bukkit.earthcraft.gis.InterpolationMode;
+import us.bliven.bukkit.earthcraft.gis.LinearElevationProjection;
+import us.bliven.bukkit.earthcraft.gis.Location;
+import us.bliven.bukkit.earthcraft.gis.MapProjection;
+import us.bliven.bukkit.earthcraft.gis.MeteredElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.MipMappedElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.ProjectionTools;
+import us.bliven.bukkit.earthcraft.gis.SRTMPlusElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.TestElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.TileScheme;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Builds worlds without a running server, writing region files directly.
+ *
+ * <p>Terrain comes from the same {@link BlockHeightCalculator} and
+ * {@link TerrainBlock} layering as {@link EarthChunkProvider}. Each region
+ * file is one fork/join task, so all cores are kept busy. Regions are
+ * ordered by the elevation tile they fall in, and the work is split into
+ * contiguous runs of that order, so each thread works through one tile
+ * before moving to the next.
+ *
+ * <p>Existing region files are skipped, so an interrupted build can be
+ * continued by running it again.
+ * @author Spencer Bliven
+ */
+public class HeadlessWorldBuilder {
+	private static final int WORLD_HEIGHT = 256;
+
+	private final BlockHeightCalculator heights;
+	private final int seaLevel;
+	private final boolean ocean;
+	private final File regionDir;
+
+	// Progress
+	private final AtomicInteger built = new AtomicInteger();
+	private int total;
+	private long startTime;
+
+	private static final Logger log = Logger.getLogger(HeadlessWorldBuilder.class.getName());
+
+	/**
+	 * @param heights Terrain heights
+	 * @param ocean Whether to fill with water up to sea level
+	 * @param worldDir World save directory. Region files go in its
+	 *  <tt>region</tt> subdirectory.
+	 */
+	public HeadlessWorldBuilder(BlockHeightCalculator heights, boolean ocean, File worldDir) {
+		this.heights = heights;
+		this.seaLevel = (int) Math.floor(heights.getElevationProjection().elevationToY(0.));
+		this.ocean = ocean;
+		this.regionDir = new File(worldDir, "region");
+
+		if(!regionDir.exists()) {
+			log.info("Creating "+regionDir.getAbsolutePath());
+			regionDir.mkdirs();
+		}
+	}
+
+	/**
+	 * Build all chunks within a radius
+	 * @param centerX Chunk x coordinate of the center
+	 * @param centerZ Chunk z coordinate of the center
+	 * @param radius Radius, in chunks
+	 * @param threads Number of threads to use
+	 * @return Number of region files written
+	 */
+	public int build(int centerX, int centerZ, int radius, int threads) {
+		List<int[]> regions = getRegions(centerX, centerZ, radius);
+
+		total = regions.size();
+		built.set(0);
+		startTime = System.currentTimeMillis();
+		log.info(String.format("Building %d regions around chunk %d,%d with %d threads",
+				total, centerX, centerZ, threads));
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new RegionTask(regions, 0, regions.size(), centerX, centerZ, radius));
+		} finally {
+			pool.shutdown();
+		}
+
+		log.info(String.format("Built %d regions. Took %.2f sec", built.get(),
+				(System.currentTimeMillis()-startTime)/1000.));
+		return built.get();
+	}
+
+	/**
+	 * List the regions within a radius, in build order
+	 * @return Region coordinates and tile index, as {rx, rz, tile}
+	 */
+	List<int[]> getRegions(int centerX, int centerZ, int radius) {
+		int minRX = (centerX-radius) >> 5;
+		int maxRX = (centerX+radius) >> 5;
+		int minRZ = (centerZ-radius) >> 5;
+		int maxRZ = (centerZ+radius) >> 5;
+
+		// Snake through the regions, so neighbours stay close in the order
+		final TileScheme scheme = getTileScheme(heights.getElevationProvider());
+		List<int[]> regions = new ArrayList<int[]>();
+		for(int rz=minRZ;rz<=maxRZ;rz++) {
+			for(int i=0;i<=maxRX-minRX;i++) {
+				int rx = ((rz-minRZ)&1) == 0 ? minRX+i : maxRX-i;
+				int tile = 0;
+				if( scheme != null ) {
+					// Tile containing the center of the region
+					Coordinate coord = heights.getLatLon((rx<<9)+256, (rz<<9)+256);
+					coord = ProjectionTools.wrapCoordinate(coord);
+					try {
+						tile = scheme.getTileIndex(coord.x, coord.y);
+					} catch(IllegalArgumentException e) {
+						tile = -1;
+					}
+				}
+				regions.add(new int[] {rx, rz, tile});
+			}
+		}
+
+		// Group by elevation tile. The sort is stable, so regions within a
+		// tile keep their order.
+		Collections.sort(regions, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return a[2] < b[2] ? -1 : (a[2] == b[2] ? 0 : 1);
+			}
+		});
+		return regions;
+	}
+
+	/**
+	 * Find the tiles used by a provider, looking through wrappers
+	 * @return The provider's tiles, or null if not tiled
+	 */
+	static TileScheme getTileScheme(ElevationProvider provider) {
+		if( provider instanceof GridCoverageElevationProvider ) {
+			return ((GridCoverageElevationProvider) provider).getTileScheme();
+		} else if( provider instanceof MipMappedElevationProvider ) {
+			return ((MipMappedElevationProvider) provider).getElevationProvider().getTileScheme();
+		} else if( provider instanceof InterpolatingElevationCache ) {
+			return getTileScheme(((InterpolatingElevationCache) provider).getElevationProvider());
+		} else if( provider instanceof MeteredElevationProvider ) {
+			return getTileScheme(((MeteredElevationProvider) provider).getElevationProvider());
+		}
+		return null;
+	}
+
+	/**
+	 * Build one region file, unless it already exists
+	 * @return true if the file was written
+	 */
+	boolean buildRegion(int rx, int rz, int centerX, int centerZ, int radius) throws IOException {
+		RegionFileWriter region = new RegionFileWriter(rx, rz);
+		if( new File(regionDir, region.getFileName()).exists() ) {
+			log.fine("Skipping existing "+region.getFileName());
+			return false;
+		}
+
+		int[] chunkHeights = new int[256];
+		int[] heightMap = new int[256];
+		byte[] blocks = new byte[256*WORLD_HEIGHT];
+		TerrainBlock[] column = new TerrainBlock[WORLD_HEIGHT];
+
+		// Snake through the chunks, as the pregenerator does
+		for(int j=0;j<32;j++) {
+			int cz = (rz<<5)+j;
+			for(int k=0;k<32;k++) {
+				int cx = (rx<<5) + ((j&1) == 0 ? k : 31-k);
+				long dx = cx-centerX;
+				long dz = cz-centerZ;
+				if( dx*dx+dz*dz > (long)radius*radius ) {
+					continue;
+				}
+
+				heights.getBlockHeights(cx, cz, chunkHeights);
+				for(int i=0;i<256;i++) {
+					int top = TerrainBlock.fillColumn(chunkHeights[i], seaLevel, ocean, column);
+					for(int y=0;y<WORLD_HEIGHT;y++) {
+						blocks[(y<<8)|i] = (byte) (y < top ? column[y].getId() : 0);
+					}
+					heightMap[i] = top;
+				}
+				region.setChunk(cx, cz, blocks, heightMap);
+			}
+		}
+
+		if( region.getChunkCount() == 0 ) {
+			return false;
+		}
+		region.write(regionDir);
+		return true;
+	}
+
+	private void reportProgress(String name) {
+		int done = built.incrementAndGet();
+		double elapsed = (System.currentTimeMillis()-startTime)/1000.;
+		long eta = Math.round((total-done)*elapsed/done);
+		log.info(String.format("Built %s (%d of %d). About %d:%02d:%02d remaining",
+				name, done, total, eta/3600, (eta/60)%60, eta%60));
+	}
+
+	/**
+	 * Builds a contiguous run of regions
+	 */
+	private class RegionTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<int[]> regions;
+		private final int start;
+		private final int end;
+		private final int centerX;
+		private final int centerZ;
+		private final int radius;
+
+		public RegionTask(List<int[]> regions, int start, int end,
+				int centerX, int centerZ, int radius) {
+			this.regions = regions;
+			this.start = start;
+			this.end = end;
+			this.centerX = centerX;
+			this.centerZ = centerZ;
+			this.radius = radius;
+		}
+
+		@Override
+		protected void compute() {
+			if( end-start > 1 ) {
+				int mid = (start+end) >>> 1;
+				invokeAll(new RegionTask(regions, start, mid, centerX, centerZ, radius),
+						new RegionTask(regions, mid, end, centerX, centerZ, radius));
+				return;
+			}
+			if( start == end ) {
+				return;
+			}
+			int[] region = regions.get(start);
+			String name = "r."+region[0]+"."+region[1]+".mca";
+			try {
+				if( buildRegion(region[0], region[1], centerX, centerZ, radius) ) {
+					reportProgress(name);
+				}
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to write "+name, e);
+			}
+		}
+	}
+
+	private static final String USAGE =
+			"usage: HeadlessWorldBuilder [options] worlddir lat lon radius\n" +
+			"  Builds all chunks within radius blocks of lat,lon.\n" +
+			"options:\n" +
+			"  -origin lat,lon     Coordinate of block 0,0 (default 0,0)\n" +
+			"  -scale dlat,dlon    Degrees per block (default 0.01,0.01)\n" +
+			"  -elevation m,m      Elevation of y=0 and meters per block (default -6400,100)\n" +
+			"  -source type        srtm:<cache dir>, mipmap:<srtm dir>:<level dir>,\n" +
+			"                      flat[:elevation], or test (default srtm:<tmp>/SRTMPlus)\n" +
+			"  -bilinear           Interpolate between SRTM samples\n" +
+			"  -noocean            Don't fill with water below sea level\n" +
+			"  -threads n          Worker threads (default: all cores)\n" +
+			"  -metrics            Print elevation provider timings when done";
+
+	public static void main(String[] args) {
+		Coordinate origin = new Coordinate(0,0);
+		Coordinate scale = new Coordinate(.01,.01);
+		double[] elevation = new double[] {-6400, 100};
+		String source = "srtm:"+System.getProperty("java.io.tmpdir")+File.separator+"SRTMPlus";
+		boolean bilinear = false;
+		boolean ocean = true;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean metered = false;
+
+		List<String> positional = new ArrayList<String>();
+		try {
+			for(int i=0;i<args.length;i++) {
+				String arg = args[i];
+				if( arg.equals("-origin") ) {
+					double[] values = parseList(args[++i], 2);
+					origin = new Coordinate(values[0], values[1]);
+				} else if( arg.equals("-scale") ) {
+					double[] values = parseList(args[++i], 2);
+					scale = new Coordinate(values[0], values[1]);
+				} else if( arg.equals("-elevation") ) {
+					elevation = parseList(args[++i], 2);
+				} else if( arg.equals("-source") ) {
+					source = args[++i];
+				} else if( arg.equals("-bilinear") ) {
+					bilinear = true;
+				} else if( arg.equals("-noocean") ) {
+					ocean = false;
+				} else if( arg.equals("-threads") ) {
+					threads = Integer.parseInt(args[++i]);
+				} else if( arg.equals("-metrics") ) {
+					metered = true;
+				} else if( arg.startsWith("-") ) {
+					throw new IllegalArgumentException("Unrecognized option "+arg);
+				} else {
+					positional.add(arg);
+				}
+			}
+			if( positional.size() != 4 ) {
+				throw new IllegalArgumentException("Wrong number of arguments");
+			}
+
+			File worldDir = new File(positional.get(0));
+			Coordinate center = new Coordinate(Double.parseDouble(positional.get(1)),
+					Double.parseDouble(positional.get(2)));
+			int radius = Integer.parseInt(positional.get(3));
+
+			MapProjection mapProjection = new EquirectangularProjection(origin, scale);
+			ElevationProjection elevProjection = new LinearElevationProjection(elevation[0], elevation[1]);
+			ElevationProvider provider = createProvider(source, bilinear, mapProjection);
+			ElevationMetricsRegistry metrics = null;
+			if( metered ) {
+				metrics = new ElevationMetricsRegistry(null);
+				provider = MeteredElevationProvider.instrument(provider, metrics);
+			}
+			BlockHeightCalculator heights = new BlockHeightCalculator(mapProjection, elevProjection, provider);
+
+			Location loc = mapProjection.coordinateToLocation(null, center);
+			HeadlessWorldBuilder builder = new HeadlessWorldBuilder(heights, ocean, worldDir);
+			builder.build(loc.getX() >> 4, loc.getZ() >> 4, (radius+15) >> 4, threads);
+			if( metrics != null ) {
+				System.out.print(metrics.getSummary());
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println("Error: "+e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		} catch(ArrayIndexOutOfBoundsException e) {
+			System.err.println("Error: missing option value");
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private static double[] parseList(String arg, int length) {
+		String[] parts = arg.split(",");
+		if( parts.length != length ) {
+			throw new IllegalArgumentException("Expected "+length+" values: "+arg);
+		}
+		double[] values = new double[length];
+		for(int i=0;i<length;i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return values;
+	}
+
+	private static ElevationProvider createProvider(String source, boolean bilinear,
+			MapProjection projection) {
+		String[] parts = source.split(":");
+		String type = parts[0];
+		if( type.equalsIgnoreCase("flat") ) {
+			return parts.length > 1 ? new FlatElevationProvider(Double.parseDouble(parts[1]))
+					: new FlatElevationProvider();
+		} else if( type.equalsIgnoreCase("test") ) {
+			return new TestElevationProvider();
+		} else if( type.equalsIgnoreCase("srtm") && parts.length == 2 ) {
+			GridCoverageElevationProvider srtm = new SRTMPlusElevationProvider(parts[1]);
+			if( bilinear ) {
+				srtm.setInterpolationMode(InterpolationMode.BILINEAR);
+			}
+			return srtm;
+		} else if( type.equalsIgnoreCase("mipmap") && parts.length == 3 ) {
+			GridCoverageElevationProvider srtm = new SRTMPlusElevationProvider(parts[1]);
+			if( bilinear ) {
+				srtm.setInterpolationMode(InterpolationMode.BILINEAR);
+			}
+			return new MipMappedElevationProvider(srtm, projection, new File(parts[2]));
+		}
+		throw new IllegalArgumentException("Unrecognized source "+source);
+	}
+}
@@ -0,0 +1,164 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+import us.bliven.bukkit.earthcraft.gis.Location;
+import us.bliven.bukkit.earthcraft.gis.MapProjection;
+import us.bliven.bukkit.earthcraft.gis.Prefetchable;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Starts loading elevation data ahead of moving players.
+ *
+ * <p>Each player's position is sampled every few ticks, and their velocity
+ * is smoothed over successive samples. Points along the predicted path are
+ * projected to lat/lon and passed to a {@link Prefetchable}, so that tiles
+ * across the next tile boundary are loading before any chunk there is
+ * generated. Prefetching a loaded tile is cheap, so no attempt is made to
+ * track tile boundaries here.
+ * @author Spencer Bliven
+ */
+public class PrefetchScheduler {
+	public static final int DEFAULT_INTERVAL = 20; // ticks between samples (1 sec)
+	public static final int DEFAULT_LOOKAHEAD = 600; // ticks to predict ahead (30 sec)
+	private static final int STEPS = 6; // points along the predicted path
+	private static final double MAX_SPEED = 20; // blocks/tick; faster moves are teleports
+
+	private final MapProjection projection;
+	private final Prefetchable target;
+	private final int interval;
+	private final int lookahead;
+
+	// Motion of each player. Guarded by this.
+	private final Map<Object,Track> tracks;
+
+	private static final Logger log = Logger.getLogger(PrefetchScheduler.class.getName());
+
+	/**
+	 * @param projection Projection of the world
+	 * @param target Data to prefetch
+	 * @param interval Ticks between samples of each player
+	 * @param lookahead Ticks to predict ahead. Should be about as long as a
+	 *  tile takes to load.
+	 */
+	public PrefetchScheduler(MapProjection projection, Prefetchable target,
+			int interval, int lookahead) {
+		this.projection = projection;
+		this.target = target;
+		this.interval = interval;
+		this.lookahead = lookahead;
+		this.tracks = new HashMap<Object,Track>();
+	}
+
+	public PrefetchScheduler(MapProjection projection, Prefetchable target) {
+		this(projection, target, DEFAULT_INTERVAL, DEFAULT_LOOKAHEAD);
+	}
+
+	/**
+	 * Record a player's position, prefetching along their path if a new
+	 * sample is due. Intended to be called every tick.
+	 * @param player Key identifying the player
+	 * @param x Block x position
+	 * @param z Block z position
+	 * @param tick Current world time, in ticks
+	 * @return Number of points whose data was not yet loaded
+	 */
+	public int update(Object player, double x, double z, long tick) {
+		double vx, vz;
+		synchronized(this) {
+			Track track = tracks.get(player);
+			if(track == null) {
+				track = new Track(x, z, tick);
+				tracks.put(player, track);
+			} else {
+				long dt = tick - track.tick;
+				if(0 <= dt && dt < interval) {
+					return 0;
+				}
+				double sx = (x-track.x)/dt;
+				double sz = (z-track.z)/dt;
+				if(dt <= 0 || Math.abs(sx) > MAX_SPEED || Math.abs(sz) > MAX_SPEED) {
+					// Teleported, or the clock was reset
+					track.vx = 0;
+					track.vz = 0;
+				} else {
+					track.vx = (track.vx+sx)/2;
+					track.vz = (track.vz+sz)/2;
+				}
+				track.x = x;
+				track.z = z;
+				track.tick = tick;
+			}
+			vx = track.vx;
+			vz = track.vz;
+		}
+
+		// Current position, then points along the predicted path
+		int steps = vx == 0 && vz == 0 ? 0 : STEPS;
+		int pending = 0;
+		for(int step=0;step<=steps;step++) {
+			double t = lookahead*step/(double)STEPS;
+			if(prefetch(x+vx*t, z+vz*t)) {
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * @return true if the data at (x,z) was not yet loaded
+	 */
+	private boolean prefetch(double x, double z) {
+		Coordinate coord = projection.locationToCoordinate(new Location(null, x, 0, z));
+		try {
+			if(!target.prefetch(coord)) {
+				log.fine("Prefetching data near "+coord);
+				return true;
+			}
+		} catch (DataUnavailableException e) {
+			// Chunk generation will report the error if the data is needed
+			log.log(Level.FINE, "Unable to prefetch data near "+coord, e);
+		} catch (IllegalArgumentException e) {
+			// Predicted position is off the map
+		}
+		return false;
+	}
+
+	/**
+	 * Stop tracking a player, eg when they log out
+	 * @param player Key identifying the player
+	 */
+	public synchronized void forget(Object player) {
+		tracks.remove(player);
+	}
+
+	public MapProjection getMapProjection() {
+		return projection;
+	}
+
+	public Prefetchable getTarget() {
+		return target;
+	}
+
+	/**
+	 * Most recent sample of a player's motion
+	 */
+	private static final class Track {
+		double x;
+		double z;
+		long tick;
+		double vx; // blocks/tick
+		double vz;
+
+		public Track(double x, double z, long tick) {
+			this.x = x;
+			this.z = z;
+			this.tick = tick;
+		}
+	}
+}
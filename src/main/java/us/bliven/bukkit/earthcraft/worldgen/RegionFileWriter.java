@@ -0,0 +1,235 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes Anvil region files (<tt>r.&lt;x&gt;.&lt;z&gt;.mca</tt>) without a
+ * running server.
+ *
+ * <p>Chunks hold only blocks, height maps and sky light. They are marked
+ * as unpopulated and unlit, so the server decorates and relights them the
+ * first time they are loaded. Biomes are left for the server to compute.
+ * @author Spencer Bliven
+ */
+class RegionFileWriter {
+	private static final int DATA_VERSION = 169; // Minecraft 1.9
+	private static final int SECTOR = 4096;
+	private static final int COMPRESSION_ZLIB = 2;
+
+	private static final int TAG_END = 0;
+	private static final int TAG_BYTE = 1;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_BYTE_ARRAY = 7;
+	private static final int TAG_LIST = 9;
+	private static final int TAG_COMPOUND = 10;
+	private static final int TAG_INT_ARRAY = 11;
+
+	private final int regionX;
+	private final int regionZ;
+	private final byte[][] chunks; // compressed NBT, by (lz<<5)|lx
+
+	public RegionFileWriter(int regionX, int regionZ) {
+		this.regionX = regionX;
+		this.regionZ = regionZ;
+		this.chunks = new byte[1024][];
+	}
+
+	/**
+	 * Add a chunk to the region
+	 * @param cx Chunk x coordinate, within this region
+	 * @param cz Chunk z coordinate, within this region
+	 * @param blocks Block ids, indexed by <tt>(y&lt;&lt;8)|(lz&lt;&lt;4)|lx</tt>
+	 * @param heightMap Lowest block with full sky light, indexed by
+	 *  <tt>(lz&lt;&lt;4)|lx</tt>
+	 */
+	public void setChunk(int cx, int cz, byte[] blocks, int[] heightMap) throws IOException {
+		if( cx>>5 != regionX || cz>>5 != regionZ ) {
+			throw new IllegalArgumentException("Chunk "+cx+","+cz+" is outside "+getFileName());
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(SECTOR*2);
+		DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+		try {
+			writeChunk(out, cx, cz, blocks, heightMap);
+		} finally {
+			out.close();
+		}
+		chunks[((cz&31)<<5)|(cx&31)] = bytes.toByteArray();
+	}
+
+	/**
+	 * @return The number of chunks added
+	 */
+	public int getChunkCount() {
+		int count = 0;
+		for(byte[] chunk : chunks) {
+			if( chunk != null ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public String getFileName() {
+		return "r."+regionX+"."+regionZ+".mca";
+	}
+
+	/**
+	 * Write the region file, replacing any existing file
+	 * @param dir Region directory of the world
+	 */
+	public void write(File dir) throws IOException {
+		int[] locations = new int[1024];
+		int sector = 2; // after the header
+		for(int i=0;i<chunks.length;i++) {
+			if( chunks[i] != null ) {
+				int sectors = (chunks[i].length+5+SECTOR-1)/SECTOR;
+				if( sectors > 255 ) {
+					throw new IOException("Chunk "+i+" of "+getFileName()+" is too large");
+				}
+				locations[i] = (sector<<8) | sectors;
+				sector += sectors;
+			}
+		}
+		int timestamp = (int) (System.currentTimeMillis()/1000);
+
+		File file = new File(dir, getFileName());
+		File tmp = new File(dir, getFileName()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1<<16));
+		try {
+			for(int location : locations) {
+				out.writeInt(location);
+			}
+			for(int location : locations) {
+				out.writeInt(location == 0 ? 0 : timestamp);
+			}
+			byte[] padding = new byte[SECTOR];
+			for(byte[] chunk : chunks) {
+				if( chunk != null ) {
+					out.writeInt(chunk.length+1);
+					out.writeByte(COMPRESSION_ZLIB);
+					out.write(chunk);
+					int used = (chunk.length+5)%SECTOR;
+					if( used != 0 ) {
+						out.write(padding, 0, SECTOR-used);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write the NBT for a chunk
+	 */
+	private static void writeChunk(DataOutputStream out, int cx, int cz,
+			byte[] blocks, int[] heightMap) throws IOException {
+		beginTag(out, TAG_COMPOUND, "");
+		beginTag(out, TAG_INT, "DataVersion");
+		out.writeInt(DATA_VERSION);
+
+		beginTag(out, TAG_COMPOUND, "Level");
+		beginTag(out, TAG_INT, "xPos");
+		out.writeInt(cx);
+		beginTag(out, TAG_INT, "zPos");
+		out.writeInt(cz);
+		beginTag(out, TAG_LONG, "LastUpdate");
+		out.writeLong(0);
+		beginTag(out, TAG_LONG, "InhabitedTime");
+		out.writeLong(0);
+		beginTag(out, TAG_BYTE, "TerrainPopulated");
+		out.writeByte(0);
+		beginTag(out, TAG_BYTE, "LightPopulated");
+		out.writeByte(0);
+
+		// -1 means not yet computed
+		byte[] biomes = new byte[256];
+		Arrays.fill(biomes, (byte)-1);
+		writeByteArray(out, "Biomes", biomes);
+
+		beginTag(out, TAG_INT_ARRAY, "HeightMap");
+		out.writeInt(256);
+		for(int h : heightMap) {
+			out.writeInt(h);
+		}
+
+		// Only sections containing blocks are stored
+		int sections = blocks.length/4096;
+		int stored = 0;
+		for(int s=0;s<sections;s++) {
+			if( !isEmpty(blocks, s) ) {
+				stored++;
+			}
+		}
+		beginTag(out, TAG_LIST, "Sections");
+		out.writeByte(TAG_COMPOUND);
+		out.writeInt(stored);
+		byte[] sectionBlocks = new byte[4096];
+		byte[] zeros = new byte[2048];
+		byte[] skyLight = new byte[2048];
+		for(int s=0;s<sections;s++) {
+			if( isEmpty(blocks, s) ) {
+				continue;
+			}
+			System.arraycopy(blocks, s*4096, sectionBlocks, 0, 4096);
+			Arrays.fill(skyLight, (byte)0);
+			for(int i=0;i<4096;i++) {
+				int y = (s<<4) | (i>>8);
+				if( y >= heightMap[i&255] ) {
+					skyLight[i>>1] |= (i&1) == 0 ? 0x0F : 0xF0;
+				}
+			}
+			beginTag(out, TAG_BYTE, "Y");
+			out.writeByte(s);
+			writeByteArray(out, "Blocks", sectionBlocks);
+			writeByteArray(out, "Data", zeros);
+			writeByteArray(out, "BlockLight", zeros);
+			writeByteArray(out, "SkyLight", skyLight);
+			out.writeByte(TAG_END);
+		}
+
+		writeEmptyList(out, "Entities");
+		writeEmptyList(out, "TileEntities");
+		out.writeByte(TAG_END); // Level
+		out.writeByte(TAG_END); // root
+	}
+
+	private static boolean isEmpty(byte[] blocks, int section) {
+		for(int i=section*4096;i<(section+1)*4096;i++) {
+			if( blocks[i] != 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void beginTag(DataOutputStream out, int type, String name) throws IOException {
+		out.writeByte(type);
+		out.writeUTF(name);
+	}
+
+	private static void writeByteArray(DataOutputStream out, String name, byte[] values) throws IOException {
+		beginTag(out, TAG_BYTE_ARRAY, name);
+		out.writeInt(values.length);
+		out.write(values);
+	}
+
+	private static void writeEmptyList(DataOutputStream out, String name) throws IOException {
+		beginTag(out, TAG_LIST, name);
+		out.writeByte(TAG_END);
+		out.writeInt(0);
+	}
+}
@@ -0,0 +1,457 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates all chunks within a radius, a few at a time.
+ *
+ * <p>Chunks are visited one region file (32x32 chunks) at a time, snaking
+ * through the regions and through the rows of each region. Neighbouring
+ * chunks are therefore generated together, which keeps elevation tiles,
+ * lattice pages and region files in cache.
+ *
+ * <p>Each call to {@link #tick(long)} generates chunks until its time budget
+ * is used. Slow work, such as fetching elevations, is started on worker
+ * threads a number of chunks ahead, and the tick stops early rather than
+ * waiting for it. Progress can be saved to a file and resumed later.
+ * @author Spencer Bliven
+ */
+public class RegionPregenerator {
+	private static final int REGION_BITS = 5; // 32x32 chunks per region file
+	private static final int REGION_SIZE = 1<<REGION_BITS;
+	public static final int DEFAULT_LOOKAHEAD = 64; // chunks prepared in advance
+	private static final int THREADS = 2;
+	private static final long REPORT_INTERVAL = 30000; // ms between progress reports
+	private static final int SAVE_INTERVAL = 256; // chunks between saves
+	public static final int MAX_RADIUS = 1024; // chunks; the order takes 8 bytes per chunk
+
+	/**
+	 * Receives the chunks to generate
+	 */
+	public interface ChunkTarget {
+		/**
+		 * Do any slow work for a chunk. Called on a worker thread before
+		 * {@link #generate(int, int)}.
+		 */
+		public void prepare(int cx, int cz);
+		/**
+		 * Generate a chunk. Called from {@link RegionPregenerator#tick(long)}.
+		 */
+		public void generate(int cx, int cz);
+		/**
+		 * Forget the work done by {@link #prepare(int, int)} for a chunk which
+		 * won't be generated, because the pregenerator was paused or stopped.
+		 * May be called from a worker thread.
+		 */
+		public void discard(int cx, int cz);
+	}
+
+	private final int centerX;
+	private final int centerZ;
+	private final int radius;
+	private final long[] order; // chunk keys, in generation order
+	private final ChunkTarget target;
+	private final File stateFile; // may be null
+	private final int lookahead;
+
+	private int next; // index of the next chunk to generate
+	private boolean paused;
+	private boolean wasRunning; // running when the state was loaded
+
+	// Preparations for order[next..], in order
+	private final ArrayDeque<Future<?>> prepared;
+	private ExecutorService workers; // null until started
+	// Incremented whenever preparations are abandoned
+	private volatile int generation;
+
+	// Rate since the last resume, for estimates
+	private long startTime;
+	private int startIndex;
+	private long lastReport;
+	private int lastSave;
+
+	private static final Logger log = Logger.getLogger(RegionPregenerator.class.getName());
+
+	/**
+	 * @param centerX Chunk x coordinate of the center
+	 * @param centerZ Chunk z coordinate of the center
+	 * @param radius Radius in chunks
+	 * @param target Receives the chunks
+	 * @param stateFile File to save progress to, or null
+	 * @param lookahead Chunks to prepare in advance
+	 * @throws IllegalArgumentException If the radius is negative or above {@link #MAX_RADIUS}
+	 */
+	public RegionPregenerator(int centerX, int centerZ, int radius,
+			ChunkTarget target, File stateFile, int lookahead) {
+		this.centerX = centerX;
+		this.centerZ = centerZ;
+		this.radius = radius;
+		this.order = getOrder(centerX, centerZ, radius);
+		this.target = target;
+		this.stateFile = stateFile;
+		this.lookahead = lookahead;
+		this.next = 0;
+		this.paused = true;
+		this.prepared = new ArrayDeque<Future<?>>();
+	}
+
+	public RegionPregenerator(int centerX, int centerZ, int radius,
+			ChunkTarget target, File stateFile) {
+		this(centerX, centerZ, radius, target, stateFile, DEFAULT_LOOKAHEAD);
+	}
+
+	/**
+	 * List the chunks within a radius, in generation order
+	 * @return Chunk keys, as from {@link #getChunkKey(int, int)}
+	 * @throws IllegalArgumentException If the radius is negative or above {@link #MAX_RADIUS}
+	 */
+	static long[] getOrder(int centerX, int centerZ, int radius) {
+		if( radius < 0 || radius > MAX_RADIUS ) {
+			throw new IllegalArgumentException("Pregeneration radius must be between 0 and "
+					+MAX_RADIUS+" chunks, not "+radius);
+		}
+		int minRX = (centerX-radius) >> REGION_BITS;
+		int maxRX = (centerX+radius) >> REGION_BITS;
+		int minRZ = (centerZ-radius) >> REGION_BITS;
+		int maxRZ = (centerZ+radius) >> REGION_BITS;
+
+		long[] order = new long[countChunks(radius)];
+		int n = 0;
+		for(int rz=minRZ;rz<=maxRZ;rz++) {
+			boolean regionsEast = ((rz-minRZ)&1) == 0;
+			for(int i=0;i<=maxRX-minRX;i++) {
+				int rx = regionsEast ? minRX+i : maxRX-i;
+				for(int j=0;j<REGION_SIZE;j++) {
+					int cz = (rz<<REGION_BITS)+j;
+					boolean chunksEast = (j&1) == 0;
+					for(int k=0;k<REGION_SIZE;k++) {
+						int cx = (rx<<REGION_BITS) + (chunksEast ? k : REGION_SIZE-1-k);
+						long dx = cx-centerX;
+						long dz = cz-centerZ;
+						if( dx*dx+dz*dz <= (long)radius*radius ) {
+							order[n++] = getChunkKey(cx, cz);
+						}
+					}
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * @return The number of chunks within a radius of a chunk
+	 */
+	private static int countChunks(int radius) {
+		long r2 = (long)radius*radius;
+		int count = 0;
+		for(long dz=-radius;dz<=radius;dz++) {
+			long rest = r2-dz*dz;
+			long dx = (long) Math.sqrt(rest);
+			// Correct any rounding in sqrt
+			while( dx*dx > rest ) {
+				dx--;
+			}
+			while( (dx+1)*(dx+1) <= rest ) {
+				dx++;
+			}
+			count += 2*dx+1;
+		}
+		return count;
+	}
+
+	/**
+	 * Generate chunks until the budget is used or the next chunk isn't
+	 * prepared yet. Does nothing while paused.
+	 * @param budget Time budget, in nanoseconds
+	 * @return Number of chunks generated
+	 */
+	public synchronized int tick(long budget) {
+		if( paused || isFinished() ) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int generated = 0;
+		while( !paused && !isFinished() && System.nanoTime()-start < budget ) {
+			Future<?> head = prepared.peekFirst();
+			if( head != null && !head.isDone() ) {
+				// Still fetching elevations. Don't block the server.
+				break;
+			}
+			if( head != null ) {
+				prepared.removeFirst();
+			}
+			long key = order[next++];
+			try {
+				target.generate(getChunkX(key), getChunkZ(key));
+			} catch(RuntimeException e) {
+				log.log(Level.SEVERE, "[Bug] Unable to generate chunk "+getChunkX(key)+","+getChunkZ(key), e);
+			}
+			generated++;
+			if( !paused ) {
+				prepareAhead();
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		if( now-lastReport >= REPORT_INTERVAL || isFinished() ) {
+			lastReport = now;
+			log.info(getStatus());
+		}
+		if( isFinished() ) {
+			stopWorkers();
+			if( stateFile != null ) {
+				stateFile.delete();
+			}
+		} else if( next-lastSave >= SAVE_INTERVAL ) {
+			save();
+		}
+		return generated;
+	}
+
+	/**
+	 * Queue preparations up to the lookahead
+	 */
+	private void prepareAhead() {
+		int end = Math.min(order.length, next+lookahead);
+		final int gen = generation;
+		for(int i=next+prepared.size();i<end;i++) {
+			final long key = order[i];
+			prepared.addLast(workers.submit(new Runnable() {
+				@Override
+				public void run() {
+					if( generation != gen ) {
+						return;
+					}
+					target.prepare(getChunkX(key), getChunkZ(key));
+					if( generation != gen ) {
+						// Abandoned while preparing, after stopWorkers discarded it
+						target.discard(getChunkX(key), getChunkZ(key));
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Start or continue generating
+	 */
+	public synchronized void resume() {
+		if( !paused ) {
+			return;
+		}
+		paused = false;
+		if( workers == null ) {
+			workers = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,"Earthcraft pregenerator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		startTime = System.currentTimeMillis();
+		startIndex = next;
+		lastReport = startTime;
+		lastSave = next;
+		prepareAhead();
+		save();
+	}
+
+	/**
+	 * Stop generating and save progress. Prepared work is discarded.
+	 */
+	public synchronized void pause() {
+		if( paused ) {
+			return;
+		}
+		paused = true;
+		stopWorkers();
+		save();
+	}
+
+	/**
+	 * Stop the workers and save progress, eg when the server stops. Unlike
+	 * {@link #pause()}, a running pregenerator is saved as running so that
+	 * it continues when loaded again.
+	 */
+	public synchronized void shutdown() {
+		stopWorkers();
+		if( !isFinished() ) {
+			save();
+		}
+		paused = true;
+	}
+
+	/**
+	 * Stop generating and forget the saved progress
+	 */
+	public synchronized void cancel() {
+		paused = true;
+		stopWorkers();
+		if( stateFile != null ) {
+			stateFile.delete();
+		}
+	}
+
+	/**
+	 * Stop the workers and discard everything they prepared. Preparations
+	 * which are still running discard their own results.
+	 */
+	private void stopWorkers() {
+		generation++;
+		int i = next;
+		for(Future<?> future : prepared) {
+			future.cancel(false);
+			long key = order[i++];
+			target.discard(getChunkX(key), getChunkZ(key));
+		}
+		prepared.clear();
+		if( workers != null ) {
+			workers.shutdown();
+			workers = null;
+		}
+	}
+
+	/**
+	 * @return Whether the pregenerator was running when its state was saved,
+	 *  for pregenerators restored by {@link #load(File, ChunkTarget)}
+	 */
+	public boolean wasRunning() {
+		return wasRunning;
+	}
+
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	public synchronized boolean isFinished() {
+		return next >= order.length;
+	}
+
+	public synchronized int getGenerated() {
+		return next;
+	}
+
+	public int getTotal() {
+		return order.length;
+	}
+
+	/**
+	 * Estimate the time remaining, from the rate since the last resume
+	 * @return Seconds remaining, or -1 if unknown
+	 */
+	public synchronized long getEta() {
+		int done = next-startIndex;
+		if( paused || done <= 0 ) {
+			return -1;
+		}
+		double elapsed = (System.currentTimeMillis()-startTime)/1000.;
+		return Math.round((order.length-next)*elapsed/done);
+	}
+
+	/**
+	 * @return A description of the progress, for players
+	 */
+	public synchronized String getStatus() {
+		String state;
+		if( isFinished() ) {
+			state = "done";
+		} else if( paused ) {
+			state = "paused";
+		} else {
+			long eta = getEta();
+			state = eta < 0 ? "running" : String.format("about %d:%02d:%02d remaining",
+					eta/3600, (eta/60)%60, eta%60);
+		}
+		return String.format("Pregenerated %d of %d chunks around %d,%d (%.1f%%), %s",
+				next, order.length, centerX, centerZ,
+				order.length == 0 ? 100. : 100.*next/order.length, state);
+	}
+
+	/**
+	 * Save progress to the state file, if any
+	 */
+	public synchronized void save() {
+		if( stateFile == null ) {
+			return;
+		}
+		Properties state = new Properties();
+		state.setProperty("centerX", Integer.toString(centerX));
+		state.setProperty("centerZ", Integer.toString(centerZ));
+		state.setProperty("radius", Integer.toString(radius));
+		state.setProperty("next", Integer.toString(next));
+		state.setProperty("paused", Boolean.toString(paused));
+		lastSave = next;
+		try {
+			File tmp = new File(stateFile.getParentFile(), stateFile.getName()+".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				state.store(out, "Earthcraft pregeneration");
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), stateFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			log.log(Level.WARNING, "Unable to save pregeneration progress to "+stateFile, e);
+		}
+	}
+
+	/**
+	 * Restore a pregenerator from its state file. It starts out paused.
+	 * @param stateFile File written by {@link #save()}
+	 * @param target Receives the chunks
+	 * @return The restored pregenerator, or null if there is no saved state
+	 * @throws IOException If the file can't be read or is invalid
+	 */
+	public static RegionPregenerator load(File stateFile, ChunkTarget target) throws IOException {
+		if( !stateFile.exists() ) {
+			return null;
+		}
+		Properties state = new Properties();
+		InputStream in = new FileInputStream(stateFile);
+		try {
+			state.load(in);
+		} finally {
+			in.close();
+		}
+		try {
+			int centerX = Integer.parseInt(state.getProperty("centerX"));
+			int centerZ = Integer.parseInt(state.getProperty("centerZ"));
+			int radius = Integer.parseInt(state.getProperty("radius"));
+			RegionPregenerator pregen = new RegionPregenerator(centerX, centerZ, radius, target, stateFile);
+			pregen.next = Math.min(Integer.parseInt(state.getProperty("next")), pregen.order.length);
+			pregen.wasRunning = !Boolean.parseBoolean(state.getProperty("paused"));
+			return pregen;
+		} catch(IllegalArgumentException e) {
+			// Including NumberFormatException
+			throw new IOException("Invalid pregeneration state in "+stateFile, e);
+		}
+	}
+
+	static long getChunkKey(int cx, int cz) {
+		return ((long)cx << 32) | (cz & 0xffffffffL);
+	}
+	static int getChunkX(long key) {
+		return (int)(key >> 32);
+	}
+	static int getChunkZ(long key) {
+		return (int)key;
+	}
+}
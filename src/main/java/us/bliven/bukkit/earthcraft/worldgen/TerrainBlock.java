@@ -0,0 +1,70 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+/**
+ * Blocks used for the bare terrain, and how they are layered in a column.
+ *
+ * Shared by {@link EarthChunkProvider} and {@link HeadlessWorldBuilder}, so
+ * that worlds built offline match those generated in game.
+ * @author Spencer Bliven
+ */
+public enum TerrainBlock {
+	AIR(0),
+	STONE(1),
+	GRASS(2),
+	DIRT(3),
+	BEDROCK(7),
+	WATER(9);
+
+	private final int id;
+
+	private TerrainBlock(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return Block id, as stored in region files
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Fill a column of blocks.
+	 *
+	 * A bedrock floor is covered by stone, then 15 blocks of dirt topped with
+	 * grass up to the terrain height. Water fills any space up to sea level.
+	 * @param height Terrain height; number of solid blocks
+	 * @param seaLevel First block above the water
+	 * @param ocean Whether to fill with water
+	 * @param column Output blocks, by y. Blocks above the top are left
+	 *  unchanged.
+	 * @return Height of the column; one above the highest block set
+	 */
+	public static int fillColumn(int height, int seaLevel, boolean ocean, TerrainBlock[] column) {
+		height = Math.min(height, column.length);
+		seaLevel = Math.min(seaLevel, column.length);
+
+		int y = 0;
+		//This will set the floor of each chunk at bedrock level to bedrock
+		column[y] = BEDROCK;
+		y++;
+
+		int stoneHeight = height - 16;
+
+		for(;y<stoneHeight; y++) {
+			column[y] = STONE;
+		}
+		// Land
+		for(;y< height-1;y++) {
+			column[y] = DIRT;
+		}
+		if(y<height) {
+			column[y] = GRASS;
+			y++;
+		}
+		for(;y<seaLevel && ocean ;y++) {
+			column[y] = WATER;
+		}
+		return y;
+	}
+}
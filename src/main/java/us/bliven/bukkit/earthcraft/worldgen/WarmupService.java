@@ -0,0 +1,161 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import us.bliven.bukkit.earthcraft.gis.Location;
+import us.bliven.bukkit.earthcraft.gis.ProjectionTools;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Loads the data around the spawn and landmarks in the background, so that
+ * the first visit to them doesn't wait for downloads.
+ *
+ * <p>Places are warmed in priority order: the spawn first, then landmarks in
+ * the order given. Chunks around each place are computed from the center
+ * outward, which loads the elevation tiles and any cached lattice points
+ * that generating them will need. Warming stops early once a budget of
+ * chunks has been computed for the world.
+ * @author Spencer Bliven
+ */
+public class WarmupService {
+	public static final int DEFAULT_RADIUS = 4; // chunks around each place
+
+	private final Map<String,Coordinate> landmarks;
+	private final int budget;
+	private final int radius;
+
+	private ExecutorService executor; // null until used, or after a shutdown
+
+	private static final Logger log = Logger.getLogger(WarmupService.class.getName());
+
+	/**
+	 * @param landmarks Places to warm after the spawn, in priority order
+	 * @param budget Most chunks to compute for each world
+	 * @param radius Chunks to warm around each place
+	 */
+	public WarmupService(Map<String,Coordinate> landmarks, int budget, int radius) {
+		this.landmarks = new LinkedHashMap<String, Coordinate>(landmarks);
+		this.budget = budget;
+		this.radius = radius;
+	}
+
+	/**
+	 * Runs warm-ups at low priority
+	 */
+	private static class WarmupThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,"Earthcraft warm-up");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+
+	/**
+	 * Start warming a world in the background
+	 * @param world Name of the world, for logging
+	 * @param heights Height calculator for the world
+	 * @param spawn Spawn point, or null
+	 * @return The number of places warmed, once finished. Cancel it, with
+	 *  interruption, before closing the world.
+	 */
+	public synchronized Future<Integer> warm(final String world, final BlockHeightCalculator heights,
+			final Coordinate spawn) {
+		if( executor == null ) {
+			// A single thread, so places are warmed in order
+			executor = Executors.newSingleThreadExecutor(new WarmupThreadFactory());
+		}
+		return executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return warmNow(world, heights, spawn);
+			}
+		});
+	}
+
+	/**
+	 * Warm a world, waiting until finished
+	 * @see #warm(String, BlockHeightCalculator, Coordinate)
+	 */
+	public int warmNow(String world, BlockHeightCalculator heights, Coordinate spawn) {
+		long start = System.currentTimeMillis();
+
+		List<String> names = new ArrayList<String>();
+		List<Coordinate> places = new ArrayList<Coordinate>();
+		if( spawn != null ) {
+			names.add("spawn");
+			places.add(spawn);
+		}
+		for(Map.Entry<String,Coordinate> entry : landmarks.entrySet()) {
+			names.add(entry.getKey());
+			places.add(entry.getValue());
+		}
+
+		int warmed = 0;
+		int chunks = 0;
+		int[] scratch = new int[256];
+		for(int p=0;p<places.size() && !isStopped(chunks);p++) {
+			Coordinate place = places.get(p);
+			Location loc;
+			try {
+				loc = heights.getMapProjection().coordinateToLocation(null, place);
+			} catch(RuntimeException e) {
+				log.warning("Unable to warm up "+names.get(p)+" at "+ProjectionTools.latlonString(place));
+				continue;
+			}
+			int cx = loc.getX() >> 4;
+			int cz = loc.getZ() >> 4;
+
+			// Rings of chunks around the center
+			for(int r=0;r<=radius && !isStopped(chunks);r++) {
+				for(int dx=-r;dx<=r && !isStopped(chunks);dx++) {
+					for(int dz=-r;dz<=r && !isStopped(chunks);dz++) {
+						if( Math.max(Math.abs(dx),Math.abs(dz)) == r ) {
+							heights.getBlockHeights(cx+dx, cz+dz, scratch);
+							chunks++;
+						}
+					}
+				}
+			}
+			if( isStopped(chunks) ) {
+				break;
+			}
+			log.fine("Warmed up "+names.get(p));
+			warmed++;
+		}
+
+		if( chunks >= budget ) {
+			log.info(String.format("Chunk budget reached while warming up %s; skipped %d of %d places",
+					world, places.size()-warmed, places.size()));
+		}
+		log.info(String.format("Warmed up %d places in %s. Took %.2f sec", warmed, world,
+				(System.currentTimeMillis()-start)/1000.));
+		return warmed;
+	}
+
+	private boolean isStopped(int chunks) {
+		return Thread.currentThread().isInterrupted() || chunks >= budget;
+	}
+
+	/**
+	 * Stop warming, eg when the server stops. Places which have not been
+	 * started are skipped. Worlds warmed afterwards start a new thread.
+	 */
+	public synchronized void shutdown() {
+		if( executor != null ) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+}
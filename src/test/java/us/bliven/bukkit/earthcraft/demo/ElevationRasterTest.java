@@ -0,0 +1,82 @@
+package us.bliven.bukkit.earthcraft.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import us.bliven.bukkit.earthcraft.gis.AbstractElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class ElevationRasterTest {
+	private static final double TOL = 1e-4;
+
+	/**
+	 * Elevation is lat*100+lon. Fails for latitudes between 2 and 3, and for
+	 * individual points with longitude 4.
+	 */
+	private static class FaultyProvider extends AbstractElevationProvider {
+		@Override
+		public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+			if( Math.abs(c.y-4) < TOL ) {
+				throw new DataUnavailableException("Bad point");
+			}
+			return c.x*100+c.y;
+		}
+		@Override
+		public void fetchElevations(double[] lat, double[] lon, double[] out)
+				throws DataUnavailableException {
+			if( 2 <= lat[0] && lat[0] < 3 ) {
+				throw new DataUnavailableException("Bad row");
+			}
+			for(int i=0;i<lat.length;i++) {
+				out[i] = lat[i]*100+lon[i];
+			}
+		}
+	}
+
+	@Test
+	public void testFetch() {
+		ElevationRaster raster = ElevationRaster.fetch(new FaultyProvider(),
+				0, 10, 0, 6, 1, 1, new ForkJoinPool(3));
+		assertEquals(6, raster.getWidth());
+		assertEquals(10, raster.getHeight());
+		assertEquals(60, raster.getElevations().length);
+
+		assertEquals(0, raster.get(0, 0), TOL);
+		assertEquals(105, raster.get(5, 1), TOL);
+		assertEquals(905, raster.get(5, 9), TOL);
+		assertEquals(4, raster.get(4, 0), TOL); // bulk fetch succeeded
+
+		// Failed row is salvaged point by point
+		assertEquals(Arrays.asList(2), raster.getFailedRows());
+		assertTrue(raster.getRowError(2) instanceof DataUnavailableException);
+		assertNull(raster.getRowError(3));
+		assertEquals(203, raster.get(3, 2), TOL);
+		assertTrue(Float.isNaN(raster.get(4, 2)));
+		assertEquals(205, raster.get(5, 2), TOL);
+	}
+
+	@Test
+	public void testFromGrid() {
+		Double[][] grid = new Double[][] {
+				{1., null, 3.},
+				{4., 5., 6.},
+		};
+		ElevationRaster raster = new ElevationRaster(grid);
+		assertEquals(3, raster.getWidth());
+		assertEquals(2, raster.getHeight());
+		assertEquals(1, raster.get(0, 0), TOL);
+		assertTrue(Float.isNaN(raster.get(1, 0)));
+		assertEquals(6, raster.get(2, 1), TOL);
+	}
+}
@@ -0,0 +1,107 @@
+package us.bliven.bukkit.earthcraft.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import us.bliven.bukkit.earthcraft.gis.AbstractElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class PngWriterTest {
+
+	@Test
+	public void testWriteRows() throws IOException {
+		int width = 300;
+		int height = 200;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PngWriter png = new PngWriter(bytes, width, height);
+		int[] row = new int[width];
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				row[x] = (x*y*7919) & 0xFFFFFF;
+			}
+			png.writeRow(row);
+		}
+		png.close();
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				assertEquals((x*y*7919) & 0xFFFFFF, image.getRGB(x, y) & 0xFFFFFF);
+			}
+		}
+	}
+
+	@Test
+	public void testIncomplete() throws IOException {
+		PngWriter png = new PngWriter(new ByteArrayOutputStream(), 2, 2);
+		png.writeRow(new int[] {0,0});
+		try {
+			png.close();
+			fail("Missing row");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testAbort() throws IOException {
+		final boolean[] closed = {false};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		PngWriter png = new PngWriter(bytes, 2, 2);
+		png.writeRow(new int[] {0,0});
+		// Unlike close(), doesn't complain about the missing row
+		png.abort();
+		assertTrue(closed[0]);
+		png.close();
+	}
+
+	@Test
+	public void testElevationImage() throws IOException {
+		AbstractElevationProvider provider = new AbstractElevationProvider() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				return (c.x-c.y)*100;
+			}
+		};
+		double south = -10, north = 10, west = 0, east = 30;
+
+		BufferedImage expected = ElevationGrid.elevationImage(
+				ElevationRaster.fetch(provider, south, north, west, east, .5, .5));
+
+		// Strips do not divide the height evenly
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertEquals(0, ElevationGrid.writeElevationImage(provider,
+				south, north, west, east, .5, .5, 7, bytes));
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+		assertEquals(expected.getWidth(), image.getWidth());
+		assertEquals(expected.getHeight(), image.getHeight());
+		for(int y=0;y<image.getHeight();y++) {
+			for(int x=0;x<image.getWidth();x++) {
+				assertEquals(expected.getRGB(x, y), image.getRGB(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class GridCoverageElevationProviderTest {
+
+	/**
+	 * Loads grids which can't be sampled
+	 */
+	private static class BadGridProviderStub extends GridCoverageElevationProvider {
+		final AtomicInteger loaders = new AtomicInteger();
+
+		public BadGridProviderStub() {
+			super(new TileScheme(new double[] {90,-90}, new double[] {360}, 90));
+		}
+
+		@Override
+		protected Callable<GridCoverage2D> createTileLoader(int tile) {
+			loaders.incrementAndGet();
+			return new Callable<GridCoverage2D>() {
+				@Override
+				public GridCoverage2D call() {
+					return null;
+				}
+			};
+		}
+	}
+
+	/**
+	 * One tile covering the globe. Creating a loader waits briefly for
+	 * other threads to do the same.
+	 */
+	private static class SlowGridProviderStub extends GridCoverageElevationProvider {
+		final AtomicInteger loaders = new AtomicInteger();
+		final CountDownLatch creating;
+
+		public SlowGridProviderStub(int threads) {
+			super(new TileScheme(new double[] {90,-90}, new double[] {360}, 90));
+			creating = new CountDownLatch(threads);
+		}
+
+		@Override
+		protected Callable<GridCoverage2D> createTileLoader(int tile) {
+			loaders.incrementAndGet();
+			creating.countDown();
+			try {
+				creating.await(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new Callable<GridCoverage2D>() {
+				@Override
+				public GridCoverage2D call() {
+					BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_USHORT_GRAY);
+					Envelope2D envelope = new Envelope2D(DefaultGeographicCRS.WGS84, -180, -90, 360, 180);
+					return new GridCoverageFactory().create("globe", image, envelope);
+				}
+			};
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testSingleLoader() throws Exception {
+		final int threads = 4;
+		final SlowGridProviderStub provider = new SlowGridProviderStub(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<TileSampler>> samplers = new ArrayList<Future<TileSampler>>();
+			for(int i=0;i<threads;i++) {
+				samplers.add(pool.submit(new Callable<TileSampler>() {
+					@Override
+					public TileSampler call() throws Exception {
+						start.await();
+						return provider.loadSampler(0);
+					}
+				}));
+			}
+			start.countDown();
+			TileSampler first = samplers.get(0).get();
+			for(Future<TileSampler> sampler : samplers) {
+				assertSame(first, sampler.get());
+			}
+			// Only the thread which won the tile created a loader
+			assertEquals(1, provider.loaders.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testUnusableGrid() throws Exception {
+		BadGridProviderStub provider = new BadGridProviderStub();
+		for(int i=0;i<2;i++) {
+			try {
+				provider.loadSampler(0);
+				fail("Loaded an unusable grid");
+			} catch(DataUnavailableException e) {
+				// Fails rather than waiting forever
+			}
+		}
+		// Failed tiles are retried
+		assertEquals(2, provider.loaders.get());
+	}
+
+	@Test(timeout=10000)
+	public void testDelegating() throws Exception {
+		SlowGridProviderStub grid = new SlowGridProviderStub(1);
+		InterpolatedCoverageElevationProvider interpolated =
+				new InterpolatedCoverageElevationProvider(grid);
+		// Tiles come from the grid, without threads of its own
+		assertNull(interpolated.getExecutor());
+		assertNotNull(grid.getExecutor());
+		assertSame(grid.loadSampler(0), interpolated.loadSampler(0));
+		assertEquals(1, grid.loaders.get());
+	}
+}
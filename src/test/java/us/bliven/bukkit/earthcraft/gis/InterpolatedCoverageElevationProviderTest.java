@@ -46,30 +46,44 @@ public class InterpolatedCoverageElevationProviderTest {
 	}
 
 	/**
-	 * Test interpolation around tile boundaries
-	 *
-	 * This tends to fail or produce artifacts.
+	 * Test that interpolation is continuous across tile boundaries
 	 * @throws Exception
 	 */
 	@Test
 	public void testTileBoundaries() throws Exception {
-		double elev;
-		Coordinate pos;
+		double e = d/1000; // small step across the boundary
 
-		pos = new Coordinate(60,-180);
-		elev = interp.fetchElevation(pos);
-		assertEquals(-2638.,elev,1e-6);
+		// Antimeridian
+		assertEquals(interp.fetchElevation(new Coordinate(60,-180)),
+				interp.fetchElevation(new Coordinate(60,180)),1e-6);
+		assertSeamless(63.37, -180, 0, e);
 
-		pos = new Coordinate(60,180);
-		elev = interp.fetchElevation(pos);
-		assertEquals(-2638.,elev,1e-6);
+		// Vertical boundaries
+		assertSeamless(34.3, -140, 0, e);
+		assertSeamless(-70.3, -60, 0, e); // Antarctic tiles
 
-		pos = new Coordinate(63.370000000000005,-180.0);
-		elev = interp.fetchElevation(pos);
-		assertEquals(-65.,elev,1e-6);
+		// Horizontal boundaries
+		assertSeamless(40, -120.3, e, 0);
+		assertSeamless(-10, -100.3, e, 0);
+		assertSeamless(-60, -60.3, e, 0); // regular to Antarctic tiles
 
-		pos = new Coordinate(90,0);
-		elev = interp.fetchElevation(pos);
-		assertEquals(-4233.,elev,1e-6);
+		// Corner of four tiles
+		assertSeamless(40, -140, e, e);
+
+		// Poles are clamped rather than throwing
+		interp.fetchElevation(new Coordinate(90,0));
+		interp.fetchElevation(new Coordinate(-90+e,0));
+	}
+
+	/**
+	 * Check that elevations on either side of (lat,lon) agree
+	 */
+	private void assertSeamless(double lat, double lon, double dLat, double dLon)
+			throws DataUnavailableException {
+		Coordinate before = new Coordinate(lat-dLat,lon-dLon);
+		Coordinate after = new Coordinate(lat+dLat,lon+dLon);
+		double elevBefore = interp.fetchElevation(before);
+		double elevAfter = interp.fetchElevation(after);
+		assertEquals("Seam between "+before+" and "+after,elevBefore,elevAfter,1.);
 	}
 }
@@ -6,8 +6,15 @@ package us.bliven.bukkit.earthcraft.gis;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -57,4 +64,357 @@ public class InterpolatingElevationCacheTest {
 			
 	}
 
+	@Test
+	public void testFetchArrays() throws Exception {
+		double[] lats = new double[] {1., 1.1, 2.5, -3.4};
+		double[] lons = new double[] {1., 1.9, 2.5, 0.};
+		double[] expected = new double[] {1., 1., 3., 3.};
+		double[] results = new double[lats.length];
+
+		cache.fetchElevations(lats, lons, results);
+		assertArrayEquals(expected, results, 1e-10);
+
+		// Again, from the cache
+		results = new double[lats.length];
+		cache.fetchElevations(lats, lons, results);
+		assertArrayEquals(expected, results, 1e-10);
+	}
+
+	@Test
+	public void testBilinear() throws Exception {
+		ElevationProvider provider = new ElevationProviderStub();
+		// Small cache, so that the request evicts its own points
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.),
+				new Coordinate(1.,1.), InterpolationMode.BILINEAR, 4);
+
+		double[] lats = new double[] {1., 1.5, 2.25, -.5, 7.75, 1.5};
+		double[] lons = new double[] {1., 1.9, 2.5, 0., -3.3, 1.9};
+		double[] expected = new double[] {1., 1.5, 2.25, .5, 7.75, 1.5};
+		double[] results = new double[lats.length];
+
+		cache.fetchElevations(lats, lons, results);
+		assertArrayEquals(expected, results, 1e-10);
+
+		results = new double[lats.length];
+		cache.fetchElevations(lats, lons, results);
+		assertArrayEquals(expected, results, 1e-10);
+	}
+
+	@Test
+	public void testBackgroundPrefetch() throws Exception {
+		final AtomicInteger fetched = new AtomicInteger();
+		final AtomicBoolean offline = new AtomicBoolean(false);
+		ElevationProvider provider = new ElevationProviderStub() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				if(offline.get()) {
+					throw new DataUnavailableException("Offline");
+				}
+				fetched.incrementAndGet();
+				return super.fetchElevation(c);
+			}
+		};
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.), new Coordinate(1.,1.));
+
+		assertEquals(5.,cache.fetchElevation(new Coordinate(5.,5.)),1e-10);
+		cache.awaitPrefetch();
+		assertTrue("Neighbors not prefetched",fetched.get() > 1);
+
+		// Neighbors are now cached
+		offline.set(true);
+		assertEquals(6.,cache.fetchElevation(new Coordinate(6.,5.)),1e-10);
+		assertEquals(4.,cache.fetchElevation(new Coordinate(4.,5.)),1e-10);
+		cache.awaitPrefetch();
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		final ConcurrentMap<Coordinate,AtomicInteger> fetches = new ConcurrentHashMap<Coordinate,AtomicInteger>();
+		final CountDownLatch gate = new CountDownLatch(1);
+		ElevationProvider provider = new ElevationProviderStub() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				fetches.putIfAbsent(c, new AtomicInteger());
+				fetches.get(c).incrementAndGet();
+				try {
+					gate.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new DataUnavailableException("Interrupted",e);
+				}
+				return super.fetchElevation(c);
+			}
+		};
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.), new Coordinate(1.,1.));
+
+		// Concurrent misses on the same lattice point
+		final double[] results = new double[8];
+		Thread[] threads = new Thread[results.length];
+		for(int i=0;i<threads.length;i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = cache.fetchElevation(new Coordinate(5.+.05*n,5.));
+					} catch (DataUnavailableException e) {
+						results[n] = Double.NaN;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(200);
+		gate.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		cache.awaitPrefetch();
+
+		for(double result : results) {
+			assertEquals(5.,result,1e-10);
+		}
+		for(AtomicInteger count : fetches.values()) {
+			assertEquals(1, count.get());
+		}
+	}
+
+	@Test
+	public void testSingleFlightFailure() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicBoolean failNext = new AtomicBoolean(true);
+		ElevationProvider provider = new ElevationProviderStub() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				// Only the queried point, since prefetches may fetch its neighbors first
+				if(c.x == 5. && c.y == 5. && failNext.getAndSet(false)) {
+					entered.countDown();
+					try {
+						gate.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// fail anyway
+					}
+					throw new DataUnavailableException("Offline");
+				}
+				return super.fetchElevation(c);
+			}
+		};
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.), new Coordinate(1.,1.));
+
+		final AtomicBoolean ownerFailed = new AtomicBoolean(false);
+		Thread owner = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.fetchElevation(new Coordinate(5.,5.));
+				} catch (DataUnavailableException e) {
+					ownerFailed.set(true);
+				}
+			}
+		};
+		owner.start();
+		entered.await(10, TimeUnit.SECONDS);
+
+		// Waits on the owner's fetch, then retries it
+		final double[] result = new double[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = cache.fetchElevation(new Coordinate(5.,5.));
+				} catch (DataUnavailableException e) {
+					result[0] = Double.NaN;
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		gate.countDown();
+		owner.join();
+		waiter.join();
+		cache.awaitPrefetch();
+
+		assertTrue(ownerFailed.get());
+		assertEquals(5.,result[0],1e-10);
+	}
+
+	@Test
+	public void testInterruptAfterFailedFlight() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(2);
+		final CountDownLatch failGate = new CountDownLatch(1);
+		final CountDownLatch slowGate = new CountDownLatch(1);
+		final AtomicBoolean failNext = new AtomicBoolean(true);
+		ElevationProvider provider = new ElevationProviderStub() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				try {
+					if(c.x == 5. && c.y == 5. && failNext.getAndSet(false)) {
+						entered.countDown();
+						failGate.await(10, TimeUnit.SECONDS);
+						throw new DataUnavailableException("Offline");
+					}
+					if(c.x == 7. && c.y == 7.) {
+						entered.countDown();
+						slowGate.await(10, TimeUnit.SECONDS);
+					}
+				} catch (InterruptedException e) {
+					throw new DataUnavailableException("Interrupted", e);
+				}
+				return super.fetchElevation(c);
+			}
+		};
+		cache = new InterpolatingElevationCache(provider, new Coordinate(0.,0.), new Coordinate(1.,1.));
+
+		Thread failing = new FetchThread(cache, 5.);
+		Thread slow = new FetchThread(cache, 7.);
+		failing.start();
+		slow.start();
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+		// Waits on both flights
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					cache.fetchElevations(new double[] {5.,7.}, new double[] {5.,7.}, new double[2]);
+				} catch (DataUnavailableException e) {
+					interrupted.set(true);
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+
+		// The waiter claims the failed point, then waits on the slow one
+		failGate.countDown();
+		failing.join();
+		Thread.sleep(100);
+		waiter.interrupt();
+		waiter.join(10000);
+		assertFalse(waiter.isAlive());
+		assertTrue(interrupted.get());
+
+		// The failed point must not be left in flight
+		FetchThread later = new FetchThread(cache, 5.);
+		later.start();
+		later.join(10000);
+		assertFalse("Blocked on an abandoned fetch", later.isAlive());
+		assertEquals(5., later.result, 1e-10);
+
+		slowGate.countDown();
+		slow.join();
+		cache.awaitPrefetch();
+	}
+
+	/**
+	 * Fetches the elevation at (x,x)
+	 */
+	private static class FetchThread extends Thread {
+		private final InterpolatingElevationCache cache;
+		private final double x;
+		volatile double result = Double.NaN;
+
+		public FetchThread(InterpolatingElevationCache cache, double x) {
+			this.cache = cache;
+			this.x = x;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = cache.fetchElevation(new Coordinate(x,x));
+			} catch (DataUnavailableException e) {
+				// leave NaN
+			}
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		assertEquals(1., cache.fetchElevation(new Coordinate(1.,1.)), 1e-10);
+		cache.close();
+		cache.awaitPrefetch();
+
+		// Still answers queries, without prefetching
+		assertEquals(3., cache.fetchElevation(new Coordinate(3.,3.)), 1e-10);
+		cache.awaitPrefetch();
+		cache.close();
+	}
+
+	@Test
+	public void testMissingNotStored() throws Exception {
+		File dir = File.createTempFile("lattice", "");
+		dir.delete();
+		try {
+			Coordinate origin = new Coordinate(0.,0.);
+			Coordinate gridScale = new Coordinate(1.,1.);
+			ElevationProvider missing = new ElevationProviderStub() {
+				@Override
+				public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+					return c.x == 1. ? null : super.fetchElevation(c);
+				}
+			};
+			cache = new InterpolatingElevationCache(missing, origin, gridScale,
+					InterpolationMode.NEAREST, 16, dir);
+			assertNull(cache.fetchElevation(new Coordinate(1.,1.)));
+			assertEquals(2., cache.fetchElevation(new Coordinate(2.,2.)), 1e-10);
+			cache.awaitPrefetch();
+			cache.close();
+
+			// Missing points are fetched again after a restart
+			cache = new InterpolatingElevationCache(new ElevationProviderStub(), origin, gridScale,
+					InterpolationMode.NEAREST, 16, dir);
+			assertEquals(1., cache.fetchElevation(new Coordinate(1.,1.)), 1e-10);
+			cache.awaitPrefetch();
+			cache.close();
+		} finally {
+			for(File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testPersistentStore() throws Exception {
+		File dir = File.createTempFile("lattice", "");
+		dir.delete();
+		try {
+			Coordinate origin = new Coordinate(0.,0.);
+			Coordinate gridScale = new Coordinate(1.,1.);
+			double[] lats = new double[] {1., 2.5, -3.4, 100.};
+			double[] lons = new double[] {1., 2.5, 0., -70.};
+			double[] expected = new double[] {1., 3., 3., 100.};
+			double[] results = new double[lats.length];
+
+			cache = new InterpolatingElevationCache(new ElevationProviderStub(), origin, gridScale,
+					InterpolationMode.NEAREST, 16, dir);
+			cache.fetchElevations(lats, lons, results);
+			assertArrayEquals(expected, results, 1e-10);
+			cache.awaitPrefetch();
+			cache.close();
+
+			// A new cache should not need the provider
+			ElevationProvider offline = new ElevationProviderStub() {
+				@Override
+				public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+					throw new DataUnavailableException("Offline");
+				}
+			};
+			cache = new InterpolatingElevationCache(offline, origin, gridScale,
+					InterpolationMode.NEAREST, 16, dir);
+			results = new double[lats.length];
+			cache.fetchElevations(lats, lons, results);
+			assertArrayEquals(expected, results, 1e-10);
+			cache.awaitPrefetch();
+			cache.close();
+		} finally {
+			for(File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
 }
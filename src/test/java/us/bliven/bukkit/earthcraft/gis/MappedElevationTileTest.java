@@ -0,0 +1,102 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MappedElevationTileTest {
+	File file;
+	MappedElevationTile tile;
+
+	/**
+	 * Write a 4x3 tile covering lat (7,10], lon [20,24) with
+	 * sample(col,row) = 10*row+col, and a negative value in the corner.
+	 */
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("tile", ".dem");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			for(int row=0;row<3;row++) {
+				for(int col=0;col<4;col++) {
+					if(row == 2 && col == 3) {
+						out.writeShort(-4338);
+					} else {
+						out.writeShort(10*row+col);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		tile = new MappedElevationTile(file, 4, 3, 10., 20., 1., 1.);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testSamples() {
+		assertEquals(0,tile.getSample(0, 0));
+		assertEquals(3,tile.getSample(3, 0));
+		assertEquals(10,tile.getSample(0, 1));
+		assertEquals(21,tile.getSample(1, 2));
+		assertEquals(-4338,tile.getSample(3, 2));
+
+		assertEquals(7.,tile.getSouth(),1e-9);
+		assertEquals(24.,tile.getEast(),1e-9);
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testSampleBounds() {
+		tile.getSample(4, 0);
+	}
+
+	/**
+	 * Sample the tile the way the providers do
+	 */
+	private TileSampler getSampler() {
+		return new TileSampler(tile.getImage(), tile.getNorth(), tile.getWest(),
+				tile.getCellWidth(), tile.getCellHeight());
+	}
+
+	@Test
+	public void testNearest() {
+		TileSampler sampler = getSampler();
+		assertEquals(0.,sampler.nearest(10., 20.),1e-9);
+		assertEquals(0.,sampler.nearest(9.01, 20.99),1e-9);
+		assertEquals(11.,sampler.nearest(9., 21.),1e-9);
+		assertEquals(-4338.,sampler.nearest(7.01, 23.99),1e-9);
+
+		// Points off the tile use the nearest edge cell
+		assertEquals(21.,sampler.nearest(7., 21.),1e-9);
+		assertEquals(13.,sampler.nearest(9., 24.),1e-9);
+	}
+
+	@Test
+	public void testBilinear() {
+		TileSampler sampler = getSampler();
+		// Cell centers are exact
+		assertEquals(0.,sampler.bilinear(9.5, 20.5),1e-9);
+		assertEquals(12.,sampler.bilinear(8.5, 22.5),1e-9);
+
+		// Halfway between centers
+		assertEquals(.5,sampler.bilinear(9.5, 21.),1e-9);
+		assertEquals(5.,sampler.bilinear(9., 20.5),1e-9);
+		assertEquals(5.5,sampler.bilinear(9., 21.),1e-9);
+
+		// Edges extend the outermost samples
+		assertEquals(0.,sampler.bilinear(10., 20.),1e-9);
+		assertEquals(.5,sampler.bilinear(10., 21.),1e-9);
+	}
+}
@@ -0,0 +1,165 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class MeteredElevationProviderTest {
+	private ElevationMetricsRegistry registry;
+
+	/**
+	 * Returns abs(lat), except null above 80 degrees and errors below -80
+	 */
+	private static class PatchyProviderStub extends AbstractElevationProvider {
+		@Override
+		public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+			if( c.x < -80 ) {
+				throw new DataUnavailableException("No data at "+c);
+			}
+			return c.x > 80 ? null : Math.abs(c.x);
+		}
+	}
+
+	private static class GridProviderStub extends GridCoverageElevationProvider {
+		public GridProviderStub() {
+			super(new TileScheme(new double[] {90,-90}, new double[] {360}, 90));
+		}
+		@Override
+		protected Callable<GridCoverage2D> createTileLoader(int tile) {
+			return null;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		registry = new ElevationMetricsRegistry();
+	}
+
+	@After
+	public void tearDown() {
+		registry.shutdown();
+	}
+
+	@Test
+	public void testCounts() throws Exception {
+		ElevationMetrics metrics = registry.getMetrics("patchy");
+		MeteredElevationProvider metered = new MeteredElevationProvider(
+				new PatchyProviderStub(), metrics);
+
+		assertEquals(10., metered.fetchElevation(new Coordinate(10,0)), 1e-9);
+		assertNull(metered.fetchElevation(new Coordinate(85,0)));
+		List<Double> elevs = metered.fetchElevations(Arrays.asList(
+				new Coordinate(1,0), new Coordinate(2,0), new Coordinate(89,0)));
+		assertEquals(Arrays.asList(1., 2., null), elevs);
+
+		double[] lat = {3, 4, 5, 88};
+		double[] lon = new double[4];
+		double[] out = new double[4];
+		metered.fetchElevations(lat, lon, out);
+		assertEquals(5., out[2], 1e-9);
+		assertTrue(Double.isNaN(out[3]));
+
+		try {
+			metered.fetchElevation(new Coordinate(-85,0));
+			fail("Expected an error");
+		} catch(DataUnavailableException e) {
+			// expected
+		}
+
+		assertEquals(5, metrics.getCalls());
+		assertEquals(10, metrics.getPoints());
+		assertEquals(3, metrics.getNulls());
+		assertEquals(1, metrics.getErrors());
+		assertTrue(metrics.getMaxLatencyMillis() >= metrics.getMedianLatencyMillis());
+		assertTrue(registry.getSummary().startsWith("patchy: 5 calls, 10 points, 1 errors, 3 nulls"));
+
+		metrics.reset();
+		assertEquals(0, metrics.getCalls());
+		assertEquals(0., metrics.getMaxLatencyMillis(), 0);
+	}
+
+	@Test
+	public void testInstrumentCache() throws Exception {
+		InterpolatingElevationCache cache = new InterpolatingElevationCache(
+				new ElevationProviderStub(), new Coordinate(0,0), new Coordinate(1,1));
+		ElevationProvider provider = MeteredElevationProvider.instrument(cache, registry);
+
+		assertTrue(provider instanceof MeteredElevationProvider);
+		assertSame(cache, ((MeteredElevationProvider) provider).getElevationProvider());
+		assertTrue(cache.getElevationProvider() instanceof MeteredElevationProvider);
+		// Instrumenting twice changes nothing
+		assertSame(provider, MeteredElevationProvider.instrument(provider, registry));
+
+		assertEquals(1., provider.fetchElevation(new Coordinate(1.1,1.9)), 1e-9);
+
+		ElevationMetrics outer = registry.getMetrics("InterpolatingElevationCache");
+		ElevationMetrics inner = registry.getMetrics("ElevationProviderStub");
+		assertEquals(1, outer.getCalls());
+		assertEquals(1, outer.getPoints());
+		assertTrue(inner.getCalls() > 0);
+		assertTrue(inner.getPoints() > 0);
+		assertEquals(0, inner.getErrors());
+	}
+
+	@Test
+	public void testInstrumentTiles() {
+		GridProviderStub grid = new GridProviderStub();
+		InterpolatedCoverageElevationProvider interpolated =
+				new InterpolatedCoverageElevationProvider(grid);
+		ElevationProvider provider = MeteredElevationProvider.instrument(interpolated, registry, "world");
+
+		// Names include the prefix
+		assertSame(registry.getMetrics("world.InterpolatedCoverageElevationProvider"),
+				((MeteredElevationProvider) provider).getMetrics());
+		// Tiles are loaded by the underlying grid
+		assertSame(registry.getMetrics("world.GridProviderStub.files"), grid.getFileMetrics());
+		assertNull(interpolated.getFileMetrics());
+	}
+
+	@Test
+	public void testPrefetchable() {
+		// Only prefetchable chains can be prefetched
+		ElevationProvider plain = MeteredElevationProvider.instrument(new PatchyProviderStub(), registry);
+		assertFalse(plain instanceof Prefetchable);
+
+		ElevationProvider grid = MeteredElevationProvider.instrument(new GridProviderStub(), registry);
+		assertTrue(grid instanceof Prefetchable);
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		ElevationMetrics metrics = registry.getMetrics("jmx test");
+		metrics.record(4, 1, 2000000, false);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = ElevationMetricsRegistry.getObjectName("jmx test");
+		assertTrue(server.isRegistered(name));
+		assertEquals(1L, server.getAttribute(name, "Calls"));
+		assertEquals(4L, server.getAttribute(name, "Points"));
+		assertEquals(1L, server.getAttribute(name, "Nulls"));
+		assertEquals(2., (Double) server.getAttribute(name, "MaxLatencyMillis"), 1e-9);
+
+		registry.shutdown();
+		assertFalse(server.isRegistered(name));
+
+		// Registered again if used after a shutdown
+		assertEquals(0, registry.getMetrics("jmx test").getCalls());
+		assertTrue(server.isRegistered(name));
+	}
+}
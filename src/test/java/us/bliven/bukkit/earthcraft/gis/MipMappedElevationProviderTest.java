@@ -0,0 +1,169 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class MipMappedElevationProviderTest {
+	File dir;
+	GridProviderStub grid;
+
+	/**
+	 * One tile covering the globe with 16x8 cells of 22.5 degrees,
+	 * where sample(col,row) = 10*row+col
+	 */
+	private static class GridProviderStub extends GridCoverageElevationProvider {
+		private final TileSampler sampler;
+		final AtomicInteger loads = new AtomicInteger();
+
+		public GridProviderStub() {
+			super(new TileScheme(new double[] {90,-90}, new double[] {360}, 90, 22.5));
+			BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_USHORT_GRAY);
+			WritableRaster raster = image.getRaster();
+			for(int row=0;row<8;row++) {
+				for(int col=0;col<16;col++) {
+					raster.setSample(col, row, 0, 10*row+col);
+				}
+			}
+			sampler = new TileSampler(image, 90, -180, 22.5, 22.5);
+		}
+
+		@Override
+		public TileSampler loadSampler(int tile) {
+			loads.incrementAndGet();
+			return sampler;
+		}
+
+		@Override
+		protected Callable<GridCoverage2D> createTileLoader(int tile) {
+			return null;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("mipmap", "");
+		dir.delete();
+		grid = new GridProviderStub();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private MipMappedElevationProvider create(double scale) {
+		MapProjection projection = new EquirectangularProjection(
+				new Coordinate(0,0), new Coordinate(scale,scale));
+		return new MipMappedElevationProvider(grid, projection, dir, 3);
+	}
+
+	@Test
+	public void testLevel() throws Exception {
+		assertEquals(0, create(10).getLevel(0, 0));
+		assertEquals(1, create(45).getLevel(0, 0));
+		assertEquals(2, create(100).getLevel(0, 0));
+		assertEquals(3, create(1000).getLevel(0, 0));
+		// Chosen from the tile scheme, without loading tiles
+		assertEquals(0, grid.loads.get());
+	}
+
+	@Test
+	public void testFetch() throws Exception {
+		// Level 0 is the original grid
+		assertEquals(11., create(1).fetchElevation(new Coordinate(60,-150)), 1e-9);
+
+		// Level 1 averages 2x2 blocks: (0+1+10+11)/4 rounds to 6
+		MipMappedElevationProvider mipmap = create(45);
+		assertEquals(6., mipmap.fetchElevation(new Coordinate(80,-170)), 1e-9);
+		// (24+25+34+35)/4 = 29.5 rounds to 30
+		assertEquals(30., mipmap.fetchElevation(new Coordinate(30,-80)), 1e-9);
+
+		// Level 2 averages 4x4 blocks of level 1
+		mipmap = create(100);
+		double[] lat = {80, -80};
+		double[] lon = {-170, 170};
+		double[] out = new double[2];
+		mipmap.fetchElevations(lat, lon, out);
+		// (6+8+26+28)/4 = 17
+		assertEquals(17., out[0], 1e-9);
+		// (58+60+78+80)/4 = 69
+		assertEquals(69., out[1], 1e-9);
+	}
+
+	@Test
+	public void testPersistence() throws Exception {
+		create(1000).fetchElevation(new Coordinate(0,0));
+
+		File level1 = new File(dir, "w180n90.L1.dem");
+		assertTrue(level1.exists());
+		assertEquals(2*8*4, level1.length());
+		assertEquals(2*4*2, new File(dir, "w180n90.L2.dem").length());
+		assertEquals(2*2*1, new File(dir, "w180n90.L3.dem").length());
+
+		// Stored levels are reused, without loading the full-resolution tile
+		long modified = level1.lastModified();
+		grid.loads.set(0);
+		MipMappedElevationProvider mipmap = create(45);
+		assertEquals(6., mipmap.fetchElevation(new Coordinate(80,-170)), 1e-9);
+		assertEquals(17., create(100).fetchElevation(new Coordinate(80,-170)), 1e-9);
+		assertFalse(create(1000).prefetch(new Coordinate(0,0)));
+		assertEquals(modified, level1.lastModified());
+		assertEquals(0, grid.loads.get());
+	}
+
+	@Test
+	public void testConcurrentBuild() throws Exception {
+		final MipMappedElevationProvider mipmap = create(1000);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<TileSampler>> results = new ArrayList<Future<TileSampler>>();
+			for(int i=0;i<8;i++) {
+				results.add(pool.submit(new Callable<TileSampler>() {
+					@Override
+					public TileSampler call() throws Exception {
+						return mipmap.loadLevel(0, 3);
+					}
+				}));
+			}
+			// Each level is built once and shared
+			TileSampler first = results.get(0).get();
+			for(Future<TileSampler> result : results) {
+				assertSame(first, result.get());
+			}
+			assertSame(mipmap.loadLevel(0, 2), mipmap.loadLevel(0, 2));
+			assertEquals(1, grid.loads.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
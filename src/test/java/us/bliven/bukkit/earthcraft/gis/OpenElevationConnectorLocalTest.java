@@ -0,0 +1,252 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Tests OpenElevationConnector against a local server
+ * @author Spencer Bliven
+ */
+public class OpenElevationConnectorLocalTest {
+	private OpenElevationServerStub server;
+	private OpenElevationConnector oec;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new OpenElevationServerStub();
+		oec = new OpenElevationConnector(OpenElevationServerStub.KEY, server.getURL(), 2);
+	}
+
+	@After
+	public void tearDown() {
+		oec.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testFetchElevations() throws DataUnavailableException {
+		List<Coordinate> l = Lists.newArrayList(
+				new Coordinate(1.5, 10), new Coordinate(-2, 20), new Coordinate(3, 30));
+		List<Double> e = oec.fetchElevations(l);
+		assertEquals(3, e.size());
+		assertEquals(15., e.get(0), 1e-10);
+		assertEquals(-20., e.get(1), 1e-10);
+		assertEquals(30., e.get(2), 1e-10);
+		assertEquals(1, oec.getRequestsMade());
+	}
+
+	@Test
+	public void testJSON() throws DataUnavailableException {
+		oec.setJSON(true);
+		server.getBadLatitudes().add(2.);
+		double[] lat = {1.5, -2, 2, 3};
+		double[] lon = {10, 20, 30, 40};
+		double[] out = new double[4];
+		oec.fetchElevations(lat, lon, out);
+		assertEquals(15., out[0], 1e-10);
+		assertEquals(-20., out[1], 1e-10);
+		assertTrue(Double.isNaN(out[2]));
+		assertEquals(30., out[3], 1e-10);
+	}
+
+	@Test
+	public void testBadPoint() throws DataUnavailableException {
+		server.getBadLatitudes().add(2.);
+		List<Coordinate> l = Lists.newArrayList(
+				new Coordinate(1, 10), new Coordinate(2, 20), new Coordinate(3, 30));
+		List<Double> e = oec.fetchElevations(l);
+		assertEquals(3, e.size());
+		assertEquals(10., e.get(0), 1e-10);
+		assertEquals(null, e.get(1));
+		assertEquals(30., e.get(2), 1e-10);
+	}
+
+	@Test
+	public void testBisection() throws DataUnavailableException {
+		server.getBadLatitudes().add(30.);
+		int n = 36;
+		double[] lat = new double[n];
+		double[] lon = new double[n];
+		double[] out = new double[n];
+		for(int i=0;i<n;i++) {
+			lat[i] = i;
+			lon[i] = -i;
+		}
+		oec.fetchElevations(lat, lon, out);
+		for(int i=0;i<n;i++) {
+			if( i == 30 ) {
+				assertTrue(Double.isNaN(out[i]));
+			} else {
+				assertEquals(10.*i, out[i], 1e-10);
+			}
+		}
+		// Two requests per level
+		assertTrue(server.getRequests() <= 1+2*6);
+		assertEquals(1, oec.getBadPointCount());
+
+		// Known bad points are skipped
+		int requests = server.getRequests();
+		lon[0] = 1; // avoid coalescing
+		oec.fetchElevations(lat, lon, out);
+		assertEquals(requests+1, server.getRequests());
+		assertTrue(Double.isNaN(out[30]));
+		assertEquals(350., out[35], 1e-10);
+
+		oec.clearBadPoints();
+		oec.fetchElevations(lat, lon, out);
+		assertTrue(server.getRequests() > requests+2);
+	}
+
+	@Test
+	public void testBadPointTimeout() throws DataUnavailableException {
+		server.getBadLatitudes().add(2.);
+		oec.setBadPointTimeout(0, TimeUnit.MILLISECONDS);
+		double[] lat = {1, 2, 3, 4};
+		double[] lon = {0, 0, 0, 0};
+		double[] out = new double[4];
+		oec.fetchElevations(lat, lon, out);
+		assertTrue(Double.isNaN(out[1]));
+		assertEquals(1, oec.getBadPointCount());
+
+		// Expired, so requested again
+		server.getBadLatitudes().clear();
+		lon[0] = 1; // avoid coalescing
+		oec.fetchElevations(lat, lon, out);
+		assertEquals(20., out[1], 1e-10);
+		assertEquals(0, oec.getBadPointCount());
+	}
+
+	@Test
+	public void testOutage() {
+		server.setStatus(403);
+		double[] lat = new double[36];
+		double[] lon = new double[36];
+		try {
+			oec.fetchElevations(lat, lon, new double[36]);
+			fail("Expected an error");
+		} catch(DataUnavailableException e) {
+			// expected
+		}
+		// Not a point error, so not bisected
+		assertEquals(1, server.getRequests());
+		assertEquals(0, oec.getBadPointCount());
+	}
+
+	@Test
+	public void testBothHalvesFail() throws DataUnavailableException {
+		server.getBadLatitudes().add(2.);
+		server.getBadLatitudes().add(30.);
+		double[] lat = new double[36];
+		double[] lon = new double[36];
+		double[] out = new double[36];
+		for(int i=0;i<lat.length;i++) {
+			lat[i] = i;
+		}
+		oec.fetchElevations(lat, lon, out);
+		// Both points are isolated and the rest are still returned
+		for(int i=0;i<lat.length;i++) {
+			if( i == 2 || i == 30 ) {
+				assertTrue(Double.isNaN(out[i]));
+			} else {
+				assertEquals(10.*i, out[i], 1e-10);
+			}
+		}
+		assertTrue(server.getRequests() <= 1+2*2*6);
+		assertEquals(2, oec.getBadPointCount());
+	}
+
+	@Test
+	public void testTooManyBadPoints() {
+		double[] lat = new double[36];
+		double[] lon = new double[36];
+		for(int i=0;i<lat.length;i++) {
+			lat[i] = i;
+			if( i%3 == 0 ) {
+				server.getBadLatitudes().add((double) i);
+			}
+		}
+		try {
+			oec.fetchElevations(lat, lon, new double[36]);
+			fail("Expected an error");
+		} catch(DataUnavailableException e) {
+			// expected
+		}
+		// Treated as an outage, so nothing is cached
+		assertEquals(0, oec.getBadPointCount());
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		oec.shutdown();
+		List<Coordinate> l = Lists.newArrayList(new Coordinate(1, 1));
+		for(int i=0;i<2;i++) {
+			try {
+				oec.fetchElevations(l);
+				fail("Expected an error");
+			} catch(DataUnavailableException e) {
+				// expected, rather than waiting forever
+			}
+		}
+		assertEquals(0, server.getRequests());
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		server.setGate(gate);
+
+		Future<List<Double>> a = oec.fetchElevationsAsync(Lists.newArrayList(new Coordinate(1, 1)));
+		Future<List<Double>> b = oec.fetchElevationsAsync(Lists.newArrayList(new Coordinate(1, 1)));
+		Future<List<Double>> c = oec.fetchElevationsAsync(Lists.newArrayList(new Coordinate(2, 1)));
+		assertSame(a, b);
+		gate.countDown();
+
+		assertEquals(10., a.get().get(0), 1e-10);
+		assertEquals(10., b.get().get(0), 1e-10);
+		assertEquals(20., c.get().get(0), 1e-10);
+		assertEquals(2, server.getRequests());
+
+		// Completed requests are not reused
+		oec.fetchElevations(Lists.newArrayList(new Coordinate(1, 1)));
+		assertEquals(3, server.getRequests());
+	}
+
+	@Test
+	public void testBoundedConcurrency() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		server.setGate(gate);
+
+		List<Future<List<Double>>> futures = new ArrayList<Future<List<Double>>>();
+		for(int i=0;i<8;i++) {
+			futures.add(oec.fetchElevationsAsync(Lists.newArrayList(new Coordinate(i, 0))));
+		}
+		// Both workers are held at the gate, so no more requests can start
+		assertTrue(server.awaitRequests(2, 10000));
+		assertEquals(2, server.getRequests());
+		gate.countDown();
+
+		for(int i=0;i<8;i++) {
+			assertEquals(10.*i, futures.get(i).get().get(0), 1e-10);
+		}
+		assertEquals(8, server.getRequests());
+		assertTrue(server.getMaxActive() <= 2);
+		// Connections are kept alive between requests
+		assertTrue(server.getConnections() < 8);
+	}
+}
@@ -0,0 +1,96 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class OpenElevationParserTest {
+	private static final double TOL = 1e-10;
+
+	private static InputStream stream(String str) throws IOException {
+		return new ByteArrayInputStream(str.getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testXML() throws IOException {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<response><info><statusCode>0</statusCode><messages/></info>"
+				+ "<elevationProfile>"
+				+ "<distanceHeight><distance>0</distance><height>1616</height></distanceHeight>"
+				+ "<distanceHeight><distance>0.5</distance><height> -32.25 </height></distanceHeight>"
+				+ "<distanceHeight><distance>1</distance><height>2.518e3</height></distanceHeight>"
+				+ "</elevationProfile></response>";
+		OpenElevationParser parser = new OpenElevationParser();
+		double[] heights = new double[3];
+		parser.parse(stream(xml), false, heights);
+		assertEquals(0, parser.getStatus());
+		assertNull(parser.getMessage());
+		assertEquals(3, parser.getCount());
+		assertEquals(1616, heights[0], TOL);
+		assertEquals(-32.25, heights[1], TOL);
+		assertEquals(2518, heights[2], TOL);
+	}
+
+	@Test
+	public void testXMLError() throws IOException {
+		String xml = "<response><info><statusCode>601</statusCode>"
+				+ "<messages><message>Bad</message><message>Worse</message></messages>"
+				+ "</info><elevationProfile/></response>";
+		OpenElevationParser parser = new OpenElevationParser();
+		parser.parse(stream(xml), false, new double[2]);
+		assertEquals(601, parser.getStatus());
+		assertEquals("Bad\nWorse", parser.getMessage());
+		assertEquals(0, parser.getCount());
+	}
+
+	@Test
+	public void testJSON() throws IOException {
+		String json = "{\"elevationProfile\":[{\"distance\":0,\"height\":1616},"
+				+ "{\"distance\":0.5, \"height\" : -0.05},{\"distance\":1,\"height\":null}],"
+				+ "\"shapePoints\":[],\"info\":{\"statuscode\":0,"
+				+ "\"copyright\":{\"text\":\"\\u00A9 \\\"MapQuest\\\"\"},\"messages\":[]}}";
+		OpenElevationParser parser = new OpenElevationParser();
+		double[] heights = new double[3];
+		parser.parse(stream(json), true, heights);
+		assertEquals(0, parser.getStatus());
+		assertNull(parser.getMessage());
+		assertEquals(3, parser.getCount());
+		assertEquals(1616, heights[0], TOL);
+		assertEquals(-0.05, heights[1], 0);
+		assertTrue(Double.isNaN(heights[2]));
+
+		json = "{\"elevationProfile\":[],\"info\":{\"statuscode\":400,\"messages\":[\"Bad\",\"Worse\"]}}";
+		parser.parse(stream(json), true, heights);
+		assertEquals(400, parser.getStatus());
+		assertEquals("Bad\nWorse", parser.getMessage());
+		assertEquals(0, parser.getCount());
+	}
+
+	@Test
+	public void testLongResponse() throws IOException {
+		// Spans many buffers
+		int n = 5000;
+		StringBuilder xml = new StringBuilder("<response><elevationProfile>");
+		for(int i=0;i<n;i++) {
+			xml.append("<distanceHeight><height>").append(i*0.1).append("</height></distanceHeight>");
+		}
+		xml.append("</elevationProfile></response>");
+		OpenElevationParser parser = new OpenElevationParser();
+		double[] heights = new double[n];
+		parser.parse(stream(xml.toString()), false, heights);
+		assertEquals(n, parser.getCount());
+		for(int i=0;i<n;i++) {
+			// Correctly rounded
+			assertEquals(i*0.1, heights[i], 0);
+		}
+	}
+}
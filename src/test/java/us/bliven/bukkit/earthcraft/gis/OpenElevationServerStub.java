@@ -0,0 +1,201 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the MapQuest elevation service.
+ *
+ * The height of each point is <tt>lat*10</tt>. Responses are XML or JSON
+ * according to the outFormat parameter. Any batch containing a
+ * latitude listed in {@link #getBadLatitudes()} fails with a non-zero status
+ * code, as MapQuest does for points it cannot handle. Use
+ * {@link #setStatus(int)} to fail every request instead.
+ * @author Spencer Bliven
+ */
+public class OpenElevationServerStub implements HttpHandler {
+	public static final String KEY = "0123456789abcdef0123456789abcdef";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxActive = new AtomicInteger();
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final Set<Double> badLatitudes = Collections.synchronizedSet(new HashSet<Double>());
+	private volatile CountDownLatch gate = null;
+	private volatile int status = 0;
+
+	public OpenElevationServerStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/elevation", this);
+		executor = Executors.newFixedThreadPool(16);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public String getURL() {
+		return "http://localhost:"+server.getAddress().getPort()+"/elevation";
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Hold all responses until the gate opens
+	 */
+	public void setGate(CountDownLatch gate) {
+		this.gate = gate;
+	}
+
+	/**
+	 * @param status Status code for every response, or 0 for normal responses
+	 */
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public Set<Double> getBadLatitudes() {
+		return badLatitudes;
+	}
+
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Wait until at least n requests have arrived
+	 * @return false if the timeout elapsed first
+	 */
+	public synchronized boolean awaitRequests(int n, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis()+timeoutMillis;
+		while( requests.get() < n ) {
+			long remaining = deadline-System.currentTimeMillis();
+			if( remaining <= 0 ) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Most requests ever handled at once
+	 */
+	public int getMaxActive() {
+		return maxActive.get();
+	}
+
+	/**
+	 * @return Number of distinct client connections seen
+	 */
+	public int getConnections() {
+		return clientPorts.size();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		synchronized(this) {
+			notifyAll();
+		}
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		int now = active.incrementAndGet();
+		int max;
+		while( (max = maxActive.get()) < now && !maxActive.compareAndSet(max, now) ) {}
+		try {
+			CountDownLatch g = gate;
+			if( g != null ) {
+				g.await(10, TimeUnit.SECONDS);
+			}
+			String query = exchange.getRequestURI().getRawQuery();
+			boolean json = getParameter(query, "outFormat").equals("json");
+			byte[] body = respond(getParameter(query, "latLngCollection"), json)
+					.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/xml");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (InterruptedException e) {
+			exchange.sendResponseHeaders(503, -1);
+		} finally {
+			active.decrementAndGet();
+			InputStream in = exchange.getRequestBody();
+			in.close();
+			exchange.close();
+		}
+	}
+
+	private String respond(String latLngs, boolean json) {
+		String[] values = latLngs.split(",");
+		List<Double> heights = new ArrayList<Double>();
+		int status = this.status;
+		for(int i=0;i+1<values.length;i+=2) {
+			double lat = Double.parseDouble(values[i]);
+			if( badLatitudes.contains(lat) ) {
+				status = 601;
+			}
+			heights.add(lat*10);
+		}
+		if( status != 0 ) {
+			heights.clear();
+		}
+
+		StringBuilder out = new StringBuilder();
+		if( json ) {
+			out.append("{\"elevationProfile\":[");
+			for(int i=0;i<heights.size();i++) {
+				out.append(i == 0 ? "" : ",");
+				out.append("{\"distance\":0,\"height\":").append(heights.get(i)).append("}");
+			}
+			out.append("],\"shapePoints\":[],\"info\":{\"statuscode\":").append(status);
+			out.append(",\"copyright\":{\"text\":\"\\u00A9 MapQuest\"},\"messages\":[");
+			if( status != 0 ) {
+				out.append("\"Bad point\"");
+			}
+			out.append("]}}");
+		} else {
+			out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><response><info>");
+			out.append("<statusCode>").append(status).append("</statusCode><messages>");
+			if( status != 0 ) {
+				out.append("<message>Bad point</message>");
+			}
+			out.append("</messages></info><elevationProfile>");
+			for(Double height : heights) {
+				out.append("<distanceHeight><distance>0</distance><height>");
+				out.append(height);
+				out.append("</height></distanceHeight>");
+			}
+			out.append("</elevationProfile></response>");
+		}
+		return out.toString();
+	}
+
+	private static String getParameter(String query, String name) {
+		for(String param : query.split("&")) {
+			if( param.startsWith(name+"=") ) {
+				return param.substring(name.length()+1);
+			}
+		}
+		return "";
+	}
+}
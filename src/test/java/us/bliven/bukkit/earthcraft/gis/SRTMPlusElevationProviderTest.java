@@ -13,7 +13,6 @@ import java.util.List;
 import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.gce.gtopo30.GTopo30Reader;
 import org.geotools.geometry.DirectPosition2D;
 import org.junit.Before;
 import org.junit.Test;
@@ -66,40 +65,29 @@ public class SRTMPlusElevationProviderTest {
 		//GridCoverage2D grid = srtm.loadGrid(new Coordinate(34,-117));
 
 		File file = new File("/Users/blivens/dev/minecraft/srtm/w140n40.Bathymetry.srtm.dem");
-		GTopo30Reader reader = new GTopo30Reader( file );
-		GridCoverage2D grid = reader.read(null);
+		MappedElevationTile tile = new MappedElevationTile(file, 4800, 6000, 40, -140, d, d);
+
+		assertEquals(-4338,tile.getSample(0,0));
+		assertEquals(-4377,tile.getSample(1,0));
+		assertEquals(-4106,tile.getSample(100,0));
+		assertEquals(-4466,tile.getSample(479,0));
+		assertEquals(-4337,tile.getSample(480,0));
+		assertEquals(-3406,tile.getSample(500,0));
+		assertEquals(-4366,tile.getSample(1000,0));
+		assertEquals(410,tile.getSample(2000,0));
+		assertEquals(693,tile.getSample(4799,0));
+		assertEquals(-4392,tile.getSample(0,1));
+		assertEquals(-4339,tile.getSample(4799,5999));
+
+		// The coverage view should agree
+		GridCoverage2D grid = tile.getCoverage("w140n40");
 
-			
 		GridCoordinates2D pos;
 		pos = new GridCoordinates2D(0,0);
 		assertEquals(-4338,grid.evaluate(pos,(int[])null)[0]);
 
-		pos = new GridCoordinates2D(1,0);
-		assertEquals(-4377,grid.evaluate(pos,(int[])null)[0]);
-
-		pos = new GridCoordinates2D(100,0);
-		assertEquals(-4106,grid.evaluate(pos,(int[])null)[0]);
-
-		pos = new GridCoordinates2D(479,0);
-		assertEquals(-4466,grid.evaluate(pos,(int[])null)[0]);
-
-		pos = new GridCoordinates2D(480,0);
-		assertEquals(-4337,grid.evaluate(pos,(int[])null)[0]);
-
-		pos = new GridCoordinates2D(500,0);
-		assertEquals(-3406,grid.evaluate(pos,(int[])null)[0]);
-
-
-		pos = new GridCoordinates2D(1000,0);
-		assertEquals(-4366,grid.evaluate(pos,(int[])null)[0]);
-
-		pos = new GridCoordinates2D(2000,0);
-		assertEquals(410,grid.evaluate(pos,(int[])null)[0]);
-
 		pos = new GridCoordinates2D(4799,0);
 		assertEquals(693,grid.evaluate(pos,(int[])null)[0]);
-		pos = new GridCoordinates2D(0,1);
-		assertEquals(-4392,grid.evaluate(pos,(int[])null)[0]);
 
 		pos = new GridCoordinates2D(4799,5999);
 		assertEquals(-4339,grid.evaluate(pos,(int[])null)[0]);
@@ -392,4 +380,25 @@ public class SRTMPlusElevationProviderTest {
 
 		//System.out.println(elev);
 	}
+
+	/**
+	 * Test that bulk requests spanning several tiles agree with GeoTools
+	 * @throws Exception
+	 */
+	@Test
+	public void testFetchElevations() throws Exception {
+		// Corner of four tiles, plus one point needing wrapping
+		double[] lats = {40+d/2, 40+d/2, 40-d/2, 40-d/2, 40, 34, 34};
+		double[] lons = {-140-d/2, -140+d/2, -140-d/2, -140+d/2, -140, -117, -117+360};
+		double[] elevs = new double[lats.length];
+		srtm.fetchElevations(lats, lons, elevs);
+
+		for(int i=0;i<lats.length;i++) {
+			Coordinate coord = ProjectionTools.wrapCoordinate(new Coordinate(lats[i],lons[i]));
+			GridCoverage2D grid = srtm.loadGrid(coord);
+			DirectPosition pos = new DirectPosition2D(coord.y,coord.x);
+			assertEquals("Point "+i, grid.evaluate(pos,(double[])null)[0], elevs[i], 1e-6);
+			assertEquals("Point "+i, srtm.fetchElevation(coord), elevs[i], 1e-6);
+		}
+	}
 }
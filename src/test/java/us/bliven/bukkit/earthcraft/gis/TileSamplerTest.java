@@ -0,0 +1,79 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TileSamplerTest {
+	TileSampler sampler;
+
+	/**
+	 * A 4x3 grid covering lat (7,10], lon [20,24) with
+	 * sample(col,row) = 10*row+col
+	 */
+	@Before
+	public void setup() {
+		sampler = new TileSampler(createImage(4,3,0,0), 10., 20., 1., 1.);
+	}
+
+	private static BufferedImage createImage(int width, int height, int dx, int dy) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		WritableRaster raster = image.getRaster();
+		for(int row=0;row<height;row++) {
+			for(int col=0;col<width;col++) {
+				raster.setSample(col, row, 0, 10*(row-dy)+(col-dx));
+			}
+		}
+		return image;
+	}
+
+	@Test
+	public void testSamples() {
+		assertEquals(0.,sampler.getSample(0, 0),1e-9);
+		assertEquals(3.,sampler.getSample(3, 0),1e-9);
+		assertEquals(21.,sampler.getSample(1, 2),1e-9);
+	}
+
+	@Test
+	public void testSubimage() {
+		// Raster is offset within its DataBuffer
+		BufferedImage image = createImage(8,6,2,1).getSubimage(2, 1, 4, 3);
+		TileSampler sub = new TileSampler(image, 10., 20., 1., 1.);
+		assertEquals(0.,sub.getSample(0, 0),1e-9);
+		assertEquals(3.,sub.getSample(3, 0),1e-9);
+		assertEquals(21.,sub.getSample(1, 2),1e-9);
+		assertEquals(11.,sub.nearest(8.5, 21.5),1e-9);
+	}
+
+	@Test
+	public void testNearest() {
+		assertEquals(0.,sampler.nearest(10., 20.),1e-9);
+		assertEquals(0.,sampler.nearest(9.01, 20.99),1e-9);
+		assertEquals(11.,sampler.nearest(9., 21.),1e-9);
+		assertEquals(23.,sampler.nearest(7.01, 23.99),1e-9);
+		// Clamped to the edges
+		assertEquals(23.,sampler.nearest(7., 24.),1e-9);
+	}
+
+	@Test
+	public void testBilinear() {
+		// Cell centers are exact
+		assertEquals(0.,sampler.bilinear(9.5, 20.5),1e-9);
+		assertEquals(12.,sampler.bilinear(8.5, 22.5),1e-9);
+
+		// Halfway between centers
+		assertEquals(.5,sampler.bilinear(9.5, 21.),1e-9);
+		assertEquals(5.,sampler.bilinear(9., 20.5),1e-9);
+		assertEquals(5.5,sampler.bilinear(9., 21.),1e-9);
+
+		// Edges extend the outermost samples
+		assertEquals(0.,sampler.bilinear(10., 20.),1e-9);
+		assertEquals(.5,sampler.bilinear(10., 21.),1e-9);
+		assertEquals(23.,sampler.bilinear(7., 24.),1e-9);
+	}
+}
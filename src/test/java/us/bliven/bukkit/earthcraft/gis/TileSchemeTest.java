@@ -0,0 +1,83 @@
+package us.bliven.bukkit.earthcraft.gis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class TileSchemeTest {
+	TileScheme tiles = SRTMPlusElevationProvider.TILES;
+
+	private String name(double lat, double lon) {
+		return tiles.getTileName(tiles.getTileIndex(lat, lon));
+	}
+
+	@Test
+	public void testTileNames() {
+		assertEquals(33, tiles.getTileCount());
+
+		assertEquals("w180n90", name(90, -180));
+		assertEquals("e140n90", name(40.01, 179.99));
+		assertEquals("w140n40", name(34, -117));
+		assertEquals("w020n40", name(0, 0));
+		assertEquals("e020n40", name(0, 20));
+		assertEquals("w100s10", name(-10.01, -100));
+		assertEquals("w060s60", name(-70, -1));
+		assertEquals("w000s60", name(-70, 0));
+		assertEquals("e120s60", name(-89.99, 179.99));
+
+		// All names are distinct
+		Set<String> names = new HashSet<String>();
+		for(int tile=0;tile<tiles.getTileCount();tile++) {
+			names.add(tiles.getTileName(tile));
+		}
+		assertEquals(33, names.size());
+	}
+
+	@Test
+	public void testEdges() {
+		// Northern and western edges are inclusive
+		assertEquals("w140n40", name(40, -140));
+		assertEquals("w140n90", name(40.000001, -140));
+		assertEquals("w180n40", name(40, -140.000001));
+		assertEquals("w180s10", name(-59.999999, -180));
+		assertEquals("w180s60", name(-60, -180));
+
+		// 180 is the same as -180
+		assertEquals("w180n40", name(0, 180));
+	}
+
+	@Test
+	public void testBounds() {
+		int tile = tiles.getTileIndex(34, -117);
+		assertEquals(40., tiles.getNorth(tile), 0);
+		assertEquals(-10., tiles.getSouth(tile), 0);
+		assertEquals(-140., tiles.getWest(tile), 0);
+		assertEquals(-100., tiles.getEast(tile), 0);
+
+		tile = tiles.getTileIndex(-70, 150);
+		assertEquals(-60., tiles.getNorth(tile), 0);
+		assertEquals(-90., tiles.getSouth(tile), 0);
+		assertEquals(120., tiles.getWest(tile), 0);
+		assertEquals(180., tiles.getEast(tile), 0);
+
+		// Every point lies within its tile
+		for(double lat=89.5;lat>-90;lat-=1) {
+			for(double lon=-179.5;lon<180;lon+=1) {
+				tile = tiles.getTileIndex(lat, lon);
+				assertEquals(true, tiles.getSouth(tile) < lat && lat <= tiles.getNorth(tile));
+				assertEquals(true, tiles.getWest(tile) <= lon && lon < tiles.getEast(tile));
+			}
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testOutOfBounds() {
+		tiles.getTileIndex(-90, 0);
+	}
+}
@@ -0,0 +1,89 @@
+package us.bliven.bukkit.earthcraft.util;
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class FileCacheTest {
+	File dir;
+	FileCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("filecache", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		if(cache != null) {
+			cache.shutdown();
+		}
+		for(File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++) {
+			data[i] = (byte) (i*31);
+		}
+		return data;
+	}
+
+	@Test
+	public void testFetchURL() throws Exception {
+		byte[] data = createData(3000000);
+		File source = File.createTempFile("source", ".dat");
+		try {
+			FileOutputStream out = new FileOutputStream(source);
+			out.write(data);
+			out.close();
+
+			cache = new FileCache(dir.getPath());
+			cache.fetch("copy.dat", source.toURI().toURL());
+
+			assertTrue(cache.isAvailable("copy.dat"));
+			assertArrayEquals(data, Files.readAllBytes(new File(dir,"copy.dat").toPath()));
+			assertFalse(new File(dir,"copy.dat.part").exists());
+		} finally {
+			source.delete();
+		}
+	}
+
+	@Test
+	public void testFetchStream() throws Exception {
+		byte[] data = createData(1000);
+		cache = new FileCache(dir.getPath());
+		cache.fetch("stream.dat", new ByteArrayInputStream(data));
+
+		assertArrayEquals(data, Files.readAllBytes(new File(dir,"stream.dat").toPath()));
+	}
+
+	@Test
+	public void testStalePartialFiles() throws IOException {
+		File partial = new File(dir,"tile.dem.part");
+		FileOutputStream out = new FileOutputStream(partial);
+		out.write(createData(10));
+		out.close();
+
+		cache = new FileCache(dir.getPath());
+		assertFalse(partial.exists());
+		assertFalse(cache.isAvailable("tile.dem"));
+	}
+}
@@ -0,0 +1,48 @@
+package us.bliven.bukkit.earthcraft.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		long prevUpper = -1;
+		for(int bucket=0;bucket<LatencyHistogram.getBucket(Long.MAX_VALUE);bucket++) {
+			long upper = LatencyHistogram.getUpperBound(bucket);
+			assertTrue("Bucket "+bucket, upper > prevUpper);
+			assertEquals(bucket, LatencyHistogram.getBucket(prevUpper+1));
+			assertEquals(bucket, LatencyHistogram.getBucket(upper));
+			prevUpper = upper;
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram hist = new LatencyHistogram();
+		assertEquals(0, hist.getPercentile(.5));
+		assertEquals(0., hist.getMean(), 0);
+
+		for(int i=1;i<=1000;i++) {
+			hist.record(i*1000L);
+		}
+		assertEquals(1000, hist.getCount());
+		assertEquals(500500., hist.getMean(), 1e-6);
+		assertEquals(1000000, hist.getMax());
+
+		// Within the 25% resolution of the buckets
+		long median = hist.getPercentile(.5);
+		assertTrue("Median "+median, 500000 <= median && median <= 625000);
+		long p99 = hist.getPercentile(.99);
+		assertTrue("p99 "+p99, 990000 <= p99 && p99 <= 1000000);
+		assertEquals(1000000, hist.getPercentile(1));
+
+		hist.reset();
+		assertEquals(0, hist.getCount());
+		assertEquals(0, hist.getMax());
+	}
+}
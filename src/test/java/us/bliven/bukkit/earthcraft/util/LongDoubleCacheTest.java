@@ -0,0 +1,79 @@
+package us.bliven.bukkit.earthcraft.util;
+
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class LongDoubleCacheTest {
+	LongDoubleCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new LongDoubleCache(5);
+	}
+
+	@Test
+	public void testPutGet() {
+		cache.put(1, 1.5);
+		cache.put(-2, 2.5);
+		cache.put(1l<<32, 3.5);
+
+		assertEquals(3,cache.size());
+		assertEquals(1.5,cache.get(1),0);
+		assertEquals(2.5,cache.get(-2),0);
+		assertEquals(3.5,cache.get(1l<<32),0);
+		assertTrue(Double.isNaN(cache.get(2)));
+		assertFalse(cache.containsKey(2));
+
+		// Replace
+		cache.put(1, 4.5);
+		assertEquals(3,cache.size());
+		assertEquals(4.5,cache.get(1),0);
+
+		// NaN values are allowed
+		cache.put(7, Double.NaN);
+		assertTrue(cache.containsKey(7));
+	}
+
+	@Test
+	public void testEviction() {
+		for(long i=1;i<=5;i++) {
+			cache.put(i, i);
+		}
+		// Referenced entries get a second chance
+		cache.get(1);
+		cache.get(3);
+
+		cache.put(6, 6);
+		assertEquals(5,cache.size());
+		assertTrue(cache.containsKey(1));
+		assertTrue(cache.containsKey(3));
+		assertTrue(cache.containsKey(6));
+		assertEquals(1,(cache.containsKey(2)?0:1)+(cache.containsKey(4)?0:1)+(cache.containsKey(5)?0:1));
+	}
+
+	@Test
+	public void testRemove() {
+		// Many keys, to exercise collisions and backward shifts
+		cache = new LongDoubleCache(1000);
+		for(long i=0;i<1000;i++) {
+			cache.put(i*1024, i);
+		}
+		for(long i=0;i<1000;i+=2) {
+			assertTrue(cache.remove(i*1024));
+		}
+		assertFalse(cache.remove(0));
+		assertEquals(500,cache.size());
+		for(long i=0;i<1000;i++) {
+			assertEquals(i%2 == 1, cache.containsKey(i*1024));
+			if(i%2 == 1) {
+				assertEquals(i,cache.get(i*1024),0);
+			}
+		}
+	}
+}
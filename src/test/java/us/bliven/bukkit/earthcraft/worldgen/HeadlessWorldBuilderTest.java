@@ -0,0 +1,115 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
+import us.bliven.bukkit.earthcraft.gis.FlatElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.LinearElevationProjection;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class HeadlessWorldBuilderTest {
+	private File dir;
+	private HeadlessWorldBuilder builder;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("world", "");
+		dir.delete();
+
+		// Flat land 80 blocks high, with sea level at 64
+		BlockHeightCalculator heights = new BlockHeightCalculator(
+				new EquirectangularProjection(new Coordinate(0,0), new Coordinate(.01,.01)),
+				new LinearElevationProjection(-6400, 100),
+				new FlatElevationProvider(1600));
+		builder = new HeadlessWorldBuilder(heights, true, dir);
+	}
+
+	@After
+	public void tearDown() {
+		File regions = new File(dir, "region");
+		for(File file : regions.listFiles()) {
+			file.delete();
+		}
+		regions.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testFillColumn() {
+		TerrainBlock[] column = new TerrainBlock[256];
+		assertEquals(80, TerrainBlock.fillColumn(80, 64, true, column));
+		assertEquals(TerrainBlock.BEDROCK, column[0]);
+		assertEquals(TerrainBlock.STONE, column[63]);
+		assertEquals(TerrainBlock.DIRT, column[64]);
+		assertEquals(TerrainBlock.DIRT, column[78]);
+		assertEquals(TerrainBlock.GRASS, column[79]);
+
+		// Under water
+		assertEquals(64, TerrainBlock.fillColumn(30, 64, true, column));
+		assertEquals(TerrainBlock.GRASS, column[29]);
+		assertEquals(TerrainBlock.WATER, column[30]);
+		assertEquals(TerrainBlock.WATER, column[63]);
+		assertEquals(30, TerrainBlock.fillColumn(30, 64, false, column));
+
+		// Taller than the world
+		assertEquals(256, TerrainBlock.fillColumn(300, 64, true, column));
+		assertEquals(TerrainBlock.GRASS, column[255]);
+	}
+
+	@Test
+	public void testBuild() throws IOException {
+		// Chunks -20 to 20 cover regions -1 and 0
+		assertEquals(4, builder.build(0, 0, 20, 2));
+		File region = new File(dir, "region/r.0.-1.mca");
+		assertTrue(region.exists());
+		assertEquals(0, region.length() % 4096);
+
+		RandomAccessFile in = new RandomAccessFile(region, "r");
+		try {
+			// Chunk 0,-1 is the first chunk of the last row
+			int index = (31<<5) | 0;
+			in.seek(4*index);
+			int location = in.readInt();
+			assertTrue(location != 0);
+			in.seek((location>>8)*4096L);
+			int length = in.readInt();
+			assertEquals(2, in.readByte());
+			byte[] compressed = new byte[length-1];
+			in.readFully(compressed);
+
+			DataInputStream nbt = new DataInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(compressed)));
+			assertEquals(10, nbt.readByte()); // compound
+			assertEquals("", nbt.readUTF());
+			assertEquals(3, nbt.readByte()); // int
+			assertEquals("DataVersion", nbt.readUTF());
+
+			// Chunk 20,-1 is outside the radius
+			in.seek(4*((31<<5) | 20));
+			assertEquals(0, in.readInt());
+		} finally {
+			in.close();
+		}
+
+		// Existing regions are skipped
+		assertEquals(0, builder.build(0, 0, 20, 2));
+		assertFalse(new File(dir, "region/r.1.0.mca").exists());
+	}
+}
@@ -0,0 +1,106 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
+import us.bliven.bukkit.earthcraft.gis.Prefetchable;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class PrefetchSchedulerTest {
+	private static final double TOL = 1e-6;
+
+	/**
+	 * Records requests. Data east of 3 degrees is not loaded.
+	 */
+	private static class RecordingTarget implements Prefetchable {
+		List<Coordinate> requests = new ArrayList<Coordinate>();
+		@Override
+		public boolean prefetch(Coordinate coord) throws DataUnavailableException {
+			requests.add(coord);
+			return coord.y <= 3;
+		}
+	}
+
+	private RecordingTarget target;
+	private PrefetchScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		target = new RecordingTarget();
+		// 100 blocks per degree
+		EquirectangularProjection proj = new EquirectangularProjection(
+				new Coordinate(0,0), new Coordinate(.01,.01));
+		scheduler = new PrefetchScheduler(proj, target, 20, 600);
+	}
+
+	@Test
+	public void testStationary() {
+		assertEquals(0, scheduler.update("a", 0, 0, 0));
+		assertEquals(1, target.requests.size());
+
+		// Not due yet
+		scheduler.update("a", 0, 0, 10);
+		assertEquals(1, target.requests.size());
+
+		// Still not moving, so only the current position
+		scheduler.update("a", 0, 0, 20);
+		assertEquals(2, target.requests.size());
+	}
+
+	@Test
+	public void testMoving() {
+		scheduler.update("a", 0, 0, 0);
+		target.requests.clear();
+
+		// 1 block/tick east, smoothed to .5 block/tick
+		int pending = scheduler.update("a", 20, 0, 20);
+		assertEquals(7, target.requests.size());
+		assertEquals(.2, target.requests.get(0).y, TOL);
+		assertEquals(3.2, target.requests.get(6).y, TOL);
+		for(Coordinate coord : target.requests) {
+			assertEquals(0, coord.x, TOL);
+		}
+		assertEquals(1, pending);
+
+		// Heading north
+		target.requests.clear();
+		scheduler.update("a", 20, -40, 40);
+		Coordinate last = target.requests.get(target.requests.size()-1);
+		// Velocity smoothed to (.25,-1) blocks/tick
+		assertEquals(1.7, last.y, TOL);
+		assertEquals(6.4, last.x, TOL);
+	}
+
+	@Test
+	public void testTeleport() {
+		scheduler.update("a", 0, 0, 0);
+		target.requests.clear();
+
+		scheduler.update("a", 100000, 0, 20);
+		assertEquals(1, target.requests.size());
+		assertEquals(1000, target.requests.get(0).y, TOL);
+	}
+
+	@Test
+	public void testForget() {
+		scheduler.update("a", 0, 0, 0);
+		scheduler.update("a", 20, 0, 20);
+		scheduler.forget("a");
+		target.requests.clear();
+
+		// Treated as a new player
+		scheduler.update("a", 40, 0, 25);
+		assertEquals(1, target.requests.size());
+	}
+}
@@ -0,0 +1,211 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Spencer Bliven
+ */
+public class RegionPregeneratorTest {
+
+	/**
+	 * Records chunks, checking that each was prepared first
+	 */
+	private static class RecordingTarget implements RegionPregenerator.ChunkTarget {
+		Set<Long> preparedChunks = Collections.synchronizedSet(new HashSet<Long>());
+		List<Long> generated = new ArrayList<Long>();
+		int unprepared = 0;
+		@Override
+		public void prepare(int cx, int cz) {
+			preparedChunks.add(RegionPregenerator.getChunkKey(cx, cz));
+		}
+		@Override
+		public void generate(int cx, int cz) {
+			long key = RegionPregenerator.getChunkKey(cx, cz);
+			if(!preparedChunks.contains(key)) {
+				unprepared++;
+			}
+			generated.add(key);
+		}
+		@Override
+		public void discard(int cx, int cz) {
+			preparedChunks.remove(RegionPregenerator.getChunkKey(cx, cz));
+		}
+	}
+
+	private File stateFile;
+
+	@Before
+	public void setUp() throws Exception {
+		stateFile = File.createTempFile("pregen", ".properties");
+		stateFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		stateFile.delete();
+		new File(stateFile.getPath()+".tmp").delete();
+	}
+
+	@Test
+	public void testOrder() {
+		int radius = 40;
+		long[] order = RegionPregenerator.getOrder(5, -70, radius);
+
+		// Every chunk in the circle, once
+		Set<Long> chunks = new HashSet<Long>();
+		for(int cx=5-radius;cx<=5+radius;cx++) {
+			for(int cz=-70-radius;cz<=-70+radius;cz++) {
+				if((cx-5)*(cx-5)+(cz+70)*(cz+70) <= radius*radius) {
+					chunks.add(RegionPregenerator.getChunkKey(cx, cz));
+				}
+			}
+		}
+		assertEquals(chunks.size(), order.length);
+		for(long key : order) {
+			assertTrue(chunks.remove(key));
+		}
+
+		// Each region is finished before moving on
+		Set<Long> finished = new HashSet<Long>();
+		long region = Long.MIN_VALUE;
+		for(long key : order) {
+			long r = RegionPregenerator.getChunkKey(
+					RegionPregenerator.getChunkX(key)>>5, RegionPregenerator.getChunkZ(key)>>5);
+			if(r != region) {
+				assertTrue(finished.add(r));
+				region = r;
+			}
+		}
+	}
+
+	private void runToEnd(RegionPregenerator pregen) throws InterruptedException {
+		long timeout = System.currentTimeMillis()+10000;
+		while(!pregen.isFinished() && System.currentTimeMillis() < timeout) {
+			pregen.tick(1000000);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testTick() throws Exception {
+		RecordingTarget target = new RecordingTarget();
+		RegionPregenerator pregen = new RegionPregenerator(0, 0, 10, target, stateFile, 8);
+
+		// Starts paused
+		assertEquals(0, pregen.tick(Long.MAX_VALUE));
+
+		pregen.resume();
+		runToEnd(pregen);
+		assertTrue(pregen.isFinished());
+		assertEquals(pregen.getTotal(), target.generated.size());
+		assertEquals(new HashSet<Long>(target.generated).size(), target.generated.size());
+		assertEquals(0, target.unprepared);
+
+		// Finished jobs aren't resumed
+		assertFalse(stateFile.exists());
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		// Pause part way through
+		final RegionPregenerator[] holder = new RegionPregenerator[1];
+		RecordingTarget target = new RecordingTarget() {
+			@Override
+			public void generate(int cx, int cz) {
+				super.generate(cx, cz);
+				if(generated.size() == 100) {
+					holder[0].pause();
+				}
+			}
+		};
+		RegionPregenerator pregen = new RegionPregenerator(3, 4, 20, target, stateFile, 0);
+		holder[0] = pregen;
+		pregen.resume();
+		pregen.tick(Long.MAX_VALUE);
+		assertTrue(pregen.isPaused());
+		assertEquals(100, pregen.getGenerated());
+
+		RecordingTarget target2 = new RecordingTarget();
+		RegionPregenerator loaded = RegionPregenerator.load(stateFile, target2);
+		assertNotNull(loaded);
+		assertFalse(loaded.wasRunning());
+		assertTrue(loaded.isPaused());
+		assertEquals(100, loaded.getGenerated());
+		assertEquals(pregen.getTotal(), loaded.getTotal());
+
+		loaded.resume();
+		runToEnd(loaded);
+		Set<Long> all = new HashSet<Long>(target.generated);
+		all.addAll(target2.generated);
+		assertEquals(pregen.getTotal()-100, target2.generated.size());
+		assertEquals(pregen.getTotal(), all.size());
+	}
+
+	@Test
+	public void testShutdown() throws Exception {
+		RegionPregenerator pregen = new RegionPregenerator(0, 0, 5, new RecordingTarget(), stateFile);
+		pregen.resume();
+		pregen.shutdown();
+		assertTrue(RegionPregenerator.load(stateFile, new RecordingTarget()).wasRunning());
+
+		pregen.resume();
+		pregen.pause();
+		assertFalse(RegionPregenerator.load(stateFile, new RecordingTarget()).wasRunning());
+
+		pregen.cancel();
+		assertNull(RegionPregenerator.load(stateFile, new RecordingTarget()));
+	}
+
+	@Test
+	public void testPauseDiscards() throws Exception {
+		// Block a preparation until after the pause
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingTarget target = new RecordingTarget() {
+			@Override
+			public void prepare(int cx, int cz) {
+				super.prepare(cx, cz);
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		RegionPregenerator pregen = new RegionPregenerator(0, 0, 10, target, stateFile, 8);
+		pregen.resume();
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		pregen.pause();
+		release.countDown();
+
+		// Nothing prepared is left behind once the workers finish
+		long deadline = System.currentTimeMillis()+10000;
+		while( !target.preparedChunks.isEmpty() && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		assertTrue(target.preparedChunks.isEmpty());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRadiusLimit() {
+		new RegionPregenerator(0, 0, RegionPregenerator.MAX_RADIUS+1, new RecordingTarget(), stateFile);
+	}
+}
@@ -0,0 +1,134 @@
+package us.bliven.bukkit.earthcraft.worldgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import us.bliven.bukkit.earthcraft.gis.AbstractElevationProvider;
+import us.bliven.bukkit.earthcraft.gis.DataUnavailableException;
+import us.bliven.bukkit.earthcraft.gis.EquirectangularProjection;
+import us.bliven.bukkit.earthcraft.gis.LinearElevationProjection;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @author Spencer Bliven
+ */
+public class WarmupServiceTest {
+	private static final double TOL = .16; // one chunk
+
+	/**
+	 * Records the first point of each request
+	 */
+	private static class RecordingProvider extends AbstractElevationProvider {
+		List<Coordinate> requests = new ArrayList<Coordinate>();
+		@Override
+		public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+			return 0.;
+		}
+		@Override
+		public synchronized void fetchElevations(double[] lat, double[] lon, double[] out)
+				throws DataUnavailableException {
+			requests.add(new Coordinate(lat[0],lon[0]));
+			super.fetchElevations(lat, lon, out);
+		}
+	}
+
+	private RecordingProvider provider;
+	private BlockHeightCalculator heights;
+	private Map<String,Coordinate> landmarks;
+
+	@Before
+	public void setUp() {
+		provider = new RecordingProvider();
+		// 100 blocks per degree
+		EquirectangularProjection proj = new EquirectangularProjection(
+				new Coordinate(0,0), new Coordinate(.01,.01));
+		heights = new BlockHeightCalculator(proj, new LinearElevationProjection(), provider);
+		landmarks = new LinkedHashMap<String, Coordinate>();
+		landmarks.put("North", new Coordinate(10,0));
+		landmarks.put("East", new Coordinate(0,10));
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		WarmupService warmup = new WarmupService(landmarks, Integer.MAX_VALUE, 1);
+		int warmed = warmup.warm("world", heights, new Coordinate(0,0)).get();
+		warmup.shutdown();
+
+		assertEquals(3, warmed);
+		assertEquals(27, provider.requests.size());
+
+		// Chunks containing the centers are warmed first
+		assertEquals(0, provider.requests.get(0).x, TOL);
+		assertEquals(0, provider.requests.get(0).y, TOL);
+		assertEquals(10, provider.requests.get(9).x, TOL);
+		assertEquals(0, provider.requests.get(9).y, TOL);
+		assertEquals(0, provider.requests.get(18).x, TOL);
+		assertEquals(10, provider.requests.get(18).y, TOL);
+	}
+
+	@Test
+	public void testBudget() {
+		WarmupService warmup = new WarmupService(landmarks, 10, 1);
+
+		// Stops during the first landmark
+		assertEquals(1, warmup.warmNow("world", heights, new Coordinate(0,0)));
+		assertEquals(10, provider.requests.size());
+		warmup.shutdown();
+	}
+
+	@Test
+	public void testNoSpawn() {
+		WarmupService warmup = new WarmupService(landmarks, Integer.MAX_VALUE, 0);
+		assertEquals(2, warmup.warmNow("world", heights, null));
+		assertEquals(2, provider.requests.size());
+		warmup.shutdown();
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		// Blocks the warm-up thread until released
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AbstractElevationProvider blocking = new AbstractElevationProvider() {
+			@Override
+			public Double fetchElevation(Coordinate c) throws DataUnavailableException {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DataUnavailableException("Interrupted", e);
+				}
+				return 0.;
+			}
+		};
+		BlockHeightCalculator blocked = new BlockHeightCalculator(heights.getMapProjection(),
+				new LinearElevationProjection(), blocking);
+
+		WarmupService warmup = new WarmupService(landmarks, Integer.MAX_VALUE, 1);
+		Future<Integer> first = warmup.warm("old", blocked, new Coordinate(0,0));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		// Cancelling lets the next world start
+		first.cancel(true);
+		assertEquals(3, (int) warmup.warm("new", heights, new Coordinate(0,0)).get(10, TimeUnit.SECONDS));
+
+		// Usable again after a shutdown
+		warmup.shutdown();
+		assertEquals(3, (int) warmup.warm("new", heights, new Coordinate(0,0)).get(10, TimeUnit.SECONDS));
+		warmup.shutdown();
+		release.countDown();
+	}
+}